@@ -0,0 +1,218 @@
+package org.warpchain.tree;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Baseline of SparseMerkleTree operations by tree size, key distribution and
+ * leaf mode.
+ * 
+ * Hashes per op is the "hashes" secondary score divided by the primary score.
+ * Bytes allocated per op is "gc.alloc.rate.norm" of the GC profiler, which is
+ * enabled by the jmh profile. Sizes above the defaults need a larger heap, e.g.
+ * -Djmh.args="-p size=100000000 -jvmArgsAppend -Xmx64g -prof gc".
+ *
+ * @author liaoxuefeng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SparseMerkleTreeBenchmark {
+
+	static final int BATCH = 1000;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	int size;
+
+	/**
+	 * random: uniformly distributed data hashes. sequential: data hashes share a
+	 * 24-byte prefix and end with a counter.
+	 */
+	@Param({ "random", "sequential" })
+	String keys;
+
+	@Param({ "false", "true" })
+	boolean compactLeaf;
+
+	SparseMerkleTree tree;
+
+	CountingMetrics metrics;
+
+	/**
+	 * Data hashes loaded into tree, which are never removed.
+	 */
+	byte[][] loaded;
+
+	/**
+	 * Data hashes replaced in rotation, where extra[cursor, cursor + BATCH) are in
+	 * tree.
+	 */
+	byte[][] extra;
+
+	int cursor;
+
+	/**
+	 * Random indexes of loaded data hashes for lookup.
+	 */
+	int[] lookups;
+
+	int lookup;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(123456);
+		byte[] prefix = new byte[24];
+		random.nextBytes(prefix);
+		byte[][] all = new byte[this.size + 2 * BATCH][];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = newKey(random, prefix, i);
+		}
+		this.loaded = Arrays.copyOf(all, this.size);
+		this.extra = Arrays.copyOfRange(all, this.size, all.length);
+		byte[][] sorted = Arrays.copyOf(all, this.size + BATCH);
+		Arrays.sort(sorted, Arrays::compareUnsigned);
+		this.tree = new SparseMerkleTree(MerkleHasher.dsha256(), this.compactLeaf);
+		this.tree.bulkLoad(Arrays.stream(sorted).map(key -> Map.entry(key, key)).iterator());
+		this.tree.getRootMerkleHash();
+		this.metrics = new CountingMetrics();
+		this.tree.setMetrics(this.metrics);
+		this.cursor = 0;
+		this.lookups = random.ints(4096, 0, this.size).toArray();
+		this.lookup = 0;
+	}
+
+	private byte[] newKey(Random random, byte[] prefix, int index) {
+		byte[] key = new byte[32];
+		if ("random".equals(this.keys)) {
+			random.nextBytes(key);
+		} else {
+			System.arraycopy(prefix, 0, key, 0, prefix.length);
+			for (int i = 0; i < 8; i++) {
+				key[31 - i] = (byte) ((long) index >>> (8 * i));
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Replace the oldest extra data hash in tree by the next one, so tree size is
+	 * unchanged.
+	 */
+	void replaceNext() {
+		int n = this.extra.length;
+		byte[] added = this.extra[(this.cursor + BATCH) % n];
+		this.tree.remove(this.extra[this.cursor % n]);
+		this.tree.update(added, added);
+		this.cursor = (this.cursor + 1) % n;
+	}
+
+	byte[] nextLoaded() {
+		byte[] dataHash = this.loaded[this.lookups[this.lookup]];
+		this.lookup = (this.lookup + 1) % this.lookups.length;
+		return dataHash;
+	}
+
+	@Benchmark
+	public byte[] update(HashCounter counter) {
+		long start = this.metrics.hashes;
+		replaceNext();
+		byte[] root = this.tree.getRootMerkleHash();
+		counter.hashes += this.metrics.hashes - start;
+		return root;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public byte[] batchUpdate(HashCounter counter) {
+		long start = this.metrics.hashes;
+		for (int i = 0; i < BATCH; i++) {
+			replaceNext();
+		}
+		byte[] root = this.tree.getRootMerkleHash();
+		counter.hashes += this.metrics.hashes - start;
+		return root;
+	}
+
+	/**
+	 * Calculate root merkle hash of a batch of pending updates.
+	 */
+	@Benchmark
+	public byte[] rootMerkleHash(PendingBatch pending, HashCounter counter) {
+		long start = this.metrics.hashes;
+		byte[] root = this.tree.getRootMerkleHash();
+		counter.hashes += this.metrics.hashes - start;
+		return root;
+	}
+
+	@Benchmark
+	public byte[] get() {
+		return this.tree.get(nextLoaded());
+	}
+
+	@Benchmark
+	public MerkleProof prove(HashCounter counter) {
+		long start = this.metrics.hashes;
+		MerkleProof proof = this.tree.prove(nextLoaded());
+		counter.hashes += this.metrics.hashes - start;
+		return proof;
+	}
+
+	/**
+	 * Apply a batch of updates before each call without calculating hashes.
+	 */
+	@State(Scope.Thread)
+	public static class PendingBatch {
+
+		@Setup(Level.Invocation)
+		public void setup(SparseMerkleTreeBenchmark benchmark) {
+			for (int i = 0; i < BATCH; i++) {
+				benchmark.replaceNext();
+			}
+		}
+	}
+
+	/**
+	 * Number of hashes reported as secondary score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class HashCounter {
+
+		public long hashes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.hashes = 0;
+		}
+	}
+
+	static class CountingMetrics implements TreeMetrics {
+
+		long hashes;
+
+		@Override
+		public void onHash() {
+			this.hashes++;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package org.warpchain.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Immutable nibble path backed by the original bytes without expanding. Each
+ * byte holds 2 nibbles, high half first. Shared prefix is compared 16 nibbles
+ * at a time.
+ *
+ * @author liaoxuefeng
+ */
+public final class NibblePath {
+
+	private static final byte[] EMPTY_BYTES = new byte[0];
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+	private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Empty nibble path.
+	 */
+	public static final NibblePath EMPTY = new NibblePath(EMPTY_BYTES, 0, 0);
+
+	private final byte[] value;
+
+	/**
+	 * Nibble offset in value.
+	 */
+	private final int offset;
+
+	/**
+	 * Number of nibbles.
+	 */
+	private final int count;
+
+	private int hash;
+
+	private NibblePath(byte[] value, int offset, int count) {
+		this.value = value;
+		this.offset = offset;
+		this.count = count;
+	}
+
+	public NibblePath(byte[] value) {
+		this(Arrays.copyOf(value, value.length), 0, 2 * value.length); // 1 byte = 2 nibbles
+	}
+
+	/**
+	 * Wrap bytes without copy. The bytes must not be changed after wrapped.
+	 */
+	public static NibblePath unsafe(byte[] value) {
+		return new NibblePath(value, 0, 2 * value.length);
+	}
+
+	public boolean isEmpty() {
+		return this.count == 0;
+	}
+
+	public int length() {
+		return this.count;
+	}
+
+	public NibblePath substring(int beginIndex) {
+		return substring(beginIndex, this.count);
+	}
+
+	public NibblePath substring(int beginIndex, int endIndex) {
+		if (beginIndex == 0 && endIndex == this.count) {
+			return this;
+		}
+		Objects.checkFromToIndex(beginIndex, endIndex, this.count);
+		return new NibblePath(this.value, this.offset + beginIndex, endIndex - beginIndex);
+	}
+
+	public int valueAt(int index) {
+		Objects.checkIndex(index, this.count);
+		return nibbleAt(this.value, this.offset + index);
+	}
+
+	private static int nibbleAt(byte[] value, int index) {
+		int b = value[index >> 1];
+		return (index & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+	}
+
+	/**
+	 * Get packed bytes of path. The low half of last byte is 0 if length is odd.
+	 */
+	public byte[] toBytes() {
+		byte[] packed;
+		if ((this.offset & 1) == 0) {
+			int from = this.offset >> 1;
+			packed = Arrays.copyOfRange(this.value, from, from + ((this.count + 1) >> 1));
+		} else {
+			packed = new byte[(this.count + 1) >> 1];
+			for (int i = 0; i < packed.length; i++) {
+				packed[i] = (byte) (word(this.value, this.offset + 2 * i) >>> 56);
+			}
+		}
+		if ((this.count & 1) == 1) {
+			packed[packed.length - 1] &= 0xf0;
+		}
+		return packed;
+	}
+
+	/**
+	 * Tests if this path starts with the specified prefix.
+	 */
+	public boolean startsWith(NibblePath prefix) {
+		return startsWith(prefix, 0);
+	}
+
+	/**
+	 * Tests if the sub-path of this path beginning at the specified index starts
+	 * with the specified prefix.
+	 *
+	 * @param prefix  the prefix.
+	 * @param toffset where to begin looking in this path.
+	 */
+	public boolean startsWith(NibblePath prefix, int toffset) {
+		// Note: toffset might be near -1>>>1.
+		if ((toffset < 0) || (toffset > this.count - prefix.count)) {
+			return false;
+		}
+		return mismatch(this.value, this.offset + toffset, prefix.value, prefix.offset, prefix.count) == prefix.count;
+	}
+
+	/**
+	 * Get length of shared prefix. Example: "1a2b3c" and "1a2f4d" share 3 nibbles.
+	 */
+	public static int sharedPrefixLength(NibblePath p1, NibblePath p2) {
+		return mismatch(p1.value, p1.offset, p2.value, p2.offset, Math.min(p1.count, p2.count));
+	}
+
+	/**
+	 * Get shared prefix as many as possible. Example: "1a2b3c" and "1a2f4d" share
+	 * "1a2".
+	 */
+	public static NibblePath sharedPrefix(NibblePath p1, NibblePath p2) {
+		return p1.substring(0, sharedPrefixLength(p1, p2));
+	}
+
+	/**
+	 * Get index of first different nibble in max nibbles, or max if all equal.
+	 */
+	private static int mismatch(byte[] a, int aOffset, byte[] b, int bOffset, int max) {
+		for (int n = 0; n < max; n += 16) {
+			long diff = word(a, aOffset + n) ^ word(b, bOffset + n);
+			if (diff != 0) {
+				return Math.min(max, n + (Long.numberOfLeadingZeros(diff) >> 2));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Get 16 nibbles from nibble index as a long, padded by 0 after end of value.
+	 */
+	private static long word(byte[] value, int index) {
+		int from = index >> 1;
+		long w;
+		if (from + 8 <= value.length) {
+			w = (long) LONG_BE.get(value, from);
+		} else {
+			w = 0;
+			for (int i = from; i < value.length; i++) {
+				w |= (value[i] & 0xffL) << (56 - 8 * (i - from));
+			}
+		}
+		if ((index & 1) == 1) {
+			w <<= 4;
+			if (from + 8 < value.length) {
+				w |= (value[from + 8] & 0xff) >>> 4;
+			}
+		}
+		return w;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o instanceof NibblePath) {
+			NibblePath p = (NibblePath) o;
+			return this.count == p.count && mismatch(this.value, this.offset, p.value, p.offset, this.count) == this.count;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0 && this.count > 0) {
+			h = 1;
+			for (int i = 0; i < this.count; i++) {
+				h = 31 * h + nibbleAt(this.value, this.offset + i);
+			}
+			this.hash = h;
+		}
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		if (this.count == 0) {
+			return "";
+		}
+		var sb = new StringBuilder(this.count);
+		for (int i = 0; i < this.count; i++) {
+			sb.append(HEX_CHARS[nibbleAt(this.value, this.offset + i)]);
+		}
+		return sb.toString();
+	}
+}
@@ -19,4 +19,9 @@ public interface KeyValueStorage extends Closeable {
 	void removeValue(byte[] key);
 
 	void removeValue(String key);
+
+	/**
+	 * Create a batch to write multiple keys atomically.
+	 */
+	WriteBatch newBatch();
 }
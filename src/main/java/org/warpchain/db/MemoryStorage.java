@@ -1,17 +1,28 @@
 package org.warpchain.db;
 
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.warpchain.core.ByteString;
 
 /**
- * Memory key-value db using hash map.
+ * Memory key-value db using hash map. Readers never see a partially committed
+ * batch.
  * 
  * @author liaoxuefeng
  */
 public class MemoryStorage implements KeyValueStorage {
 
-	private final Map<byte[], byte[]> kv = new HashMap<>();
+	private final Map<ByteString, byte[]> kv = new ConcurrentHashMap<>();
+
+	/**
+	 * Single writes take the read lock, and batch takes the write lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
 	public MemoryStorage() {
 	}
@@ -23,7 +34,12 @@ public class MemoryStorage implements KeyValueStorage {
 
 	@Override
 	public byte[] getValue(byte[] key) {
-		return this.kv.get(key);
+		this.lock.readLock().lock();
+		try {
+			return this.kv.get(ByteString.unsafe(key));
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	@Override
@@ -47,7 +63,12 @@ public class MemoryStorage implements KeyValueStorage {
 
 	@Override
 	public void setValue(byte[] key, byte[] value) {
-		this.kv.put(key, value);
+		this.lock.readLock().lock();
+		try {
+			this.kv.put(new ByteString(key), value);
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	@Override
@@ -57,11 +78,71 @@ public class MemoryStorage implements KeyValueStorage {
 
 	@Override
 	public void removeValue(byte[] key) {
-		this.kv.remove(key);
+		this.lock.readLock().lock();
+		try {
+			this.kv.remove(ByteString.unsafe(key));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public WriteBatch newBatch() {
+		return new MemoryBatch();
 	}
 
 	@Override
 	public void close() {
 		this.kv.clear();
 	}
+
+	/**
+	 * Batch keeps the last write of each key, and a null value means delete.
+	 */
+	class MemoryBatch implements WriteBatch {
+
+		private final Map<ByteString, byte[]> writes = new LinkedHashMap<>();
+		private int size = 0;
+
+		@Override
+		public void put(byte[] key, byte[] value) {
+			this.writes.put(new ByteString(key), value);
+			this.size++;
+		}
+
+		@Override
+		public void delete(byte[] key) {
+			this.writes.put(new ByteString(key), null);
+			this.size++;
+		}
+
+		@Override
+		public int size() {
+			return this.size;
+		}
+
+		@Override
+		public void commit(boolean sync) {
+			lock.writeLock().lock();
+			try {
+				for (Map.Entry<ByteString, byte[]> entry : this.writes.entrySet()) {
+					if (entry.getValue() == null) {
+						kv.remove(entry.getKey());
+					} else {
+						kv.put(entry.getKey(), entry.getValue());
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			this.writes.clear();
+			this.size = 0;
+		}
+
+		@Override
+		public void close() {
+			this.writes.clear();
+			this.size = 0;
+		}
+	}
 }
@@ -6,6 +6,7 @@ import java.nio.file.Paths;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.warpchain.exception.StoreException;
@@ -94,6 +95,11 @@ public class PersistStorage implements KeyValueStorage {
 		}
 	}
 
+	@Override
+	public WriteBatch newBatch() {
+		return new RocksBatch();
+	}
+
 	@Override
 	public void close() {
 		if (this.rdb != null) {
@@ -106,4 +112,51 @@ public class PersistStorage implements KeyValueStorage {
 			this.options = null;
 		}
 	}
+
+	/**
+	 * Batch using RocksDB write batch, which is written to WAL as one record.
+	 */
+	class RocksBatch implements WriteBatch {
+
+		private final org.rocksdb.WriteBatch batch = new org.rocksdb.WriteBatch();
+
+		@Override
+		public void put(byte[] key, byte[] value) {
+			try {
+				this.batch.put(key, value);
+			} catch (RocksDBException e) {
+				throw new StoreException(e);
+			}
+		}
+
+		@Override
+		public void delete(byte[] key) {
+			try {
+				this.batch.delete(key);
+			} catch (RocksDBException e) {
+				throw new StoreException(e);
+			}
+		}
+
+		@Override
+		public int size() {
+			return this.batch.count();
+		}
+
+		@Override
+		public void commit(boolean sync) {
+			try (WriteOptions options = new WriteOptions()) {
+				options.setSync(sync);
+				rdb.write(options, this.batch);
+			} catch (RocksDBException e) {
+				throw new StoreException(e);
+			}
+			this.batch.clear();
+		}
+
+		@Override
+		public void close() {
+			this.batch.close();
+		}
+	}
 }
@@ -0,0 +1,29 @@
+package org.warpchain.db;
+
+/**
+ * Batch of writes which are applied to storage atomically by commit. A batch
+ * is not thread-safe and must be closed after use.
+ * 
+ * @author liaoxuefeng
+ */
+public interface WriteBatch extends AutoCloseable {
+
+	void put(byte[] key, byte[] value);
+
+	void delete(byte[] key);
+
+	/**
+	 * Number of writes in batch.
+	 */
+	int size();
+
+	/**
+	 * Apply all writes at once, then clear the batch so it can be reused.
+	 * 
+	 * @param sync Wait until the writes are durable on disk.
+	 */
+	void commit(boolean sync);
+
+	@Override
+	void close();
+}
@@ -0,0 +1,488 @@
+package org.warpchain.tree;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.warpchain.util.ByteUtils;
+
+/**
+ * In-memory sparse merkle tree which keeps nodes and data values in off-heap
+ * slabs. Nodes are fixed-size records addressed by int id with hashes stored
+ * inline, so the tree adds no heap objects per leaf and is not scanned by GC.
+ * The root merkle hash is the same as SparseMerkleTree with the same hasher.
+ *
+ * Node records:
+ *
+ * <pre>
+ * full node: flags(1), path length(1), height(2), 16 child refs(64), merkle hash, packed path
+ * leaf node: flags(1), reserved(1), height(2), value position(8), value length(4), merkle hash, data hash
+ * </pre>
+ *
+ * A child ref is 0 if empty, id + 1 for full node and -(id + 1) for leaf node.
+ *
+ * This tree is not thread-safe.
+ *
+ * @author liaoxuefeng
+ */
+public class ArenaMerkleTree {
+
+	/**
+	 * Default size of each off-heap slab: 64 MB.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+
+	private static final int FLAGS = 0;
+	private static final int PATH_LENGTH = 1;
+	private static final int HEIGHT = 2;
+	private static final int CHILDREN = 4;
+	private static final int FULL_MERKLE = CHILDREN + 16 * 4;
+	private static final int VALUE_POSITION = 4;
+	private static final int VALUE_LENGTH = 12;
+	private static final int LEAF_MERKLE = 16;
+
+	private static final byte FLAG_DIRTY = 1;
+
+	private final MerkleHasher hasher;
+	private final int hashSize;
+	private final int treeHeight;
+	private final byte[][] DEFAULT_HASH_AT_HEIGHT;
+
+	private final NodeArena fullNodes;
+	private final NodeArena leafNodes;
+	private final ValueArena values;
+
+	/**
+	 * Ref of root full node at height 0.
+	 */
+	private final int root;
+
+	/**
+	 * Buffer to calculate merkle hash of a node.
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Off-heap tree using DSHA-256 as hash function.
+	 */
+	public ArenaMerkleTree() {
+		this(MerkleHasher.dsha256(), DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Off-heap tree using merkle hasher.
+	 *
+	 * @param hasher   The merkle hasher.
+	 * @param slabSize Size of each off-heap slab in bytes.
+	 */
+	public ArenaMerkleTree(MerkleHasher hasher, int slabSize) {
+		this.hasher = hasher;
+		this.hashSize = hasher.getHashSize();
+		this.treeHeight = 8 * this.hashSize;
+		DEFAULT_HASH_AT_HEIGHT = new byte[this.treeHeight + 1][];
+		DEFAULT_HASH_AT_HEIGHT[this.treeHeight] = hasher.hash(ByteUtils.emptyByteArray());
+		for (int i = this.treeHeight - 1; i >= 0; i--) {
+			DEFAULT_HASH_AT_HEIGHT[i] = hasher.hash(DEFAULT_HASH_AT_HEIGHT[i + 1], DEFAULT_HASH_AT_HEIGHT[i + 1]);
+		}
+		this.fullNodes = new NodeArena(FULL_MERKLE + 2 * this.hashSize, slabSize);
+		this.leafNodes = new NodeArena(LEAF_MERKLE + 2 * this.hashSize, slabSize);
+		this.values = new ValueArena(slabSize);
+		this.buffer = new byte[16 * this.hashSize];
+		this.root = newFullNode(0, ByteUtils.emptyByteArray(), 0);
+		commit(this.root);
+	}
+
+	public int getTreeHeight() {
+		return this.treeHeight;
+	}
+
+	public byte[] getDefaultHashAtHeight(int height) {
+		return DEFAULT_HASH_AT_HEIGHT[height];
+	}
+
+	public byte[] hash(byte[] data) {
+		return this.hasher.hash(data);
+	}
+
+	/**
+	 * Number of data in tree.
+	 */
+	public int size() {
+		return this.leafNodes.size();
+	}
+
+	/**
+	 * Total bytes of allocated off-heap slabs.
+	 */
+	public long getOffHeapSize() {
+		return this.fullNodes.getCapacity() + this.leafNodes.getCapacity() + this.values.getCapacity();
+	}
+
+	public void update(byte[] dataValue) {
+		update(this.hasher.hash(dataValue), dataValue);
+	}
+
+	void update(byte[] dataHash, byte[] dataValue) {
+		apply(dataHash, dataValue);
+		commit(this.root);
+	}
+
+	/**
+	 * Update tree by a batch of data. Merkle hash of each changed node is
+	 * calculated exactly once.
+	 *
+	 * @param dataValues Collection of data.
+	 */
+	public void updateAll(Collection<byte[]> dataValues) {
+		for (byte[] dataValue : dataValues) {
+			apply(this.hasher.hash(dataValue), dataValue);
+		}
+		commit(this.root);
+	}
+
+	private void apply(byte[] dataHash, byte[] dataValue) {
+		if (dataHash.length != this.hashSize) {
+			throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+		}
+		int updated = insert(this.root, dataHash, dataValue);
+		assert updated == this.root : "root is replaced.";
+	}
+
+	/**
+	 * Remove data from tree.
+	 *
+	 * @param dataHash Data hash as key.
+	 * @return True if data was found and removed.
+	 */
+	public boolean remove(byte[] dataHash) {
+		if (!contains(dataHash)) {
+			return false;
+		}
+		delete(this.root, dataHash);
+		commit(this.root);
+		return true;
+	}
+
+	public byte[] get(byte[] dataHash) {
+		int leaf = findLeaf(dataHash);
+		if (leaf == 0) {
+			return null;
+		}
+		int id = -leaf - 1;
+		ByteBuffer b = this.leafNodes.slab(id);
+		int o = this.leafNodes.offset(id);
+		return this.values.read(b.getLong(o + VALUE_POSITION), b.getInt(o + VALUE_LENGTH));
+	}
+
+	public boolean contains(byte[] dataHash) {
+		return findLeaf(dataHash) != 0;
+	}
+
+	public byte[] getRootMerkleHash() {
+		byte[] merkle = new byte[this.hashSize];
+		int id = this.root - 1;
+		this.fullNodes.slab(id).get(this.fullNodes.offset(id) + FULL_MERKLE, merkle);
+		return merkle;
+	}
+
+	public String getRootMerkleHashAsString() {
+		return ByteUtils.toHexString(getRootMerkleHash());
+	}
+
+	/**
+	 * Find ref of leaf by data hash, or 0 if not found.
+	 */
+	private int findLeaf(byte[] dataHash) {
+		if (dataHash.length != this.hashSize) {
+			throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+		}
+		int ref = this.root;
+		while (ref > 0) {
+			int id = ref - 1;
+			ByteBuffer b = this.fullNodes.slab(id);
+			int o = this.fullNodes.offset(id);
+			int pathLength = b.get(o + PATH_LENGTH) & 0xff;
+			// check shared path:
+			for (int i = b.getShort(o + HEIGHT) >> 2; i < pathLength; i++) {
+				if (pathNibble(b, o, i) != nibbleAt(dataHash, i)) {
+					return 0;
+				}
+			}
+			ref = b.getInt(o + CHILDREN + nibbleAt(dataHash, pathLength) * 4);
+		}
+		if (ref == 0) {
+			return 0;
+		}
+		int id = -ref - 1;
+		ByteBuffer b = this.leafNodes.slab(id);
+		int o = this.leafNodes.offset(id) + LEAF_MERKLE + this.hashSize;
+		for (int i = 0; i < this.hashSize; i++) {
+			if (b.get(o + i) != dataHash[i]) {
+				return 0;
+			}
+		}
+		return ref;
+	}
+
+	/**
+	 * Insert data into sub-tree and return ref of updated sub-tree.
+	 */
+	private int insert(int ref, byte[] dataHash, byte[] dataValue) {
+		if (ref > 0) {
+			int id = ref - 1;
+			ByteBuffer b = this.fullNodes.slab(id);
+			int o = this.fullNodes.offset(id);
+			int height = b.getShort(o + HEIGHT);
+			int pathLength = b.get(o + PATH_LENGTH) & 0xff;
+			int shared = height >> 2;
+			while (shared < pathLength && pathNibble(b, o, shared) == nibbleAt(dataHash, shared)) {
+				shared++;
+			}
+			if (shared == pathLength) {
+				int slot = o + CHILDREN + nibbleAt(dataHash, pathLength) * 4;
+				int child = b.getInt(slot);
+				int updated;
+				if (child == 0) {
+					updated = newLeafNode(pathLength * 4 + 4, dataHash, dataValue);
+				} else {
+					updated = insert(child, dataHash, dataValue);
+					if (updated == child && !isDirty(child)) {
+						return ref;
+					}
+				}
+				b.putInt(slot, updated);
+				b.put(o + FLAGS, FLAG_DIRTY);
+				return ref;
+			}
+			// split new parent at current height:
+			int parent = newFullNode(height, dataHash, shared);
+			setChild(parent, pathNibble(b, o, shared), ref);
+			b.putShort(o + HEIGHT, (short) (shared * 4 + 4));
+			b.put(o + FLAGS, FLAG_DIRTY);
+			setChild(parent, nibbleAt(dataHash, shared), newLeafNode(shared * 4 + 4, dataHash, dataValue));
+			return parent;
+		}
+		int id = -ref - 1;
+		ByteBuffer b = this.leafNodes.slab(id);
+		int o = this.leafNodes.offset(id);
+		int height = b.getShort(o + HEIGHT);
+		int shared = height >> 2;
+		int n = this.hashSize * 2;
+		while (shared < n && leafNibble(b, o, shared) == nibbleAt(dataHash, shared)) {
+			shared++;
+		}
+		if (shared == n) {
+			// data not change:
+			return ref;
+		}
+		int parent = newFullNode(height, dataHash, shared);
+		setChild(parent, leafNibble(b, o, shared), ref);
+		b.putShort(o + HEIGHT, (short) (shared * 4 + 4));
+		b.put(o + FLAGS, FLAG_DIRTY);
+		setChild(parent, nibbleAt(dataHash, shared), newLeafNode(shared * 4 + 4, dataHash, dataValue));
+		return parent;
+	}
+
+	/**
+	 * Delete existing data from sub-tree and return ref of updated sub-tree, or 0
+	 * if sub-tree becomes empty.
+	 */
+	private int delete(int ref, byte[] dataHash) {
+		if (ref < 0) {
+			this.leafNodes.free(-ref - 1);
+			return 0;
+		}
+		int id = ref - 1;
+		ByteBuffer b = this.fullNodes.slab(id);
+		int o = this.fullNodes.offset(id);
+		int height = b.getShort(o + HEIGHT);
+		int slot = o + CHILDREN + nibbleAt(dataHash, b.get(o + PATH_LENGTH) & 0xff) * 4;
+		b.putInt(slot, delete(b.getInt(slot), dataHash));
+		b.put(o + FLAGS, FLAG_DIRTY);
+		if (height == 0) {
+			// root node is never collapsed:
+			return ref;
+		}
+		int count = 0;
+		int single = 0;
+		for (int i = 0; i < 16; i++) {
+			int child = b.getInt(o + CHILDREN + i * 4);
+			if (child != 0) {
+				count++;
+				single = child;
+			}
+		}
+		if (count > 1) {
+			return ref;
+		}
+		// collapse single child to current height:
+		this.fullNodes.free(id);
+		if (count == 0) {
+			return 0;
+		}
+		NodeArena arena = single > 0 ? this.fullNodes : this.leafNodes;
+		int singleId = single > 0 ? single - 1 : -single - 1;
+		ByteBuffer sb = arena.slab(singleId);
+		int so = arena.offset(singleId);
+		sb.putShort(so + HEIGHT, (short) height);
+		sb.put(so + FLAGS, FLAG_DIRTY);
+		return single;
+	}
+
+	/**
+	 * Calculate merkle hash of dirty nodes in sub-tree.
+	 */
+	private void commit(int ref) {
+		if (ref < 0) {
+			commitLeaf(-ref - 1);
+			return;
+		}
+		int id = ref - 1;
+		ByteBuffer b = this.fullNodes.slab(id);
+		int o = this.fullNodes.offset(id);
+		if (b.get(o + FLAGS) != FLAG_DIRTY) {
+			return;
+		}
+		for (int i = 0; i < 16; i++) {
+			int child = b.getInt(o + CHILDREN + i * 4);
+			if (child != 0) {
+				commit(child);
+			}
+		}
+		// all children are committed, so the buffer is free to use:
+		final int hs = this.hashSize;
+		final byte[] buf = this.buffer;
+		int mask = 0;
+		for (int i = 0; i < 16; i++) {
+			int child = b.getInt(o + CHILDREN + i * 4);
+			if (child > 0) {
+				this.fullNodes.slab(child - 1).get(this.fullNodes.offset(child - 1) + FULL_MERKLE, buf, i * hs, hs);
+				mask |= 1 << i;
+			} else if (child < 0) {
+				this.leafNodes.slab(-child - 1).get(this.leafNodes.offset(-child - 1) + LEAF_MERKLE, buf, i * hs,
+						hs);
+				mask |= 1 << i;
+			}
+		}
+		int pathLength = b.get(o + PATH_LENGTH) & 0xff;
+		int subtreeHeight = pathLength * 4;
+		// 16 hashes -> 8 -> 4 -> 2 -> 1 in place:
+		for (int width = 8, h = subtreeHeight + 4; width > 0; width >>= 1, h--) {
+			int upper = 0;
+			byte[] defaultHash = DEFAULT_HASH_AT_HEIGHT[h];
+			for (int i = 0; i < width; i++) {
+				int l = i << 1;
+				int r = l + 1;
+				boolean hasLeft = (mask & (1 << l)) != 0;
+				boolean hasRight = (mask & (1 << r)) != 0;
+				if (hasLeft || hasRight) {
+					this.hasher.hash(hasLeft ? buf : defaultHash, hasLeft ? l * hs : 0, hasRight ? buf : defaultHash,
+							hasRight ? r * hs : 0, buf, i * hs);
+					upper |= 1 << i;
+				}
+			}
+			mask = upper;
+		}
+		if (mask == 0) {
+			System.arraycopy(DEFAULT_HASH_AT_HEIGHT[subtreeHeight], 0, buf, 0, hs);
+		}
+		// continue calculate merkle for shared path:
+		int height = b.getShort(o + HEIGHT);
+		int pathOffset = o + FULL_MERKLE + hs;
+		for (int h = subtreeHeight; h > height; h--) {
+			byte[] sibling = DEFAULT_HASH_AT_HEIGHT[h];
+			int bit = (b.get(pathOffset + ((h - 1) >> 3)) >> (7 - ((h - 1) & 7))) & 1;
+			if (bit == 0) {
+				this.hasher.hash(buf, 0, sibling, 0, buf, 0);
+			} else {
+				this.hasher.hash(sibling, 0, buf, 0, buf, 0);
+			}
+		}
+		b.put(o + FULL_MERKLE, buf, 0, hs);
+		b.put(o + FLAGS, (byte) 0);
+	}
+
+	private void commitLeaf(int id) {
+		ByteBuffer b = this.leafNodes.slab(id);
+		int o = this.leafNodes.offset(id);
+		if (b.get(o + FLAGS) != FLAG_DIRTY) {
+			return;
+		}
+		final int hs = this.hashSize;
+		final byte[] buf = this.buffer;
+		// data hash at offset hs, merkle at offset 0:
+		b.get(o + LEAF_MERKLE + hs, buf, hs, hs);
+		System.arraycopy(buf, hs, buf, 0, hs);
+		int height = b.getShort(o + HEIGHT);
+		for (int h = this.treeHeight; h > height; h--) {
+			byte[] sibling = DEFAULT_HASH_AT_HEIGHT[h];
+			if (ByteUtils.bitAt(buf, hs * 8 + h - 1) == 0) {
+				this.hasher.hash(buf, 0, sibling, 0, buf, 0);
+			} else {
+				this.hasher.hash(sibling, 0, buf, 0, buf, 0);
+			}
+		}
+		b.put(o + LEAF_MERKLE, buf, 0, hs);
+		b.put(o + FLAGS, (byte) 0);
+	}
+
+	private boolean isDirty(int ref) {
+		if (ref > 0) {
+			return this.fullNodes.slab(ref - 1).get(this.fullNodes.offset(ref - 1) + FLAGS) == FLAG_DIRTY;
+		}
+		return this.leafNodes.slab(-ref - 1).get(this.leafNodes.offset(-ref - 1) + FLAGS) == FLAG_DIRTY;
+	}
+
+	/**
+	 * Create full node with path of first nibbles of data hash.
+	 */
+	private int newFullNode(int height, byte[] dataHash, int pathLength) {
+		int id = this.fullNodes.allocate();
+		ByteBuffer b = this.fullNodes.slab(id);
+		int o = this.fullNodes.offset(id);
+		b.put(o + FLAGS, FLAG_DIRTY);
+		b.put(o + PATH_LENGTH, (byte) pathLength);
+		b.putShort(o + HEIGHT, (short) height);
+		b.put(o + FULL_MERKLE + this.hashSize, dataHash, 0, (pathLength + 1) >> 1);
+		return id + 1;
+	}
+
+	private int newLeafNode(int height, byte[] dataHash, byte[] dataValue) {
+		long position = this.values.append(dataValue);
+		int id = this.leafNodes.allocate();
+		ByteBuffer b = this.leafNodes.slab(id);
+		int o = this.leafNodes.offset(id);
+		b.put(o + FLAGS, FLAG_DIRTY);
+		b.putShort(o + HEIGHT, (short) height);
+		b.putLong(o + VALUE_POSITION, position);
+		b.putInt(o + VALUE_LENGTH, dataValue.length);
+		b.put(o + LEAF_MERKLE + this.hashSize, dataHash);
+		return -id - 1;
+	}
+
+	private void setChild(int ref, int index, int child) {
+		int id = ref - 1;
+		this.fullNodes.slab(id).putInt(this.fullNodes.offset(id) + CHILDREN + index * 4, child);
+	}
+
+	private int pathNibble(ByteBuffer b, int o, int index) {
+		return nibble(b.get(o + FULL_MERKLE + this.hashSize + (index >> 1)), index);
+	}
+
+	private int leafNibble(ByteBuffer b, int o, int index) {
+		return nibble(b.get(o + LEAF_MERKLE + this.hashSize + (index >> 1)), index);
+	}
+
+	private static int nibbleAt(byte[] bs, int index) {
+		return nibble(bs[index >> 1], index);
+	}
+
+	private static int nibble(byte b, int index) {
+		return (index & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ArenaMerkleTree(height=%s, size=%s, root=%s)", this.treeHeight, size(),
+				getRootMerkleHashAsString());
+	}
+}
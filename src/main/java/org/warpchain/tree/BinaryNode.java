@@ -0,0 +1,92 @@
+package org.warpchain.tree;
+
+/**
+ * Virtual node of the binary sparse merkle tree at a specific height, which is
+ * mapped to the full node or leaf node that covers it. Empty sub-tree is
+ * represented as null.
+ *
+ * @author liaoxuefeng
+ */
+final class BinaryNode {
+
+	/**
+	 * The full node or leaf node which covers this binary node.
+	 */
+	final Node node;
+
+	/**
+	 * Height of this binary node.
+	 */
+	final int height;
+
+	/**
+	 * Index of binary node in the 16-children sub-tree of full node at this
+	 * height, or 0 if not in the 16-children sub-tree.
+	 */
+	final int group;
+
+	private BinaryNode(Node node, int height, int group) {
+		this.node = node;
+		this.height = height;
+		this.group = group;
+	}
+
+	/**
+	 * Get binary node at the height of full node, or null if it has no child.
+	 */
+	static BinaryNode of(FullNode node) {
+		if (!node.hasChildInGroup(node.getSubtreeHeight(), 0)) {
+			return null;
+		}
+		return new BinaryNode(node, node.getHeight(), 0);
+	}
+
+	/**
+	 * Get left (bit = 0) or right (bit = 1) child, or null if child is empty.
+	 */
+	BinaryNode child(TreeInfo tree, int bit) {
+		int childHeight = this.height + 1;
+		if (this.node instanceof LeafNode) {
+			LeafNode leaf = (LeafNode) this.node;
+			return Node.bitAt(leaf.getPath(), this.height) == bit ? new BinaryNode(leaf, childHeight, 0) : null;
+		}
+		FullNode full = (FullNode) this.node;
+		if (this.height < full.getSubtreeHeight()) {
+			return Node.bitAt(full.getPath(), this.height) == bit ? new BinaryNode(full, childHeight, 0) : null;
+		}
+		int childGroup = (this.group << 1) + bit;
+		if (childHeight < full.getChildHeight()) {
+			return full.hasChildInGroup(childHeight, childGroup) ? new BinaryNode(full, childHeight, childGroup)
+					: null;
+		}
+		Node child = full.resolveChild(tree, childGroup);
+		return child == null ? null : new BinaryNode(child, childHeight, 0);
+	}
+
+	/**
+	 * Get the only leaf under this binary node, or null if there are more nodes.
+	 */
+	LeafNode loneLeaf(TreeInfo tree) {
+		if (this.node instanceof LeafNode) {
+			return (LeafNode) this.node;
+		}
+		FullNode full = (FullNode) this.node;
+		if (this.height < full.getSubtreeHeight()) {
+			return null;
+		}
+		int index = full.loneLeafIndex(this.height, this.group);
+		return index < 0 ? null : (LeafNode) full.resolveChild(tree, index);
+	}
+
+	byte[] getMerkleHash(TreeInfo tree) {
+		if (this.node instanceof LeafNode) {
+			return ((LeafNode) this.node).getMerkleHashAt(tree, this.height);
+		}
+		return ((FullNode) this.node).getMerkleHashAt(tree, this.height, this.group);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BinaryNode(height=%s, group=%s, node=%s)", this.height, this.group, this.node);
+	}
+}
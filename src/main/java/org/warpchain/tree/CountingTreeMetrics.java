@@ -0,0 +1,163 @@
+package org.warpchain.tree;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Thread-safe metrics which count tree operations, and can be registered as
+ * MXBean.
+ *
+ * @author liaoxuefeng
+ */
+public class CountingTreeMetrics implements TreeMetrics, TreeMetricsMXBean {
+
+	private final LongAdder hashes = new LongAdder();
+	private final LongAdder fullNodes = new LongAdder();
+	private final LongAdder leafNodes = new LongAdder();
+	private final LongAdder splits = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder totalPathLength = new LongAdder();
+	private final LongAccumulator maxPathLength = new LongAccumulator(Math::max, 0);
+	private final Histogram updateLatency = new Histogram();
+	private final Histogram commitLatency = new Histogram();
+
+	@Override
+	public void onHash() {
+		hashes.increment();
+	}
+
+	@Override
+	public void onNodeCreated(NodeType type) {
+		if (type == NodeType.LEAF) {
+			leafNodes.increment();
+		} else {
+			fullNodes.increment();
+		}
+	}
+
+	@Override
+	public void onNodeSplit() {
+		splits.increment();
+	}
+
+	@Override
+	public void onUpdate(int pathLength, long nanos) {
+		updates.increment();
+		totalPathLength.add(pathLength);
+		maxPathLength.accumulate(pathLength);
+		updateLatency.record(nanos);
+	}
+
+	@Override
+	public void onCommit(int updates, long nanos) {
+		commits.increment();
+		commitLatency.record(nanos);
+	}
+
+	@Override
+	public long getHashCount() {
+		return hashes.sum();
+	}
+
+	@Override
+	public long getFullNodeCount() {
+		return fullNodes.sum();
+	}
+
+	@Override
+	public long getLeafNodeCount() {
+		return leafNodes.sum();
+	}
+
+	@Override
+	public long getSplitCount() {
+		return splits.sum();
+	}
+
+	@Override
+	public long getUpdateCount() {
+		return updates.sum();
+	}
+
+	@Override
+	public long getCommitCount() {
+		return commits.sum();
+	}
+
+	@Override
+	public double getMeanPathLength() {
+		long n = updates.sum();
+		return n == 0 ? 0 : (double) totalPathLength.sum() / n;
+	}
+
+	@Override
+	public long getMaxPathLength() {
+		return maxPathLength.get();
+	}
+
+	@Override
+	public long getUpdateLatencyP50Nanos() {
+		return updateLatency.percentile(0.5);
+	}
+
+	@Override
+	public long getUpdateLatencyP99Nanos() {
+		return updateLatency.percentile(0.99);
+	}
+
+	@Override
+	public long getCommitLatencyP50Nanos() {
+		return commitLatency.percentile(0.5);
+	}
+
+	@Override
+	public long getCommitLatencyP99Nanos() {
+		return commitLatency.percentile(0.99);
+	}
+
+	@Override
+	public void reset() {
+		hashes.reset();
+		fullNodes.reset();
+		leafNodes.reset();
+		splits.reset();
+		updates.reset();
+		commits.reset();
+		totalPathLength.reset();
+		maxPathLength.reset();
+		updateLatency.reset();
+		commitLatency.reset();
+	}
+
+	/**
+	 * Register as MXBean to platform MBean server.
+	 *
+	 * @param name Name of the tree.
+	 * @return ObjectName of registered MXBean.
+	 */
+	public ObjectName register(String name) {
+		try {
+			ObjectName objectName = new ObjectName("org.warpchain:type=TreeMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Unregister from platform MBean server.
+	 */
+	public void unregister(ObjectName objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.warpchain.tree;
+
+import java.nio.charset.StandardCharsets;
+
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Data which is added, removed or changed between two versions of tree.
+ *
+ * @author liaoxuefeng
+ */
+public class DiffEntry {
+
+	private final byte[] dataHash;
+
+	/**
+	 * Data value in old version, or null if added.
+	 */
+	private final byte[] oldValue;
+
+	/**
+	 * Data value in new version, or null if removed.
+	 */
+	private final byte[] newValue;
+
+	DiffEntry(byte[] dataHash, byte[] oldValue, byte[] newValue) {
+		this.dataHash = dataHash;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+
+	public byte[] getDataHash() {
+		return this.dataHash;
+	}
+
+	public byte[] getOldValue() {
+		return this.oldValue;
+	}
+
+	public byte[] getNewValue() {
+		return this.newValue;
+	}
+
+	public boolean isAdded() {
+		return this.oldValue == null;
+	}
+
+	public boolean isRemoved() {
+		return this.newValue == null;
+	}
+
+	private static String valueAsString(byte[] value) {
+		return value == null ? "null" : new String(value, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("DiffEntry(dataHash=%s, oldValue=%s, newValue=%s)", ByteUtils.toHexString(this.dataHash),
+				valueAsString(this.oldValue), valueAsString(this.newValue));
+	}
+}
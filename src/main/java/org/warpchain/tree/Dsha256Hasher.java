@@ -0,0 +1,111 @@
+package org.warpchain.tree;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.warpchain.util.HashUtils;
+
+/**
+ * DSHA-256 merkle hasher. Each thread reuses its own digest and buffer of the
+ * first round, so hashing two children allocates nothing. Multiple pairs are
+ * hashed in vector lanes if HashUtils supports it.
+ *
+ * @author liaoxuefeng
+ */
+final class Dsha256Hasher implements MerkleHasher {
+
+	static final Dsha256Hasher INSTANCE = new Dsha256Hasher();
+
+	private static final int HASH_SIZE = 32;
+
+	private static final ThreadLocal<Context> CONTEXT = ThreadLocal.withInitial(Context::new);
+
+	private Dsha256Hasher() {
+	}
+
+	@Override
+	public int getHashSize() {
+		return HASH_SIZE;
+	}
+
+	@Override
+	public byte[] hash(byte[] data) {
+		Context ctx = CONTEXT.get();
+		ctx.digest.update(data);
+		byte[] output = new byte[HASH_SIZE];
+		ctx.finish(output, 0);
+		return output;
+	}
+
+	@Override
+	public void hash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outputOffset) {
+		Context ctx = CONTEXT.get();
+		ctx.digest.update(left, leftOffset, HASH_SIZE);
+		ctx.digest.update(right, rightOffset, HASH_SIZE);
+		ctx.finish(output, outputOffset);
+	}
+
+	@Override
+	public byte[] hash(byte[] left, byte[] right) {
+		Context ctx = CONTEXT.get();
+		ctx.digest.update(left);
+		ctx.digest.update(right);
+		byte[] output = new byte[HASH_SIZE];
+		ctx.finish(output, 0);
+		return output;
+	}
+
+	@Override
+	public int getLanes() {
+		return HashUtils.isSha256x8Accelerated() ? 8 : 1;
+	}
+
+	@Override
+	public byte[][] hash(byte[][] lefts, byte[][] rights, int count) {
+		if (count == 1 || !HashUtils.isSha256x8Accelerated()) {
+			return MerkleHasher.super.hash(lefts, rights, count);
+		}
+		byte[][] inputs = new byte[count][HASH_SIZE << 1];
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(lefts[i], 0, inputs[i], 0, HASH_SIZE);
+			System.arraycopy(rights[i], 0, inputs[i], HASH_SIZE, HASH_SIZE);
+		}
+		return HashUtils.dsha256x8(inputs, count);
+	}
+
+	@Override
+	public byte[][] hash(byte[][] data, int count) {
+		if (count == 1 || !HashUtils.isSha256x8Accelerated()) {
+			return MerkleHasher.super.hash(data, count);
+		}
+		return HashUtils.dsha256x8(data, count);
+	}
+
+	static class Context {
+
+		final MessageDigest digest;
+		final byte[] round1 = new byte[HASH_SIZE];
+
+		Context() {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Finish first round and write second round into output.
+		 */
+		void finish(byte[] output, int outputOffset) {
+			try {
+				this.digest.digest(this.round1, 0, HASH_SIZE);
+				this.digest.update(this.round1);
+				this.digest.digest(output, outputOffset, HASH_SIZE);
+			} catch (DigestException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
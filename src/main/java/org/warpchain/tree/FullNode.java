@@ -1,18 +1,26 @@
 package org.warpchain.tree;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.warpchain.core.NibbleString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.warpchain.core.NibblePath;
 import org.warpchain.util.ByteUtils;
 
 public class FullNode extends Node {
 
-	private static final Logger logger = LoggerFactory.getLogger(FullNode.class);
+	/**
+	 * Dirty children of full nodes under this height are committed as fork/join
+	 * tasks. Height 8 means the root and its 16 sub-trees, which gives up to 256
+	 * independent tasks.
+	 */
+	static final int PARALLEL_COMMIT_HEIGHT = 8;
 
 	/**
 	 * Path from root to current node.
 	 */
-	private final NibbleString path;
+	private final NibblePath path;
 
 	/**
 	 * Height of this node.
@@ -24,72 +32,342 @@ public class FullNode extends Node {
 	 */
 	private byte[] merkleHash;
 
+	/**
+	 * Is merkle hash out of date.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Is this node saved in node store.
+	 */
+	private boolean persisted;
+
+	/**
+	 * Is this node immutable.
+	 */
+	private boolean frozen;
+
 	/**
 	 * 16 nodes represents 4-depth sub-tree
 	 */
 	private Node[] children;
 
-	FullNode(TreeInfo tree, int height, NibbleString path) {
+	/**
+	 * Cached hashes of the 15 binary nodes in 16-children sub-tree indexed from 1
+	 * (root) to 15, with null as empty. Null if not calculated.
+	 */
+	private byte[][] levels;
+
+	/**
+	 * Bit i is set if child i is changed since last commit.
+	 */
+	private int dirtyChildren;
+
+	FullNode(TreeInfo tree, int height, NibblePath path) {
 		assert height >= 0 && height < tree.getTreeHeight() && (height & 0x3) == 0
 				: "invalid height for full node: " + height;
-		assert path.length() <= (height << 2) : "invalid path length for full node: " + path;
+		assert path.length() >= (height >> 2) : "invalid path length for full node: " + path;
 
 		this.height = height;
 		this.path = path;
 		this.merkleHash = tree.getDefaultHashAtHeight(height);
+		this.dirty = false;
+		this.persisted = false;
+		this.frozen = false;
 		this.children = null;
+		tree.getMetrics().onNodeCreated(NodeType.FULL);
+	}
+
+	/**
+	 * Construct a full node loaded from node store.
+	 */
+	FullNode(TreeInfo tree, int height, NibblePath path, byte[] merkleHash, Node[] children) {
+		this.height = height;
+		this.path = path;
+		this.dirty = false;
+		this.merkleHash = merkleHash;
+		this.persisted = true;
+		this.frozen = true;
+		this.children = children;
+	}
+
+	int getHeight() {
+		return this.height;
+	}
+
+	NibblePath getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Height of the 16-children sub-tree root, which is the end of shared path.
+	 */
+	int getSubtreeHeight() {
+		return this.path.length() * 4;
+	}
+
+	/**
+	 * Height of all children of this node.
+	 */
+	int getChildHeight() {
+		return this.path.length() * 4 + 4;
 	}
 
 	@Override
 	public byte[] getMerkleHash() {
+		assert !this.dirty : "merkle hash is not committed: " + this;
 		return merkleHash;
 	}
 
 	@Override
-	public Node update(TreeInfo tree, NibbleString dataPath, byte[] dataHash, byte[] dataValue) {
-		NibbleString prefix = NibbleString.sharedPrefix(this.path, dataPath);
-		logger.info("shared path prefix: {}", prefix);
-		if (prefix.length() == this.path.length()) {
-			logger.info("updated data path has same prefix for current path, just update child node.");
+	public boolean isDirty() {
+		return this.dirty;
+	}
+
+	@Override
+	public boolean isPersisted() {
+		return this.persisted;
+	}
+
+	void markPersisted() {
+		assert !this.dirty : "cannot persist dirty node: " + this;
+		this.persisted = true;
+		this.frozen = true;
+	}
+
+	@Override
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	@Override
+	public void freeze() {
+		if (this.frozen) {
+			return;
+		}
+		assert !this.dirty : "cannot freeze dirty node: " + this;
+		if (this.children != null) {
+			for (Node child : this.children) {
+				if (child != null) {
+					child.freeze();
+				}
+			}
+		}
+		this.frozen = true;
+	}
+
+	@Override
+	public void commit(TreeInfo tree) {
+		if (!this.dirty) {
+			return;
+		}
+		if (this.children != null) {
+			List<LeafNode> leaves = null;
+			for (Node child : this.children) {
+				if (child != null && child.isDirty()) {
+					if (child instanceof LeafNode && tree.getHashLanes() > 1) {
+						if (leaves == null) {
+							leaves = new ArrayList<>(16);
+						}
+						leaves.add((LeafNode) child);
+					} else {
+						child.commit(tree);
+					}
+				}
+			}
+			if (leaves != null) {
+				LeafNode.commitAll(tree, leaves);
+			}
+		}
+		this.updateMerkleHash(tree);
+		this.dirty = false;
+	}
+
+	/**
+	 * Commit dirty children as fork/join tasks then combine their merkle hashes.
+	 * Must be called in a ForkJoinPool.
+	 */
+	void commitParallel(TreeInfo tree) {
+		if (!this.dirty) {
+			return;
+		}
+		if (this.children != null) {
+			List<CommitTask> tasks = new ArrayList<>(16);
+			List<LeafNode> leaves = new ArrayList<>(16);
+			for (Node child : this.children) {
+				if (child != null && child.isDirty()) {
+					if (child instanceof LeafNode && tree.getHashLanes() > 1) {
+						leaves.add((LeafNode) child);
+					} else {
+						tasks.add(new CommitTask(tree, child));
+					}
+				}
+			}
+			if (!leaves.isEmpty()) {
+				LeafNode.commitAll(tree, leaves);
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+		this.updateMerkleHash(tree);
+		this.dirty = false;
+	}
+
+	static class CommitTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TreeInfo tree;
+		private final Node node;
+
+		CommitTask(TreeInfo tree, Node node) {
+			this.tree = tree;
+			this.node = node;
+		}
+
+		@Override
+		protected void compute() {
+			if (node instanceof FullNode && ((FullNode) node).height < PARALLEL_COMMIT_HEIGHT) {
+				((FullNode) node).commitParallel(tree);
+			} else {
+				node.commit(tree);
+			}
+		}
+	}
+
+	@Override
+	public Node update(TreeInfo tree, NibblePath dataPath, byte[] dataHash, byte[] dataValue) {
+		int shared = NibblePath.sharedPrefixLength(this.path, dataPath);
+		if (shared == this.path.length()) {
 			int childHeight = this.path.length() * 4 + 4;
 			int childHalfByteIndex = childHeight >> 2;
 			int childSlotIndex = dataPath.valueAt(childHalfByteIndex - 1);
-			Node child = this.getChild(childSlotIndex);
+			Node child = this.resolveChild(tree, childSlotIndex);
+			Node updated;
 			if (child == null) {
 				// no child node, create leaf node:
-				Node created = new LeafNode(tree, childHeight, dataPath, dataHash, dataValue);
-				logger.info("set new node at slot {}: {}", childSlotIndex, created);
-				this.setChild(childSlotIndex, created);
-				this.updateMerkleHash(tree);
-				logger.info("update merkle to {}: {}", ByteUtils.toHexString(this.merkleHash), this);
+				updated = new LeafNode(tree, childHeight, dataPath, dataHash, dataValue);
 			} else {
 				// child node exist, update:
-				Node updated = child.update(tree, dataPath, dataHash, dataValue);
-				logger.info("set updated node at slot {}: {}", childSlotIndex, updated);
-				this.setChild(childSlotIndex, updated);
-				this.updateMerkleHash(tree);
-				logger.info("update merkle to {}: {}", ByteUtils.toHexString(this.merkleHash), this);
+				updated = child.update(tree, dataPath, dataHash, dataValue);
+				if (updated == child && !updated.isDirty()) {
+					return this;
+				}
 			}
-			return this;
+			// frozen node is shared by other versions or node store:
+			FullNode target = this.frozen ? this.copy(tree) : this;
+			if (target != this) {
+				tree.discardNode(this);
+			}
+			target.setChild(childSlotIndex, updated);
+			return target;
 		}
-		FullNode parent = new FullNode(tree, this.height, prefix);
-		logger.info("cannot update child node direct. split new parent node for path {}: {}", prefix, parent);
-		FullNode currentChild = new FullNode(tree, prefix.length() * 4 + 4, this.path);
-		logger.info("copy and modify current node to new full node: {}", currentChild);
+		tree.getMetrics().onNodeSplit();
+		FullNode parent = new FullNode(tree, this.height, this.path.substring(0, shared));
+		FullNode currentChild = new FullNode(tree, shared * 4 + 4, this.path);
 		copyChildren(this, currentChild);
-		currentChild.updateMerkleHash(tree);
-		int currentChildSlotIndex = this.path.valueAt(prefix.length());
+		currentChild.dirty = true;
+		int currentChildSlotIndex = this.path.valueAt(shared);
 		parent.setChild(currentChildSlotIndex, currentChild);
 
 		// create new child LeafNode:
-		LeafNode leaf = new LeafNode(tree, prefix.length() * 4 + 4, dataPath, dataHash, dataValue);
-		logger.info("add new leaf node: {}", leaf);
-		int newLeafSlotIndex = dataPath.valueAt(prefix.length());
+		LeafNode leaf = new LeafNode(tree, shared * 4 + 4, dataPath, dataHash, dataValue);
+		int newLeafSlotIndex = dataPath.valueAt(shared);
 		parent.setChild(newLeafSlotIndex, leaf);
-		parent.updateMerkleHash(tree);
+		tree.discardNode(this);
 		return parent;
 	}
 
+	@Override
+	public Node remove(TreeInfo tree, NibblePath dataPath) {
+		if (!dataPath.startsWith(this.path.substring(this.height >> 2), this.height >> 2)) {
+			return this;
+		}
+		int childSlotIndex = dataPath.valueAt(this.path.length());
+		Node child = this.resolveChild(tree, childSlotIndex);
+		if (child == null) {
+			return this;
+		}
+		Node updated = child.remove(tree, dataPath);
+		if (updated == child && !updated.isDirty()) {
+			return this;
+		}
+		FullNode target = this.frozen ? this.copy(tree) : this;
+		if (target != this) {
+			tree.discardNode(this);
+		}
+		target.setChild(childSlotIndex, updated);
+		int count = 0;
+		int lastIndex = -1;
+		for (int i = 0; i < 16; i++) {
+			if (target.children[i] != null) {
+				count++;
+				lastIndex = i;
+			}
+		}
+		if (count == 0) {
+			target.children = null;
+		}
+		if (this.height == 0 || count > 1) {
+			// root node is never collapsed:
+			return target;
+		}
+		if (count == 0) {
+			return null;
+		}
+		// collapse single child to current height:
+		Node single = target.resolveChild(tree, lastIndex);
+		tree.discardNode(single);
+		if (single instanceof LeafNode) {
+			return ((LeafNode) single).moveTo(tree, this.height);
+		}
+		FullNode singleFull = (FullNode) single;
+		FullNode collapsed = new FullNode(tree, this.height, singleFull.path);
+		copyChildren(singleFull, collapsed);
+		collapsed.dirty = true;
+		return collapsed;
+	}
+
+	/**
+	 * Replace leaf of data path whose value is moved in value log. The leaf is
+	 * unchanged if its value pointer is not the old pointer.
+	 */
+	Node relocateValue(TreeInfo tree, NibblePath dataPath, long from, long to) {
+		if (!dataPath.startsWith(this.path)) {
+			return this;
+		}
+		int childSlotIndex = dataPath.valueAt(this.path.length());
+		Node child = this.resolveChild(tree, childSlotIndex);
+		Node updated;
+		if (child instanceof FullNode) {
+			updated = ((FullNode) child).relocateValue(tree, dataPath, from, to);
+		} else if (child instanceof LeafNode && ((LeafNode) child).getPath().equals(dataPath)
+				&& ((LeafNode) child).getValuePointer() == from) {
+			tree.discardNode(child);
+			updated = ((LeafNode) child).relocateTo(tree, to);
+		} else {
+			return this;
+		}
+		if (updated == child) {
+			return this;
+		}
+		FullNode target = this.frozen ? this.copy(tree) : this;
+		if (target != this) {
+			tree.discardNode(this);
+		}
+		target.setChild(childSlotIndex, updated);
+		return target;
+	}
+
+	private FullNode copy(TreeInfo tree) {
+		FullNode copied = new FullNode(tree, this.height, this.path);
+		copyChildren(this, copied);
+		copied.merkleHash = this.merkleHash;
+		return copied;
+	}
+
+	/**
+	 * Copy children with cached hashes, which only depend on children and path.
+	 */
 	private void copyChildren(FullNode fromNode, FullNode toNode) {
 		if (fromNode.children == null) {
 			toNode.children = null;
@@ -97,6 +375,10 @@ public class FullNode extends Node {
 			toNode.children = new Node[16];
 			System.arraycopy(fromNode.children, 0, toNode.children, 0, 16);
 		}
+		if (fromNode.levels != null) {
+			toNode.levels = fromNode.levels.clone();
+			toNode.dirtyChildren = fromNode.dirtyChildren;
+		}
 	}
 
 	Node getChild(int index) {
@@ -107,147 +389,236 @@ public class FullNode extends Node {
 		return this.children[index];
 	}
 
-	void setChild(int index, Node child) {
-		assert index >= 0 && index < 16 : "Invalid child index: " + index;
-		if (this.children == null) {
-			this.children = new Node[16];
+	/**
+	 * Get merkle hash of the binary sub-tree at height. Group is the index of
+	 * binary node in the 16-children sub-tree at that height, and is ignored on
+	 * the shared path.
+	 */
+	byte[] getMerkleHashAt(TreeInfo tree, int height, int group) {
+		assert height >= this.height && height < getChildHeight() : "invalid height: " + height;
+		if (height == this.height) {
+			return getMerkleHash();
 		}
-		this.children[index] = child;
+		int subtreeHeight = getSubtreeHeight();
+		if (height > subtreeHeight) {
+			byte[] merkle = computeGroupHash(tree, height, group);
+			return merkle == null ? tree.getDefaultHashAtHeight(height) : merkle;
+		}
+		byte[] merkle = computeGroupHash(tree, subtreeHeight, 0);
+		if (merkle == null) {
+			merkle = tree.getDefaultHashAtHeight(subtreeHeight);
+		}
+		return hashPath(tree, this.path, merkle, subtreeHeight, height);
 	}
 
-	void updateMerkleHash(TreeInfo tree) {
-		int subtreeHeight = this.path.length() * 4;
+	/**
+	 * Is there any child under the binary node of the 16-children sub-tree.
+	 */
+	boolean hasChildInGroup(int height, int group) {
 		if (this.children == null) {
-			this.merkleHash = tree.getDefaultHashAtHeight(subtreeHeight);
+			return false;
 		}
+		if (this.levels != null && !this.dirty && height < getChildHeight()) {
+			return this.levels[(1 << (height - getSubtreeHeight())) + group] != null;
+		}
+		int shift = getChildHeight() - height;
+		int start = group << shift;
+		int end = (group + 1) << shift;
+		for (int i = start; i < end; i++) {
+			if (this.children[i] != null) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-		// init 16 hashes, set null if default:
-		byte[][] merkles16 = new byte[16][];
-		for (int i = 0; i < 16; i++) {
-			Node node = this.children[i];
-			merkles16[i] = node == null ? null : node.getMerkleHash();
-			if (merkles16[i] != null) {
-				logger.info("for subtree: 16 nodes: {} merkle = {}", i, ByteUtils.toHexString(merkles16[i]));
+	/**
+	 * Calculate merkle hash of binary node in 16-children sub-tree, or null if
+	 * it is empty.
+	 */
+	private byte[] computeGroupHash(TreeInfo tree, int height, int group) {
+		int childHeight = getChildHeight();
+		if (height == childHeight) {
+			Node child = getChild(group);
+			return child == null ? null : child.getMerkleHash();
+		}
+		if (this.levels != null && !this.dirty) {
+			return this.levels[(1 << (height - getSubtreeHeight())) + group];
+		}
+		if (tree.isCompactLeaf()) {
+			Node lone = loneLeaf(height, group);
+			if (lone != null) {
+				return lone.getMerkleHash();
 			}
 		}
+		byte[] left = computeGroupHash(tree, height + 1, group << 1);
+		byte[] right = computeGroupHash(tree, height + 1, (group << 1) + 1);
+		if (left == null && right == null) {
+			return null;
+		}
+		if (left == null) {
+			left = tree.getDefaultHashAtHeight(height + 1);
+		}
+		if (right == null) {
+			right = tree.getDefaultHashAtHeight(height + 1);
+		}
+		return tree.generateMerkleHash(left, right);
+	}
 
-		// 16 hashes -> 8 hashes:
-		int merkleHeight = subtreeHeight + 4;
-		byte[][] merkles8 = new byte[8][];
-		for (int i = 0; i < 8; i++) {
-			int n = i << 1;
-			byte[] left = merkles16[n];
-			byte[] right = merkles16[n + 1];
-			if (left == null && right == null) {
-				merkles8[i] = null;
-			} else {
-				if (left == null) {
-					left = tree.getDefaultHashAtHeight(merkleHeight);
-				}
-				if (right == null) {
-					right = tree.getDefaultHashAtHeight(merkleHeight);
-				}
-				merkles8[i] = tree.generateMerkleHash(left, right);
-				logger.info("for subtree: 8 nodes: {} merkle = {}", i, ByteUtils.toHexString(merkles8[i]));
+	/**
+	 * Get child node and load it from node store if necessary.
+	 */
+	Node resolveChild(TreeInfo tree, int index) {
+		Node child = getChild(index);
+		if (child instanceof HashNode) {
+			Node loaded = tree.loadNode(child.getMerkleHash(), isLeaf(child));
+			if (loaded instanceof LeafNode && ((LeafNode) loaded).getHeight() != getChildHeight()) {
+				// compact leaf has same merkle hash at any height:
+				return ((LeafNode) loaded).loadedAt(tree, getChildHeight());
 			}
+			return loaded;
 		}
+		return child;
+	}
 
-		// 8 hashes -> 4 hashes:
-		merkleHeight--;
-		byte[][] merkles4 = new byte[4][];
-		for (int i = 0; i < 4; i++) {
-			int n = i << 1;
-			byte[] left = merkles8[n];
-			byte[] right = merkles8[n + 1];
-			if (left == null && right == null) {
-				merkles4[i] = null;
-			} else {
-				if (left == null) {
-					left = tree.getDefaultHashAtHeight(merkleHeight);
-				}
-				if (right == null) {
-					right = tree.getDefaultHashAtHeight(merkleHeight);
+	static boolean isLeaf(Node node) {
+		return node instanceof LeafNode || (node instanceof HashNode && ((HashNode) node).isLeaf());
+	}
+
+	/**
+	 * Get the only child under binary node of 16-children sub-tree if it is a
+	 * leaf, or null if not. In compact leaf mode the lone leaf is lifted to the
+	 * binary node without hashing.
+	 */
+	private Node loneLeaf(int height, int group) {
+		int index = loneLeafIndex(height, group);
+		return index < 0 ? null : this.children[index];
+	}
+
+	/**
+	 * Get index of the only child under binary node of 16-children sub-tree if it
+	 * is a leaf, or -1 if not.
+	 */
+	int loneLeafIndex(int height, int group) {
+		if (this.children == null) {
+			return -1;
+		}
+		int shift = getChildHeight() - height;
+		int end = (group + 1) << shift;
+		int found = -1;
+		for (int i = group << shift; i < end; i++) {
+			if (this.children[i] != null) {
+				if (found >= 0) {
+					return -1;
 				}
-				merkles4[i] = tree.generateMerkleHash(left, right);
-				logger.info("for subtree: 4 nodes: {} merkle = {}", i, ByteUtils.toHexString(merkles4[i]));
+				found = i;
 			}
 		}
+		return found >= 0 && isLeaf(this.children[found]) ? found : -1;
+	}
 
-		// 4 hashes -> 2 hashes:
-		merkleHeight--;
-		byte[][] merkles2 = new byte[2][];
-		for (int i = 0; i < 2; i++) {
-			int n = i << 1;
-			byte[] left = merkles4[n];
-			byte[] right = merkles4[n + 1];
-			if (left == null && right == null) {
-				merkles2[i] = null;
-			} else {
-				if (left == null) {
-					left = tree.getDefaultHashAtHeight(merkleHeight);
-				}
-				if (right == null) {
-					right = tree.getDefaultHashAtHeight(merkleHeight);
+	/**
+	 * Replace a persisted child by its hash node. This does not change merkle
+	 * hash of current node.
+	 */
+	void unloadChild(int index) {
+		Node child = getChild(index);
+		assert child != null && child.isPersisted() : "cannot unload child: " + child;
+		this.children[index] = new HashNode(child.getMerkleHash(), isLeaf(child));
+	}
+
+	void setChild(int index, Node child) {
+		assert index >= 0 && index < 16 : "Invalid child index: " + index;
+		if (this.children == null) {
+			this.children = new Node[16];
+		}
+		this.children[index] = child;
+		this.dirtyChildren |= 1 << index;
+		this.dirty = true;
+	}
+
+	/**
+	 * Update merkle hash. Only binary nodes on the paths of changed children are
+	 * re-calculated, which is 4 hashes for a single changed child.
+	 */
+	void updateMerkleHash(TreeInfo tree) {
+		int subtreeHeight = getSubtreeHeight();
+		if (this.children == null) {
+			this.levels = null;
+			this.dirtyChildren = 0;
+			this.merkleHash = tree.getDefaultHashAtHeight(subtreeHeight);
+			return;
+		}
+		int changed = this.dirtyChildren;
+		if (this.levels == null) {
+			this.levels = new byte[16][];
+			changed = 0xffff;
+		}
+		// mark binary nodes on the paths of changed children:
+		int marks = 0;
+		for (int i = 0; i < 16; i++) {
+			if ((changed & (1 << i)) != 0) {
+				for (int n = (16 + i) >> 1; n > 0; n >>= 1) {
+					marks |= 1 << n;
 				}
-				merkles2[i] = tree.generateMerkleHash(left, right);
-				logger.info("for subtree: 2 nodes: {} merkle = {}", i, ByteUtils.toHexString(merkles2[i]));
 			}
 		}
-
-		// 2 hashes -> 1 hash:
-		merkleHeight--;
-		byte[] merkle = null;
-		byte[] left = merkles2[0];
-		byte[] right = merkles2[1];
-		if (left != null || right != null) {
-			if (left == null) {
-				left = tree.getDefaultHashAtHeight(merkleHeight);
+		final boolean compact = tree.isCompactLeaf();
+		// pairs of one binary level are independent, and hashed at once:
+		byte[][] lefts = new byte[8][];
+		byte[][] rights = new byte[8][];
+		int[] targets = new int[8];
+		for (int first = 8; first > 0; first >>= 1) {
+			int childHeight = subtreeHeight + 32 - Integer.numberOfLeadingZeros(first);
+			int count = 0;
+			for (int n = (first << 1) - 1; n >= first; n--) {
+				if ((marks & (1 << n)) == 0) {
+					continue;
+				}
+				if (compact) {
+					Node lone = loneLeaf(childHeight - 1, n - first);
+					if (lone != null) {
+						this.levels[n] = lone.getMerkleHash();
+						continue;
+					}
+				}
+				byte[] left = levelHash(n << 1);
+				byte[] right = levelHash((n << 1) + 1);
+				if (left == null && right == null) {
+					this.levels[n] = null;
+				} else {
+					lefts[count] = left == null ? tree.getDefaultHashAtHeight(childHeight) : left;
+					rights[count] = right == null ? tree.getDefaultHashAtHeight(childHeight) : right;
+					targets[count] = n;
+					count++;
+				}
 			}
-			if (right == null) {
-				right = tree.getDefaultHashAtHeight(merkleHeight);
+			if (count > 0) {
+				byte[][] hashes = tree.generateMerkleHashes(lefts, rights, count);
+				for (int i = 0; i < count; i++) {
+					this.levels[targets[i]] = hashes[i];
+				}
 			}
-			merkle = tree.generateMerkleHash(left, right);
 		}
-
-		// root hash of subtree:
-		merkleHeight--;
+		this.dirtyChildren = 0;
+		byte[] merkle = this.levels[1];
 		if (merkle == null) {
-			merkle = tree.getDefaultHashAtHeight(merkleHeight);
+			merkle = tree.getDefaultHashAtHeight(subtreeHeight);
 		}
-		logger.info("for subtree: root: height = {}, merkle = {}", subtreeHeight, ByteUtils.toHexString(merkle));
-
 		// continue calculate merkle for shared path:
-		if (subtreeHeight > this.height) {
-			int startIndex = this.height / 4;
-			int endIndex = this.path.length() - 1;
-			for (int i = endIndex; i >= startIndex; i--) {
-				int hb = this.path.valueAt(i);
-				int bitIndex = i << 2;
-				int bit0 = hb & 0b1000;
-				int bit1 = hb & 0b0100;
-				int bit2 = hb & 0b0010;
-				int bit3 = hb & 0b0001;
-				left = bit3 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 4);
-				right = bit3 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 4);
-				merkle = tree.generateMerkleHash(left, right);
-				logger.info("for shared path: height = {}, merkle = {}", bitIndex + 3, ByteUtils.toHexString(merkle));
-
-				left = bit2 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 3);
-				right = bit2 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 3);
-				merkle = tree.generateMerkleHash(left, right);
-
-				left = bit1 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 2);
-				right = bit1 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 2);
-				merkle = tree.generateMerkleHash(left, right);
-
-				left = bit0 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 1);
-				right = bit0 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 1);
-				merkle = tree.generateMerkleHash(left, right);
-				logger.info("for shared path: height = {}, merkle = {}", bitIndex, ByteUtils.toHexString(merkle));
-			}
-		}
+		this.merkleHash = hashPath(tree, this.path, merkle, subtreeHeight, this.height);
+	}
 
-		this.merkleHash = merkle;
+	/**
+	 * Get hash of binary node by index in 16-children sub-tree: 1 is the root, and
+	 * 16 ~ 31 are children. Returns null if empty.
+	 */
+	private byte[] levelHash(int index) {
+		if (index >= 16) {
+			Node child = this.children[index - 16];
+			return child == null ? null : child.getMerkleHash();
+		}
+		return this.levels[index];
 	}
 
 	@Override
@@ -259,7 +630,7 @@ public class FullNode extends Node {
 			sb.append(String.format("%x", slot)).append(':');
 		}
 		sb.append("[FULL: height=").append(this.height).append(", path=").append(this.path).append(", merkleHash=")
-				.append(ByteUtils.toHexString(this.merkleHash)).append("]\n");
+				.append(merkleHashAsString()).append("]\n");
 		if (this.children != null) {
 			for (int i = 0; i < 16; i++) {
 				Node child = this.children[i];
@@ -273,6 +644,10 @@ public class FullNode extends Node {
 	@Override
 	public String toString() {
 		return String.format("FullNode(height=%s, path=%s, merkleHash=%s)", this.height, this.path,
-				ByteUtils.toHexString(this.merkleHash));
+				merkleHashAsString());
+	}
+
+	private String merkleHashAsString() {
+		return this.dirty ? "dirty" : ByteUtils.toHexString(this.merkleHash);
 	}
 }
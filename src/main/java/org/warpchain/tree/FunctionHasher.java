@@ -0,0 +1,44 @@
+package org.warpchain.tree;
+
+import java.util.function.Function;
+
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Merkle hasher using a hash function of byte array.
+ *
+ * @author liaoxuefeng
+ */
+final class FunctionHasher implements MerkleHasher {
+
+	private final Function<byte[], byte[]> hashFunction;
+	private final int hashSize;
+
+	FunctionHasher(Function<byte[], byte[]> hashFunction) {
+		this.hashFunction = hashFunction;
+		this.hashSize = hashFunction.apply(ByteUtils.emptyByteArray()).length;
+	}
+
+	@Override
+	public int getHashSize() {
+		return this.hashSize;
+	}
+
+	@Override
+	public byte[] hash(byte[] data) {
+		return this.hashFunction.apply(data);
+	}
+
+	@Override
+	public void hash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outputOffset) {
+		byte[] data = new byte[this.hashSize << 1];
+		System.arraycopy(left, leftOffset, data, 0, this.hashSize);
+		System.arraycopy(right, rightOffset, data, this.hashSize, this.hashSize);
+		System.arraycopy(this.hashFunction.apply(data), 0, output, outputOffset, this.hashSize);
+	}
+
+	@Override
+	public byte[] hash(byte[] left, byte[] right) {
+		return this.hashFunction.apply(ByteUtils.concat(left, right));
+	}
+}
@@ -0,0 +1,81 @@
+package org.warpchain.tree;
+
+import org.warpchain.core.NibblePath;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Placeholder of a node which is persisted in node store but not loaded. Only
+ * merkle hash is kept in memory.
+ * 
+ * @author liaoxuefeng
+ */
+public class HashNode extends Node {
+
+	/**
+	 * Merkle hash of the stored node, which is also the key of node store.
+	 */
+	private final byte[] merkleHash;
+
+	/**
+	 * Is the stored node a leaf node.
+	 */
+	private final boolean leaf;
+
+	HashNode(byte[] merkleHash, boolean leaf) {
+		this.merkleHash = merkleHash;
+		this.leaf = leaf;
+	}
+
+	boolean isLeaf() {
+		return this.leaf;
+	}
+
+	@Override
+	public byte[] getMerkleHash() {
+		return this.merkleHash;
+	}
+
+	@Override
+	public boolean isDirty() {
+		return false;
+	}
+
+	@Override
+	public boolean isPersisted() {
+		return true;
+	}
+
+	@Override
+	public boolean isFrozen() {
+		return true;
+	}
+
+	@Override
+	public void freeze() {
+	}
+
+	@Override
+	public void commit(TreeInfo tree) {
+	}
+
+	@Override
+	public Node update(TreeInfo tree, NibblePath dataPath, byte[] dataHash, byte[] dataValue) {
+		throw new IllegalStateException("Cannot update node before it is loaded: " + this);
+	}
+
+	@Override
+	public Node remove(TreeInfo tree, NibblePath dataPath) {
+		throw new IllegalStateException("Cannot remove from node before it is loaded: " + this);
+	}
+
+	@Override
+	public void appendTo(StringBuilder sb, int slot) {
+		sb.append(String.format("%x", slot)).append(":[HASH: merkleHash=").append(ByteUtils.toHexString(this.merkleHash))
+				.append("]\n");
+	}
+
+	@Override
+	public String toString() {
+		return String.format("HashNode(merkleHash=%s)", ByteUtils.toHexString(this.merkleHash));
+	}
+}
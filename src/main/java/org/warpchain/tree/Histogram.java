@@ -0,0 +1,64 @@
+package org.warpchain.tree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets. Bucket i
+ * holds values in [2^(i-1), 2^i), and bucket 0 holds 0.
+ *
+ * @author liaoxuefeng
+ */
+final class Histogram {
+
+	private final LongAdder[] buckets = new LongAdder[64];
+
+	Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	void record(long value) {
+		buckets[Math.min(63, 64 - Long.numberOfLeadingZeros(Math.max(0, value)))].increment();
+	}
+
+	long count() {
+		long n = 0;
+		for (LongAdder bucket : buckets) {
+			n += bucket.sum();
+		}
+		return n;
+	}
+
+	/**
+	 * Get upper bound of the bucket which contains percentile, or 0 if empty.
+	 *
+	 * @param percentile Percentile in (0, 1].
+	 */
+	long percentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(percentile * total);
+		long n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			n += counts[i];
+			if (n >= target) {
+				return i == 0 ? 0 : (1L << i) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+	}
+}
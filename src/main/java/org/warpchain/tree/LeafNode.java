@@ -1,20 +1,17 @@
 package org.warpchain.tree;
 
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.warpchain.core.NibbleString;
+import org.warpchain.core.NibblePath;
 import org.warpchain.util.ByteUtils;
 
 public class LeafNode extends Node {
 
-	private static final Logger logger = LoggerFactory.getLogger(LeafNode.class);
-
 	/**
 	 * Full path from root to leaf node.
 	 */
-	private final NibbleString path;
+	private final NibblePath path;
 
 	/**
 	 * start height of this node.
@@ -26,112 +23,350 @@ public class LeafNode extends Node {
 	 */
 	private byte[] merkleHash;
 
+	/**
+	 * Is merkle hash not yet calculated.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Is this node saved in node store.
+	 */
+	private boolean persisted;
+
+	/**
+	 * Is this node immutable.
+	 */
+	private boolean frozen;
+
 	/**
 	 * Data hash of this node.
 	 */
 	private final byte[] dataHash;
 
 	/**
-	 * Data of this node.
+	 * Data of this node, or null if data is in value log.
 	 */
 	private final byte[] dataValue;
 
-	LeafNode(TreeInfo tree, int height, NibbleString path, byte[] dataHash, byte[] dataValue) {
+	/**
+	 * Hash of data in value log, or null if data is kept in this node.
+	 */
+	private final byte[] valueHash;
+
+	/**
+	 * Pointer of data in value log.
+	 */
+	private final long valuePointer;
+
+	LeafNode(TreeInfo tree, int height, NibblePath path, byte[] dataHash, byte[] dataValue) {
 		assert height > 0 && height <= tree.getTreeHeight() && (height & 0x3) == 0
 				: "Invalid height for leaf node: " + height;
 		assert 8 * dataHash.length == tree.getTreeHeight() : "Invalid data hash: " + ByteUtils.toHexString(dataHash);
 		assert 4 * path.length() == tree.getTreeHeight() : "Invalid path length for leaf node: " + path;
 		assert dataValue != null && dataValue.length > 0 : "data value is null or empty";
 
+		this.path = path;
+		this.height = height;
+		this.dataHash = dataHash;
+		this.valuePointer = tree.appendValue(dataHash, dataValue);
+		if (this.valuePointer == ValueLog.NO_POINTER) {
+			this.dataValue = dataValue;
+			this.valueHash = null;
+		} else {
+			this.dataValue = null;
+			this.valueHash = tree.hash(dataValue);
+		}
+		this.merkleHash = null;
+		this.dirty = true;
+		this.persisted = false;
+		this.frozen = false;
+		tree.getMetrics().onNodeCreated(NodeType.LEAF);
+	}
+
+	/**
+	 * Construct a dirty leaf node with the same data at another height.
+	 */
+	private LeafNode(TreeInfo tree, int height, LeafNode leaf) {
+		this.path = leaf.path;
+		this.height = height;
+		this.dataHash = leaf.dataHash;
+		this.dataValue = leaf.dataValue;
+		this.valueHash = leaf.valueHash;
+		this.valuePointer = leaf.valuePointer;
+		this.merkleHash = null;
+		this.dirty = true;
+		this.persisted = false;
+		this.frozen = false;
+		tree.getMetrics().onNodeCreated(NodeType.LEAF);
+	}
+
+	/**
+	 * Construct a leaf node loaded from node store.
+	 */
+	LeafNode(TreeInfo tree, int height, NibblePath path, byte[] dataHash, byte[] dataValue, byte[] merkleHash) {
+		this(height, path, dataHash, dataValue, null, ValueLog.NO_POINTER, merkleHash);
+	}
+
+	/**
+	 * Construct a leaf node in value log mode loaded from node store.
+	 */
+	LeafNode(TreeInfo tree, int height, NibblePath path, byte[] dataHash, byte[] valueHash, long valuePointer,
+			byte[] merkleHash) {
+		this(height, path, dataHash, null, valueHash, valuePointer, merkleHash);
+	}
+
+	private LeafNode(int height, NibblePath path, byte[] dataHash, byte[] dataValue, byte[] valueHash,
+			long valuePointer, byte[] merkleHash) {
 		this.path = path;
 		this.height = height;
 		this.dataHash = dataHash;
 		this.dataValue = dataValue;
-		this.updateMerkleHash(tree);
+		this.valueHash = valueHash;
+		this.valuePointer = valuePointer;
+		this.merkleHash = merkleHash;
+		this.dirty = false;
+		this.persisted = true;
+		this.frozen = true;
+	}
+
+	int getHeight() {
+		return this.height;
+	}
+
+	NibblePath getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Get merkle hash of this leaf as the only node of sub-tree at height.
+	 */
+	byte[] getMerkleHashAt(TreeInfo tree, int height) {
+		assert height >= this.height && height <= tree.getTreeHeight() : "invalid height: " + height;
+		if (height == this.height || tree.isCompactLeaf()) {
+			return getMerkleHash();
+		}
+		return hashPath(tree, this.path, this.dataHash, tree.getTreeHeight(), height);
+	}
+
+	byte[] getDataHash() {
+		return this.dataHash;
+	}
+
+	/**
+	 * Get data value, which may be read from value log.
+	 */
+	byte[] getDataValue(TreeInfo tree) {
+		return this.dataValue != null ? this.dataValue : tree.readValue(this.valuePointer);
+	}
+
+	byte[] getValueHash(TreeInfo tree) {
+		return this.valueHash != null ? this.valueHash : tree.hash(this.dataValue);
+	}
+
+	/**
+	 * Get pointer of data in value log, or NO_POINTER if data is kept in leaf.
+	 */
+	long getValuePointer() {
+		return this.valuePointer;
+	}
+
+	/**
+	 * Get the same leaf with data moved to another pointer of value log. Merkle
+	 * hash is unchanged, or is still pending if leaf is dirty.
+	 */
+	LeafNode relocateTo(TreeInfo tree, long pointer) {
+		assert this.valuePointer != ValueLog.NO_POINTER : "cannot relocate leaf: " + this;
+		LeafNode moved = new LeafNode(this.height, this.path, this.dataHash, null, this.valueHash, pointer,
+				this.merkleHash);
+		// leaf moved by split after collect is not committed yet:
+		moved.dirty = this.dirty;
+		moved.persisted = false;
+		moved.frozen = false;
+		tree.getMetrics().onNodeCreated(NodeType.LEAF);
+		return moved;
 	}
 
 	private void updateMerkleHash(TreeInfo tree) {
+		if (tree.isCompactLeaf()) {
+			// hash of key and value hash, which is independent of height:
+			this.merkleHash = tree.generateLeafHash(this.dataHash, getValueHash(tree));
+			return;
+		}
 		if (this.height == tree.getTreeHeight()) {
 			// it is only leaf:
 			this.merkleHash = this.dataHash;
 			return;
 		}
-		int endIndex = tree.getTreeHeight() / 4 - 1;
-		int startIndex = this.height / 4;
-		byte[] left;
-		byte[] right;
-		byte[] merkle = this.dataHash;
-		logger.info("height={}, merkle={}", tree.getTreeHeight(), ByteUtils.toHexString(merkle));
-		for (int i = endIndex; i >= startIndex; i--) {
-			int hb = this.path.valueAt(i);
-			int bitIndex = i << 2;
-			int bit0 = hb & 0b1000;
-			int bit1 = hb & 0b0100;
-			int bit2 = hb & 0b0010;
-			int bit3 = hb & 0b0001;
-			left = bit3 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 4);
-			right = bit3 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 4);
-			merkle = tree.generateMerkleHash(left, right);
-			logger.info("height={}, merkle={}", bitIndex + 3, ByteUtils.toHexString(merkle));
-
-			left = bit2 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 3);
-			right = bit2 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 3);
-			merkle = tree.generateMerkleHash(left, right);
-
-			left = bit1 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 2);
-			right = bit1 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 2);
-			merkle = tree.generateMerkleHash(left, right);
-
-			left = bit0 == 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 1);
-			right = bit0 != 0 ? merkle : tree.getDefaultHashAtHeight(bitIndex + 1);
-			merkle = tree.generateMerkleHash(left, right);
+		this.merkleHash = hashPath(tree, this.path, this.dataHash, tree.getTreeHeight(), this.height);
+	}
+
+	/**
+	 * Commit dirty leaves of the same height together, and hash up to 8 leaves at
+	 * once on every step of their paths.
+	 */
+	static void commitAll(TreeInfo tree, List<LeafNode> leaves) {
+		for (int from = 0; from < leaves.size(); from += 8) {
+			commitLanes(tree, leaves.subList(from, Math.min(from + 8, leaves.size())));
+		}
+	}
+
+	private static void commitLanes(TreeInfo tree, List<LeafNode> leaves) {
+		final int count = leaves.size();
+		final int height = leaves.get(0).height;
+		byte[][] lefts = new byte[count][];
+		byte[][] rights = new byte[count][];
+		byte[][] current = new byte[count][];
+		if (tree.isCompactLeaf()) {
+			for (int i = 0; i < count; i++) {
+				LeafNode leaf = leaves.get(i);
+				lefts[i] = leaf.dataHash;
+				rights[i] = leaf.getValueHash(tree);
+			}
+			current = tree.generateLeafHashes(lefts, rights, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				current[i] = leaves.get(i).dataHash;
+			}
+			for (int h = tree.getTreeHeight(); h > height; h--) {
+				byte[] sibling = tree.getDefaultHashAtHeight(h);
+				for (int i = 0; i < count; i++) {
+					boolean left = bitAt(leaves.get(i).path, h - 1) == 0;
+					lefts[i] = left ? current[i] : sibling;
+					rights[i] = left ? sibling : current[i];
+				}
+				current = tree.generateMerkleHashes(lefts, rights, count);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			LeafNode leaf = leaves.get(i);
+			assert leaf.dirty && leaf.height == height : "cannot commit leaf: " + leaf;
+			leaf.merkleHash = current[i];
+			leaf.dirty = false;
 		}
-		this.merkleHash = merkle;
 	}
 
 	@Override
 	public byte[] getMerkleHash() {
+		assert !this.dirty : "merkle hash is not committed: " + this;
 		return this.merkleHash;
 	}
 
 	@Override
-	public Node update(TreeInfo tree, NibbleString dataPath, byte[] dataHash, byte[] dataValue) {
-		logger.info("update {}...", dataPath);
-		if (this.path.equals(dataPath)) {
-			logger.info("data not change for path {}", dataPath);
+	public boolean isDirty() {
+		return this.dirty;
+	}
+
+	@Override
+	public boolean isPersisted() {
+		return this.persisted;
+	}
+
+	void markPersisted() {
+		assert !this.dirty : "cannot persist dirty node: " + this;
+		this.persisted = true;
+		this.frozen = true;
+	}
+
+	@Override
+	public boolean isFrozen() {
+		return this.frozen;
+	}
+
+	@Override
+	public void freeze() {
+		assert !this.dirty : "cannot freeze dirty node: " + this;
+		this.frozen = true;
+	}
+
+	@Override
+	public void commit(TreeInfo tree) {
+		if (this.dirty) {
+			this.updateMerkleHash(tree);
+			this.dirty = false;
+		}
+	}
+
+	@Override
+	public Node update(TreeInfo tree, NibblePath dataPath, byte[] dataHash, byte[] dataValue) {
+		final int shared = NibblePath.sharedPrefixLength(this.path, dataPath);
+		if (shared == this.path.length()) {
 			return this;
 		}
-		NibbleString prefix = NibbleString.sharedPrefix(this.path, dataPath);
-		logger.info("shared prefix: {}", prefix);
+		tree.getMetrics().onNodeSplit();
 		final int parentHeight = this.height;
-		final int childHeight = (prefix.length() + 1) * 4;
-		final FullNode parent = new FullNode(tree, parentHeight, prefix);
-		logger.info("build full node for current node and new node: {}", parent);
+		final int childHeight = (shared + 1) * 4;
+		final FullNode parent = new FullNode(tree, parentHeight, this.path.substring(0, shared));
 		// new leaf from current node:
 		final int currentSlot = this.path.valueAt(childHeight / 4 - 1);
-		parent.setChild(currentSlot, new LeafNode(tree, childHeight, this.path, this.dataHash, this.dataValue));
+		parent.setChild(currentSlot, moveTo(tree, childHeight));
 		// new leaf node:
 		final int newSlot = dataPath.valueAt(childHeight / 4 - 1);
 		parent.setChild(newSlot, new LeafNode(tree, childHeight, dataPath, dataHash, dataValue));
-		parent.updateMerkleHash(tree);
+		tree.discardNode(this);
 		return parent;
 	}
 
+	private String merkleHashAsString() {
+		if (this.dirty) {
+			return "dirty";
+		}
+		return this.merkleHash == null ? "null" : ByteUtils.toHexString(this.merkleHash);
+	}
+
+	private String dataValueAsString() {
+		if (this.dataValue == null) {
+			return String.format("<value log %d:%d>", ValueLog.segmentOf(this.valuePointer),
+					ValueLog.offsetOf(this.valuePointer));
+		}
+		return new String(this.dataValue, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Node remove(TreeInfo tree, NibblePath dataPath) {
+		if (!this.path.equals(dataPath)) {
+			return this;
+		}
+		tree.discardNode(this);
+		return null;
+	}
+
+	/**
+	 * Move leaf to another height.
+	 */
+	LeafNode moveTo(TreeInfo tree, int height) {
+		LeafNode moved = new LeafNode(tree, height, this);
+		if (tree.isCompactLeaf() && !this.dirty) {
+			// lift without hashing:
+			moved.merkleHash = this.merkleHash;
+			moved.dirty = false;
+		}
+		return moved;
+	}
+
+	/**
+	 * Get the same persisted leaf at another height, which is only possible in
+	 * compact leaf mode.
+	 */
+	LeafNode loadedAt(TreeInfo tree, int height) {
+		assert tree.isCompactLeaf() : "leaf height mismatch: " + this;
+		return new LeafNode(height, this.path, this.dataHash, this.dataValue, this.valueHash, this.valuePointer,
+				this.merkleHash);
+	}
+
 	@Override
 	public void appendTo(StringBuilder sb, int slot) {
 		for (int i = 0; i < this.height; i++) {
 			sb.append(INDENT);
 		}
 		sb.append(String.format("%x", slot)).append(":[LEAF: height=").append(this.height).append(", path=")
-				.append(this.path).append(", merkleHash=").append(ByteUtils.toHexString(this.merkleHash))
+				.append(this.path).append(", merkleHash=").append(merkleHashAsString())
 				.append(", dataHash=").append(ByteUtils.toHexString(this.dataHash)).append(", dataValue=")
-				.append(new String(this.dataValue, StandardCharsets.UTF_8)).append("]\n");
+				.append(dataValueAsString()).append("]\n");
 	}
 
 	@Override
 	public String toString() {
 		return String.format("LeafNode(height=%s, path=%s, merkleHash=%s, dataHash=%s, dataValue=%s)", this.height,
-				this.path, ByteUtils.toHexString(this.merkleHash), ByteUtils.toHexString(this.dataHash),
-				new String(this.dataValue, StandardCharsets.UTF_8));
+				this.path, merkleHashAsString(), ByteUtils.toHexString(this.dataHash), dataValueAsString());
 	}
 }
@@ -0,0 +1,115 @@
+package org.warpchain.tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Iterate leaves in order of data hash. Nodes are loaded from node store only
+ * when visited. Splitting hands off the first half of pending sub-trees, so
+ * leaves can be visited in parallel.
+ *
+ * @author liaoxuefeng
+ */
+final class LeafSpliterator implements Spliterator<Map.Entry<byte[], byte[]>> {
+
+	static final Comparator<Map.Entry<byte[], byte[]>> COMPARATOR = (e1, e2) -> Arrays.compareUnsigned(e1.getKey(),
+			e2.getKey());
+
+	private final TreeInfo tree;
+
+	/**
+	 * Sub-trees not yet visited, in order of data hash.
+	 */
+	private final Deque<Node> pending;
+
+	LeafSpliterator(TreeInfo tree, Node root) {
+		this(tree, new ArrayDeque<>());
+		if (root != null) {
+			this.pending.add(root);
+		}
+	}
+
+	private LeafSpliterator(TreeInfo tree, Deque<Node> pending) {
+		this.tree = tree;
+		this.pending = pending;
+	}
+
+	/**
+	 * Get next leaf, or null if no more leaf.
+	 */
+	LeafNode nextLeaf() {
+		while (!this.pending.isEmpty()) {
+			Node node = resolve(this.pending.pollFirst());
+			if (node instanceof LeafNode) {
+				return (LeafNode) node;
+			}
+			expand((FullNode) node);
+		}
+		return null;
+	}
+
+	private Node resolve(Node node) {
+		return node instanceof HashNode ? this.tree.loadNode(node.getMerkleHash(), FullNode.isLeaf(node)) : node;
+	}
+
+	private void expand(FullNode node) {
+		for (int i = 15; i >= 0; i--) {
+			Node child = node.getChild(i);
+			if (child != null) {
+				this.pending.addFirst(child);
+			}
+		}
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Map.Entry<byte[], byte[]>> action) {
+		LeafNode leaf = nextLeaf();
+		if (leaf == null) {
+			return false;
+		}
+		action.accept(Map.entry(leaf.getDataHash(), leaf.getDataValue(this.tree)));
+		return true;
+	}
+
+	@Override
+	public Spliterator<Map.Entry<byte[], byte[]>> trySplit() {
+		// expand single full node to split its children:
+		while (this.pending.size() == 1) {
+			Node node = resolve(this.pending.peekFirst());
+			if (!(node instanceof FullNode)) {
+				return null;
+			}
+			this.pending.pollFirst();
+			expand((FullNode) node);
+		}
+		int n = this.pending.size() / 2;
+		if (n == 0) {
+			return null;
+		}
+		Deque<Node> prefix = new ArrayDeque<>(n);
+		for (int i = 0; i < n; i++) {
+			prefix.addLast(this.pending.pollFirst());
+		}
+		return new LeafSpliterator(this.tree, prefix);
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | SORTED | NONNULL;
+	}
+
+	@Override
+	public Comparator<? super Map.Entry<byte[], byte[]>> getComparator() {
+		return COMPARATOR;
+	}
+}
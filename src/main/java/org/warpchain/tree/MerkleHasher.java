@@ -0,0 +1,98 @@
+package org.warpchain.tree;
+
+import java.util.function.Function;
+
+/**
+ * Hash function of sparse merkle tree. Merkle hash of two children is written
+ * into a caller-supplied buffer, so implementations can hash without
+ * allocating.
+ *
+ * @author liaoxuefeng
+ */
+public interface MerkleHasher {
+
+	/**
+	 * Size of hash in bytes.
+	 */
+	int getHashSize();
+
+	/**
+	 * Hash data.
+	 */
+	byte[] hash(byte[] data);
+
+	/**
+	 * Hash left and right child hashes, and write result into output buffer. The
+	 * output may overlap with inputs.
+	 *
+	 * @param left         Buffer of left hash.
+	 * @param leftOffset   Offset of left hash.
+	 * @param right        Buffer of right hash.
+	 * @param rightOffset  Offset of right hash.
+	 * @param output       Output buffer.
+	 * @param outputOffset Offset to write hash.
+	 */
+	void hash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output, int outputOffset);
+
+	/**
+	 * Hash left and right child hashes as a new array.
+	 */
+	default byte[] hash(byte[] left, byte[] right) {
+		byte[] output = new byte[getHashSize()];
+		hash(left, 0, right, 0, output, 0);
+		return output;
+	}
+
+	/**
+	 * Number of pairs which are hashed at once by hash of multiple pairs. It is 1
+	 * if pairs are hashed one by one.
+	 */
+	default int getLanes() {
+		return 1;
+	}
+
+	/**
+	 * Hash multiple pairs of left and right child hashes.
+	 *
+	 * @param lefts  Left hashes.
+	 * @param rights Right hashes.
+	 * @param count  Number of pairs from index 0, at most 8.
+	 * @return Hashes of pairs.
+	 */
+	default byte[][] hash(byte[][] lefts, byte[][] rights, int count) {
+		byte[][] outputs = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			outputs[i] = hash(lefts[i], rights[i]);
+		}
+		return outputs;
+	}
+
+	/**
+	 * Hash multiple data of the same length.
+	 *
+	 * @param data  Data to hash.
+	 * @param count Number of data from index 0, at most 8.
+	 * @return Hashes of data.
+	 */
+	default byte[][] hash(byte[][] data, int count) {
+		byte[][] outputs = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			outputs[i] = hash(data[i]);
+		}
+		return outputs;
+	}
+
+	/**
+	 * DSHA-256 hasher using a reusable digest per thread.
+	 */
+	static MerkleHasher dsha256() {
+		return Dsha256Hasher.INSTANCE;
+	}
+
+	/**
+	 * Hasher which concatenates children and applies a hash function.
+	 */
+	static MerkleHasher of(Function<byte[], byte[]> hashFunction) {
+		return new FunctionHasher(hashFunction);
+	}
+}
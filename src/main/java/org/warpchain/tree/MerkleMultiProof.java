@@ -0,0 +1,346 @@
+package org.warpchain.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.warpchain.encode.RLP;
+import org.warpchain.exception.DecodeException;
+import org.warpchain.util.ByteArrayInput;
+import org.warpchain.util.ByteArrayOutput;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Proof of multiple data hashes which shares sibling hashes. The tree is
+ * visited depth-first from root along the sorted data hashes, and each visited
+ * sub-tree is described by a marker:
+ *
+ * <pre>
+ * sub-tree contains data hashes:
+ *   EMPTY    - empty sub-tree.
+ *   LEAF_KEY - only one leaf which is the data hash.
+ *   LEAF     - only one leaf, followed by its data hash.
+ *   BRANCH   - visit left and right children.
+ * sub-tree contains no data hash (sibling):
+ *   DEFAULT  - default hash.
+ *   HASH     - followed by merkle hash.
+ * </pre>
+ *
+ * Hashes are stored in visiting order, so each shared sibling appears only
+ * once. In compact leaf mode LEAF_KEY and LEAF are followed by value hash of
+ * the leaf, which is lifted to the sub-tree without hashing.
+ *
+ * @author liaoxuefeng
+ */
+public class MerkleMultiProof {
+
+	static final byte EMPTY = 0;
+	static final byte LEAF_KEY = 1;
+	static final byte LEAF = 2;
+	static final byte BRANCH = 3;
+	static final byte DEFAULT = 4;
+	static final byte HASH = 5;
+
+	/**
+	 * Sorted and unique data hashes to prove.
+	 */
+	private final List<byte[]> dataHashes;
+
+	/**
+	 * Is data hash at same index included.
+	 */
+	private final boolean[] included;
+
+	private final byte[] markers;
+
+	private final List<byte[]> hashes;
+
+	MerkleMultiProof(List<byte[]> dataHashes, boolean[] included, byte[] markers, List<byte[]> hashes) {
+		this.dataHashes = dataHashes;
+		this.included = included;
+		this.markers = markers;
+		this.hashes = hashes;
+	}
+
+	public List<byte[]> getDataHashes() {
+		return this.dataHashes;
+	}
+
+	public boolean isIncluded(int index) {
+		return this.included[index];
+	}
+
+	byte[] getMarkers() {
+		return this.markers;
+	}
+
+	List<byte[]> getHashes() {
+		return this.hashes;
+	}
+
+	/**
+	 * Get number of hashes in proof.
+	 */
+	public int getHashCount() {
+		return this.hashes.size();
+	}
+
+	/**
+	 * Verify proof against the root merkle hash in one pass.
+	 *
+	 * @param tree           Tree info with same hash function.
+	 * @param rootMerkleHash Root merkle hash.
+	 * @param proof          The proof.
+	 * @return True if proof is valid for all data hashes.
+	 */
+	public static boolean verify(TreeInfo tree, byte[] rootMerkleHash, MerkleMultiProof proof) {
+		return verify(tree, rootMerkleHash, proof, new Verifier(tree, proof, false, false, false));
+	}
+
+	/**
+	 * Verify proof as range proof: all data hashes are included, and they are the
+	 * only data hashes between the first and the last one. This holds if no
+	 * sibling hash lies between two data hashes.
+	 *
+	 * @param tree           Tree info with same hash function.
+	 * @param rootMerkleHash Root merkle hash.
+	 * @param proof          The proof.
+	 * @param fromStart      Also prove no data hash before the first one.
+	 * @param toEnd          Also prove no data hash after the last one.
+	 * @return True if proof is a valid range proof.
+	 */
+	public static boolean verifyRange(TreeInfo tree, byte[] rootMerkleHash, MerkleMultiProof proof,
+			boolean fromStart, boolean toEnd) {
+		for (boolean b : proof.included) {
+			if (!b) {
+				return false;
+			}
+		}
+		Verifier verifier = new Verifier(tree, proof, true, fromStart, toEnd);
+		return verify(tree, rootMerkleHash, proof, verifier);
+	}
+
+	private static boolean verify(TreeInfo tree, byte[] rootMerkleHash, MerkleMultiProof proof,
+			Verifier verifier) {
+		int size = proof.dataHashes.size();
+		if (size == 0 || proof.included.length != size) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			byte[] dataHash = proof.dataHashes.get(i);
+			if (dataHash.length * 8 != tree.getTreeHeight()) {
+				return false;
+			}
+			if (i > 0 && Arrays.compareUnsigned(proof.dataHashes.get(i - 1), dataHash) >= 0) {
+				return false;
+			}
+		}
+		byte[] merkle = verifier.verify(0, 0, size);
+		return merkle != null && verifier.markerIndex == proof.markers.length
+				&& verifier.hashIndex == proof.hashes.size() && Arrays.equals(verifier.included, proof.included)
+				&& Arrays.equals(merkle, rootMerkleHash);
+	}
+
+	/**
+	 * Find the first index in [from, to) which data hash has bit 1 at index, or to
+	 * if not found. Data hashes must be sorted and share the same prefix before bit
+	 * index.
+	 */
+	static int split(List<byte[]> dataHashes, int from, int to, int bitIndex) {
+		int n = from;
+		while (n < to && ByteUtils.bitAt(dataHashes.get(n), bitIndex) == 0) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Calculate merkle hash of leaf as the only node of sub-tree at height.
+	 */
+	static byte[] hashLeaf(TreeInfo tree, byte[] dataHash, int height) {
+		byte[] merkle = dataHash;
+		for (int h = tree.getTreeHeight(); h > height; h--) {
+			byte[] sibling = tree.getDefaultHashAtHeight(h);
+			merkle = ByteUtils.bitAt(dataHash, h - 1) == 0 ? tree.generateMerkleHash(merkle, sibling)
+					: tree.generateMerkleHash(sibling, merkle);
+		}
+		return merkle;
+	}
+
+	static class Verifier {
+
+		final TreeInfo tree;
+		final MerkleMultiProof proof;
+		final boolean[] included;
+
+		/**
+		 * Is range proof.
+		 */
+		final boolean range;
+		final boolean fromStart;
+		final boolean toEnd;
+		int markerIndex = 0;
+		int hashIndex = 0;
+
+		Verifier(TreeInfo tree, MerkleMultiProof proof, boolean range, boolean fromStart, boolean toEnd) {
+			this.tree = tree;
+			this.proof = proof;
+			this.included = new boolean[proof.dataHashes.size()];
+			this.range = range;
+			this.fromStart = fromStart;
+			this.toEnd = toEnd;
+		}
+
+		/**
+		 * Calculate merkle hash of sub-tree which contains data hashes in [from, to),
+		 * or null if proof is invalid.
+		 */
+		byte[] verify(int height, int from, int to) {
+			if (markerIndex >= proof.markers.length) {
+				return null;
+			}
+			byte marker = proof.markers[markerIndex++];
+			switch (marker) {
+			case EMPTY:
+				return tree.getDefaultHashAtHeight(height);
+			case LEAF_KEY:
+				if (to - from != 1) {
+					return null;
+				}
+				included[from] = true;
+				return hashLeaf(proof.dataHashes.get(from), height);
+			case LEAF:
+				if (hashIndex >= proof.hashes.size()) {
+					return null;
+				}
+				byte[] leafHash = proof.hashes.get(hashIndex++);
+				if (leafHash.length * 8 != tree.getTreeHeight()) {
+					return null;
+				}
+				// leaf must be under this sub-tree:
+				byte[] first = proof.dataHashes.get(from);
+				for (int i = 0; i < height; i++) {
+					if (ByteUtils.bitAt(leafHash, i) != ByteUtils.bitAt(first, i)) {
+						return null;
+					}
+				}
+				for (int i = from; i < to; i++) {
+					included[i] = Arrays.equals(leafHash, proof.dataHashes.get(i));
+				}
+				return hashLeaf(leafHash, height);
+			case BRANCH:
+				if (height >= tree.getTreeHeight()) {
+					return null;
+				}
+				int mid = split(proof.dataHashes, from, to, height);
+				byte[] left = from < mid ? verify(height + 1, from, mid) : sibling(height + 1);
+				if (left == null || (from == mid && !inRange(left, height + 1, from, to, 0))) {
+					return null;
+				}
+				byte[] right = mid < to ? verify(height + 1, mid, to) : sibling(height + 1);
+				if (right == null || (mid == to && !inRange(right, height + 1, from, to, 1))) {
+					return null;
+				}
+				return tree.generateMerkleHash(left, right);
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Calculate merkle hash of leaf as the only node of sub-tree at height, or null
+		 * if proof is invalid. Compact leaf reads its value hash from proof.
+		 */
+		byte[] hashLeaf(byte[] dataHash, int height) {
+			if (!tree.isCompactLeaf()) {
+				return MerkleMultiProof.hashLeaf(tree, dataHash, height);
+			}
+			if (hashIndex >= proof.hashes.size()) {
+				return null;
+			}
+			byte[] valueHash = proof.hashes.get(hashIndex++);
+			if (valueHash.length != dataHash.length) {
+				return null;
+			}
+			return tree.generateLeafHash(dataHash, valueHash);
+		}
+
+		/**
+		 * Check if sibling at height, which is the left (bit = 0) or right (bit = 1)
+		 * child of the sub-tree containing data hashes in [from, to), does not break
+		 * range proof.
+		 */
+		boolean inRange(byte[] sibling, int height, int from, int to, int bit) {
+			if (!this.range || sibling == tree.getDefaultHashAtHeight(height)) {
+				return true;
+			}
+			// only sub-tree before the first or after the last data hash:
+			return bit == 0 ? from == 0 && !this.fromStart : to == proof.dataHashes.size() && !this.toEnd;
+		}
+
+		byte[] sibling(int height) {
+			if (markerIndex >= proof.markers.length) {
+				return null;
+			}
+			byte marker = proof.markers[markerIndex++];
+			if (marker == DEFAULT) {
+				return tree.getDefaultHashAtHeight(height);
+			}
+			if (marker == HASH && hashIndex < proof.hashes.size()) {
+				return proof.hashes.get(hashIndex++);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Encode proof as RLP: [[data hashes], included bitmap, markers, [hashes]].
+	 */
+	public byte[] toBytes() {
+		byte[] bitmap = new byte[(this.included.length + 7) / 8];
+		for (int i = 0; i < this.included.length; i++) {
+			if (this.included[i]) {
+				bitmap[i >> 3] |= 0x80 >> (i & 7);
+			}
+		}
+		List<Object> list = List.of(new ArrayList<Object>(this.dataHashes), bitmap, this.markers,
+				new ArrayList<Object>(this.hashes));
+		ByteArrayOutput output = new ByteArrayOutput(
+				64 + this.markers.length + (this.dataHashes.size() + this.hashes.size()) * 33);
+		RLP.encode(list, output);
+		return output.toByteArray();
+	}
+
+	public static MerkleMultiProof fromBytes(byte[] data) {
+		List<Object> list = RLP.decodeAsList(new ByteArrayInput(data));
+		if (list.size() != 4) {
+			throw new DecodeException("Invalid proof.");
+		}
+		List<byte[]> dataHashes = toByteArrayList(list.get(0));
+		byte[] bitmap = (byte[]) list.get(1);
+		if (bitmap.length != (dataHashes.size() + 7) / 8) {
+			throw new DecodeException("Invalid proof.");
+		}
+		boolean[] included = new boolean[dataHashes.size()];
+		for (int i = 0; i < included.length; i++) {
+			included[i] = ByteUtils.bitAt(bitmap, i) == 1;
+		}
+		return new MerkleMultiProof(dataHashes, included, (byte[]) list.get(2), toByteArrayList(list.get(3)));
+	}
+
+	private static List<byte[]> toByteArrayList(Object o) {
+		@SuppressWarnings("unchecked")
+		List<Object> items = (List<Object>) o;
+		List<byte[]> list = new ArrayList<>(items.size());
+		for (Object item : items) {
+			list.add((byte[]) item);
+		}
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MerkleMultiProof(dataHashes=%s, markers=%s, hashes=%s)", this.dataHashes.size(),
+				this.markers.length, this.hashes.size());
+	}
+}
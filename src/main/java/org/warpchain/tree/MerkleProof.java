@@ -0,0 +1,231 @@
+package org.warpchain.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.warpchain.encode.RLP;
+import org.warpchain.exception.DecodeException;
+import org.warpchain.util.ByteArrayInput;
+import org.warpchain.util.ByteArrayOutput;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Inclusion or non-inclusion proof of a data hash. Sibling which equals to the
+ * default hash at its height is omitted and marked in bitmap.
+ *
+ * Proof of a compact leaf tree also carries the leaf which ends the path, if
+ * any. It is the proven leaf for inclusion, or another leaf sharing the prefix
+ * for non-inclusion.
+ *
+ * @author liaoxuefeng
+ */
+public class MerkleProof {
+
+	/**
+	 * Data hash to prove.
+	 */
+	private final byte[] dataHash;
+
+	/**
+	 * Is data hash included in tree.
+	 */
+	private final boolean included;
+
+	/**
+	 * Bit at index (height - 1) is set if sibling at height is default hash.
+	 */
+	private final byte[] bitmap;
+
+	/**
+	 * Non-default siblings from bottom to top.
+	 */
+	private final List<byte[]> siblings;
+
+	/**
+	 * Key of leaf which ends the path in compact leaf tree, or null.
+	 */
+	private final byte[] leafKey;
+
+	/**
+	 * Value hash of leaf which ends the path in compact leaf tree, or null.
+	 */
+	private final byte[] leafValueHash;
+
+	MerkleProof(byte[] dataHash, boolean included, byte[] bitmap, List<byte[]> siblings) {
+		this(dataHash, included, bitmap, siblings, null, null);
+	}
+
+	MerkleProof(byte[] dataHash, boolean included, byte[] bitmap, List<byte[]> siblings, byte[] leafKey,
+			byte[] leafValueHash) {
+		this.dataHash = dataHash;
+		this.included = included;
+		this.bitmap = bitmap;
+		this.siblings = siblings;
+		this.leafKey = leafKey;
+		this.leafValueHash = leafValueHash;
+	}
+
+	public byte[] getDataHash() {
+		return this.dataHash;
+	}
+
+	public boolean isIncluded() {
+		return this.included;
+	}
+
+	public byte[] getBitmap() {
+		return this.bitmap;
+	}
+
+	public List<byte[]> getSiblings() {
+		return this.siblings;
+	}
+
+	public byte[] getLeafKey() {
+		return this.leafKey;
+	}
+
+	public byte[] getLeafValueHash() {
+		return this.leafValueHash;
+	}
+
+	/**
+	 * Verify proof against the root merkle hash. The tree only provides hash
+	 * function and default hashes.
+	 *
+	 * @param tree           Tree info with same hash function.
+	 * @param rootMerkleHash Root merkle hash.
+	 * @param proof          The proof.
+	 * @return True if proof is valid, either inclusion or non-inclusion.
+	 */
+	public static boolean verify(TreeInfo tree, byte[] rootMerkleHash, MerkleProof proof) {
+		final int treeHeight = tree.getTreeHeight();
+		if (proof.dataHash.length * 8 != treeHeight || proof.bitmap.length * 8 != treeHeight) {
+			return false;
+		}
+		if (tree.isCompactLeaf()) {
+			return verifyCompact(tree, rootMerkleHash, proof);
+		}
+		if (proof.leafKey != null) {
+			return false;
+		}
+		byte[] merkle = proof.included ? proof.dataHash : tree.getDefaultHashAtHeight(treeHeight);
+		int n = 0;
+		for (int h = treeHeight; h > 0; h--) {
+			byte[] sibling;
+			if (ByteUtils.bitAt(proof.bitmap, h - 1) == 1) {
+				sibling = tree.getDefaultHashAtHeight(h);
+				if (merkle == sibling) {
+					// both empty:
+					merkle = tree.getDefaultHashAtHeight(h - 1);
+					continue;
+				}
+			} else {
+				if (n >= proof.siblings.size()) {
+					return false;
+				}
+				sibling = proof.siblings.get(n);
+				n++;
+			}
+			merkle = ByteUtils.bitAt(proof.dataHash, h - 1) == 0 ? tree.generateMerkleHash(merkle, sibling)
+					: tree.generateMerkleHash(sibling, merkle);
+		}
+		return n == proof.siblings.size() && Arrays.equals(merkle, rootMerkleHash);
+	}
+
+	private static boolean verifyCompact(TreeInfo tree, byte[] rootMerkleHash, MerkleProof proof) {
+		final int treeHeight = tree.getTreeHeight();
+		byte[] merkle;
+		// is merkle the hash of a single leaf which is not yet placed:
+		boolean lone;
+		if (proof.leafKey == null) {
+			if (proof.included || proof.leafValueHash != null) {
+				return false;
+			}
+			merkle = tree.getDefaultHashAtHeight(treeHeight);
+			lone = false;
+		} else {
+			if (proof.leafKey.length != proof.dataHash.length || proof.leafValueHash == null
+					|| proof.included != Arrays.equals(proof.leafKey, proof.dataHash)) {
+				return false;
+			}
+			merkle = tree.generateLeafHash(proof.leafKey, proof.leafValueHash);
+			lone = true;
+		}
+		int n = 0;
+		for (int h = treeHeight; h > 0; h--) {
+			if (ByteUtils.bitAt(proof.bitmap, h - 1) == 1) {
+				if (lone || merkle == tree.getDefaultHashAtHeight(h)) {
+					// leaf or empty is lifted without hashing:
+					continue;
+				}
+				byte[] sibling = tree.getDefaultHashAtHeight(h);
+				merkle = ByteUtils.bitAt(proof.dataHash, h - 1) == 0 ? tree.generateMerkleHash(merkle, sibling)
+						: tree.generateMerkleHash(sibling, merkle);
+				continue;
+			}
+			if (n >= proof.siblings.size()) {
+				return false;
+			}
+			if (lone) {
+				// leaf is placed at height h and must share the prefix:
+				for (int i = 0; i < h; i++) {
+					if (ByteUtils.bitAt(proof.leafKey, i) != ByteUtils.bitAt(proof.dataHash, i)) {
+						return false;
+					}
+				}
+				lone = false;
+			}
+			byte[] sibling = proof.siblings.get(n);
+			n++;
+			merkle = ByteUtils.bitAt(proof.dataHash, h - 1) == 0 ? tree.generateMerkleHash(merkle, sibling)
+					: tree.generateMerkleHash(sibling, merkle);
+		}
+		return n == proof.siblings.size() && Arrays.equals(merkle, rootMerkleHash);
+	}
+
+	/**
+	 * Encode proof as RLP: [data hash, included, bitmap, [siblings]], followed by
+	 * leaf key and leaf value hash if proof ends at a compact leaf.
+	 */
+	public byte[] toBytes() {
+		List<Object> list = new ArrayList<>(6);
+		list.add(this.dataHash);
+		list.add((byte) (this.included ? 1 : 0));
+		list.add(this.bitmap);
+		list.add(new ArrayList<Object>(this.siblings));
+		if (this.leafKey != null) {
+			list.add(this.leafKey);
+			list.add(this.leafValueHash);
+		}
+		ByteArrayOutput output = new ByteArrayOutput(64 + this.bitmap.length + this.siblings.size() * 33);
+		RLP.encode(list, output);
+		return output.toByteArray();
+	}
+
+	public static MerkleProof fromBytes(byte[] data) {
+		List<Object> list = RLP.decodeAsList(new ByteArrayInput(data));
+		if (list.size() != 4 && list.size() != 6) {
+			throw new DecodeException("Invalid proof.");
+		}
+		byte[] included = (byte[]) list.get(1);
+		@SuppressWarnings("unchecked")
+		List<Object> items = (List<Object>) list.get(3);
+		List<byte[]> siblings = new ArrayList<>(items.size());
+		for (Object item : items) {
+			siblings.add((byte[]) item);
+		}
+		byte[] leafKey = list.size() == 6 ? (byte[]) list.get(4) : null;
+		byte[] leafValueHash = list.size() == 6 ? (byte[]) list.get(5) : null;
+		return new MerkleProof((byte[]) list.get(0), included.length == 1 && included[0] == 1,
+				(byte[]) list.get(2), siblings, leafKey, leafValueHash);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MerkleProof(dataHash=%s, included=%s, bitmap=%s, siblings=%s)",
+				ByteUtils.toHexString(this.dataHash), this.included, ByteUtils.toHexString(this.bitmap),
+				this.siblings.size());
+	}
+}
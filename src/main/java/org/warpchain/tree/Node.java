@@ -1,6 +1,6 @@
 package org.warpchain.tree;
 
-import org.warpchain.core.NibbleString;
+import org.warpchain.core.NibblePath;
 
 public abstract class Node {
 
@@ -8,8 +8,76 @@ public abstract class Node {
 
 	public abstract byte[] getMerkleHash();
 
-	public abstract Node update(TreeInfo tree, NibbleString dataPath, byte[] dataHash, byte[] dataValue);
+	/**
+	 * Is merkle hash of this node out of date.
+	 */
+	public abstract boolean isDirty();
+
+	/**
+	 * Is this node saved in node store. A persisted node is shared with the store
+	 * cache and must not be modified.
+	 */
+	public abstract boolean isPersisted();
+
+	/**
+	 * Is this node immutable. A frozen node may be shared by multiple versions of
+	 * tree and is copied before modification. Persisted node is always frozen.
+	 */
+	public abstract boolean isFrozen();
+
+	/**
+	 * Freeze all nodes of this committed sub-tree. Frozen sub-trees are skipped.
+	 */
+	public abstract void freeze();
+
+	/**
+	 * Calculate merkle hash of all dirty nodes in this sub-tree, bottom-up. Each
+	 * dirty node is calculated only once.
+	 */
+	public abstract void commit(TreeInfo tree);
+
+	/**
+	 * Apply structural change to the sub-tree and mark changed nodes as dirty.
+	 * Merkle hash is not calculated until commit.
+	 */
+	public abstract Node update(TreeInfo tree, NibblePath dataPath, byte[] dataHash, byte[] dataValue);
+
+	/**
+	 * Remove leaf from the sub-tree and mark changed nodes as dirty. Return the
+	 * node replacing this node, or null if sub-tree becomes empty.
+	 */
+	public abstract Node remove(TreeInfo tree, NibblePath dataPath);
 
 	protected static final String INDENT = " ";
 
+	/**
+	 * Get bit value at bit index of nibble path.
+	 */
+	static int bitAt(NibblePath path, int index) {
+		return (path.valueAt(index >> 2) >> (3 - (index & 3))) & 1;
+	}
+
+	/**
+	 * Calculate merkle hash along the path from height to a lower height (closer
+	 * to root), using default hash as every sibling.
+	 */
+	static byte[] hashPath(TreeInfo tree, NibblePath path, byte[] merkle, int fromHeight, int toHeight) {
+		if (fromHeight <= toHeight) {
+			return merkle;
+		}
+		// hash in place of one buffer:
+		byte[] buffer = new byte[merkle.length];
+		byte[] current = merkle;
+		for (int h = fromHeight; h > toHeight; h--) {
+			byte[] sibling = tree.getDefaultHashAtHeight(h);
+			if (bitAt(path, h - 1) == 0) {
+				tree.generateMerkleHash(current, 0, sibling, 0, buffer, 0);
+			} else {
+				tree.generateMerkleHash(sibling, 0, current, 0, buffer, 0);
+			}
+			current = buffer;
+		}
+		return buffer;
+	}
+
 }
@@ -0,0 +1,95 @@
+package org.warpchain.tree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size records in off-heap slabs addressed by int id. Freed records are
+ * linked by the first 4 bytes and reused.
+ *
+ * @author liaoxuefeng
+ */
+final class NodeArena {
+
+	/**
+	 * Max id which is still positive after plus one.
+	 */
+	static final int MAX_ID = Integer.MAX_VALUE - 1;
+
+	private final int recordSize;
+	private final int recordsPerSlab;
+	private final byte[] zeros;
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+
+	/**
+	 * Next id which was never allocated.
+	 */
+	private int nextId = 0;
+
+	/**
+	 * Head of free list, or -1 if empty.
+	 */
+	private int freeHead = -1;
+
+	private int count = 0;
+
+	NodeArena(int recordSize, int slabSize) {
+		if (slabSize < recordSize) {
+			throw new IllegalArgumentException("Invalid slab size: " + slabSize);
+		}
+		this.recordSize = recordSize;
+		this.recordsPerSlab = slabSize / recordSize;
+		this.zeros = new byte[recordSize];
+	}
+
+	/**
+	 * Allocate a zero-filled record.
+	 */
+	int allocate() {
+		int id;
+		if (this.freeHead >= 0) {
+			id = this.freeHead;
+			this.freeHead = slab(id).getInt(offset(id));
+		} else {
+			if (this.nextId > MAX_ID) {
+				throw new IllegalStateException("Arena is full.");
+			}
+			id = this.nextId++;
+			if (id / this.recordsPerSlab == this.slabs.size()) {
+				this.slabs.add(ByteBuffer.allocateDirect(this.recordsPerSlab * this.recordSize));
+			}
+		}
+		slab(id).put(offset(id), this.zeros);
+		this.count++;
+		return id;
+	}
+
+	void free(int id) {
+		slab(id).putInt(offset(id), this.freeHead);
+		this.freeHead = id;
+		this.count--;
+	}
+
+	ByteBuffer slab(int id) {
+		return this.slabs.get(id / this.recordsPerSlab);
+	}
+
+	int offset(int id) {
+		return (id % this.recordsPerSlab) * this.recordSize;
+	}
+
+	/**
+	 * Number of allocated records.
+	 */
+	int size() {
+		return this.count;
+	}
+
+	/**
+	 * Total bytes of allocated slabs.
+	 */
+	long getCapacity() {
+		return (long) this.slabs.size() * this.recordsPerSlab * this.recordSize;
+	}
+}
@@ -0,0 +1,155 @@
+package org.warpchain.tree;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.warpchain.db.KeyValueStorage;
+import org.warpchain.db.WriteBatch;
+import org.warpchain.encode.RLP;
+import org.warpchain.util.ByteArrayInput;
+
+/**
+ * Delete nodes orphaned by versions older than the retention window. An orphan
+ * is deleted only if it was written before the version which orphaned it,
+ * otherwise the same node was created again and is still alive.
+ *
+ * After version v is pruned, versions before v can no longer be read. Value log
+ * segments collected by ValueLogCollector are deleted when no retained version
+ * points to them.
+ *
+ * @author liaoxuefeng
+ */
+public class NodePruner implements Closeable {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final SparseMerkleTree tree;
+	private final NodeStore store;
+
+	/**
+	 * Number of latest versions which are never pruned.
+	 */
+	private final long retainVersions;
+
+	/**
+	 * Max number of keys deleted at once.
+	 */
+	private final int batchSize;
+
+	private final PeriodicTask task = new PeriodicTask("node-pruner", this::prune);
+
+	NodePruner(SparseMerkleTree tree, NodeStore store, long retainVersions, int batchSize) {
+		if (retainVersions < 0) {
+			throw new IllegalArgumentException("Invalid retain versions: " + retainVersions);
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		}
+		this.tree = tree;
+		this.store = store;
+		this.retainVersions = retainVersions;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Get the last pruned version, or 0 if nothing was pruned.
+	 */
+	public long getPrunedVersion() {
+		byte[] data = this.store.getStorage().getValue(NodeStore.PRUNED_KEY);
+		return data == null ? 0 : NodeStore.bytesToLong(data);
+	}
+
+	/**
+	 * Prune all versions out of the retention window.
+	 *
+	 * @return Number of deleted nodes.
+	 */
+	public synchronized long prune() {
+		KeyValueStorage storage = this.store.getStorage();
+		long latest = this.store.loadVersion();
+		long pruned = getPrunedVersion();
+		long limit = latest - this.retainVersions;
+		// walk back through flushed versions:
+		List<Long> versions = new ArrayList<>();
+		List<List<Object>> records = new ArrayList<>();
+		long version = latest;
+		while (version > pruned) {
+			byte[] data = storage.getValue(NodeStore.versionKey(NodeStore.ORPHAN_PREFIX, version));
+			if (data == null) {
+				break;
+			}
+			List<Object> record = RLP.decodeAsList(new ByteArrayInput(data));
+			if (version <= limit) {
+				versions.add(version);
+				records.add(record);
+			}
+			version = NodeStore.bytesToLong((byte[]) record.get(0));
+		}
+		long deleted = 0;
+		for (int i = versions.size() - 1; i >= 0; i--) {
+			deleted += pruneVersion(versions.get(i), records.get(i));
+		}
+		return deleted;
+	}
+
+	private long pruneVersion(long version, List<Object> record) {
+		KeyValueStorage storage = this.store.getStorage();
+		@SuppressWarnings("unchecked")
+		List<Object> orphans = (List<Object>) record.get(1);
+		long deleted = 0;
+		// flush must not write nodes while checking and deleting:
+		synchronized (this.store) {
+			try (WriteBatch batch = storage.newBatch()) {
+				for (Object orphan : orphans) {
+					byte[] key = (byte[]) orphan;
+					byte[] data = storage.getValue(key);
+					if (data != null && NodeStore.decodeVersion(data) < version) {
+						batch.delete(key);
+						if (batch.size() >= this.batchSize) {
+							deleted += batch.size();
+							batch.commit(false);
+						}
+					}
+				}
+				deleted += batch.size();
+				// the last deletes are committed with the pruned version:
+				long previous = NodeStore.bytesToLong((byte[]) record.get(0));
+				if (previous > 0) {
+					batch.delete(NodeStore.versionKey(NodeStore.ROOT_PREFIX, previous));
+				}
+				batch.delete(NodeStore.versionKey(NodeStore.ORPHAN_PREFIX, version));
+				batch.put(NodeStore.PRUNED_KEY, NodeStore.longToBytes(version));
+				batch.commit(false);
+			}
+		}
+		logger.info("pruned version {}: {} nodes deleted.", version, deleted);
+		// value log segments only referenced by pruned versions:
+		ValueLog valueLog = this.tree.getValueLog();
+		if (valueLog != null) {
+			valueLog.deleteRetiredSegments(version);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Start pruning periodically in a background thread.
+	 *
+	 * @param interval Interval between two runs.
+	 * @param unit     Time unit of interval.
+	 */
+	public void start(long interval, TimeUnit unit) {
+		this.task.start(interval, unit);
+	}
+
+	/**
+	 * Stop background pruning and wait for the running prune to finish.
+	 */
+	@Override
+	public void close() {
+		this.task.stop();
+	}
+}
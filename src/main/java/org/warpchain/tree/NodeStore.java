@@ -0,0 +1,329 @@
+package org.warpchain.tree;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.warpchain.core.ByteString;
+import org.warpchain.core.NibblePath;
+import org.warpchain.db.KeyValueStorage;
+import org.warpchain.db.WriteBatch;
+import org.warpchain.encode.RLP;
+import org.warpchain.exception.DecodeException;
+import org.warpchain.exception.StoreException;
+import org.warpchain.util.ByteArrayInput;
+import org.warpchain.util.ByteArrayOutput;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Save and load tree nodes by merkle hash. In compact leaf mode a full node
+ * holding a single leaf has the same merkle hash as the lifted leaf, so full
+ * nodes are keyed by merkle hash with suffix 0x01. Nodes are encoded by RLP
+ * with the version which wrote them:
+ *
+ * <pre>
+ * full node: [0, height, path length, packed path, [16 child merkle hashes], leaf children mask, version]
+ * leaf node: [1, height, data hash, data value, version]
+ * </pre>
+ *
+ * Each flushed version records its root and the node keys it orphaned:
+ *
+ * <pre>
+ * smt:root:{version}   - root merkle hash
+ * smt:orphan:{version} - [previous version, [orphaned merkle hashes]]
+ * </pre>
+ *
+ * Recently used nodes are kept in a size-bounded LRU cache.
+ *
+ * @author liaoxuefeng
+ */
+class NodeStore {
+
+	private static final byte TYPE_FULL = 0;
+	private static final byte TYPE_LEAF = 1;
+	private static final byte TYPE_VALUE_LOG_LEAF = 2;
+
+	/**
+	 * Storage key of the latest flushed root merkle hash.
+	 */
+	static final byte[] ROOT_KEY = ByteUtils.stringToBytes("smt:root");
+
+	/**
+	 * Storage key of the latest flushed version.
+	 */
+	static final byte[] VERSION_KEY = ByteUtils.stringToBytes("smt:version");
+
+	/**
+	 * Storage key of the last pruned version.
+	 */
+	static final byte[] PRUNED_KEY = ByteUtils.stringToBytes("smt:pruned");
+
+	static final byte[] ROOT_PREFIX = ByteUtils.stringToBytes("smt:root:");
+	static final byte[] ORPHAN_PREFIX = ByteUtils.stringToBytes("smt:orphan:");
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final KeyValueStorage storage;
+
+	/**
+	 * Children of full node at or below this height are unloaded after saved.
+	 */
+	private final int residentHeight;
+
+	private final Map<ByteString, Node> cache;
+
+	NodeStore(KeyValueStorage storage, int cacheSize, int residentHeight) {
+		if (cacheSize < 1) {
+			throw new IllegalArgumentException("Invalid cache size: " + cacheSize);
+		}
+		this.storage = storage;
+		this.residentHeight = residentHeight;
+		this.cache = new LinkedHashMap<>(cacheSize * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteString, Node> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	KeyValueStorage getStorage() {
+		return this.storage;
+	}
+
+	/**
+	 * Get storage key of node.
+	 */
+	static byte[] keyOf(TreeInfo tree, byte[] merkleHash, boolean leaf) {
+		return tree.isCompactLeaf() && !leaf ? ByteUtils.concat(merkleHash, SparseMerkleTree.INTERNAL_PREFIX)
+				: merkleHash;
+	}
+
+	/**
+	 * Load node from cache or storage.
+	 */
+	Node load(TreeInfo tree, byte[] merkleHash, boolean leaf) {
+		byte[] storageKey = keyOf(tree, merkleHash, leaf);
+		ByteString key = ByteString.unsafe(storageKey);
+		synchronized (this.cache) {
+			Node node = this.cache.get(key);
+			if (node != null) {
+				return node;
+			}
+		}
+		byte[] data = this.storage.getValue(storageKey);
+		if (data == null) {
+			throw new StoreException("Node not found: " + ByteUtils.toHexString(merkleHash));
+		}
+		Node node = decode(tree, merkleHash, data);
+		synchronized (this.cache) {
+			this.cache.put(key, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Save all unsaved nodes of the committed sub-tree into write batch. Full
+	 * nodes whose saved children should be unloaded after the batch is committed
+	 * are added to unloads.
+	 */
+	void save(TreeInfo tree, Node node, long version, WriteBatch batch, List<FullNode> unloads) {
+		if (node.isPersisted()) {
+			return;
+		}
+		assert !node.isDirty() : "cannot save dirty node: " + node;
+		if (node instanceof FullNode) {
+			FullNode fn = (FullNode) node;
+			for (int i = 0; i < 16; i++) {
+				Node child = fn.getChild(i);
+				if (child != null && !(child instanceof HashNode)) {
+					save(tree, child, version, batch, unloads);
+				}
+			}
+			if (fn.getChildHeight() >= this.residentHeight) {
+				unloads.add(fn);
+			}
+			batch.put(keyOf(tree, fn.getMerkleHash(), false), encode(fn, version));
+			fn.markPersisted();
+		} else if (node instanceof LeafNode) {
+			LeafNode leaf = (LeafNode) node;
+			batch.put(keyOf(tree, leaf.getMerkleHash(), true), encode(tree, leaf, version));
+			leaf.markPersisted();
+		}
+	}
+
+	/**
+	 * Unload saved children of full nodes, which are kept only in cache. Must be
+	 * called after nodes are written to storage.
+	 */
+	void unload(TreeInfo tree, List<FullNode> unloads) {
+		for (FullNode fn : unloads) {
+			for (int i = 0; i < 16; i++) {
+				Node child = fn.getChild(i);
+				if (child != null && !(child instanceof HashNode)) {
+					// cache child before unloading it, so concurrent readers can load it:
+					synchronized (this.cache) {
+						this.cache.put(ByteString.unsafe(keyOf(tree, child.getMerkleHash(), FullNode.isLeaf(child))),
+								child);
+					}
+					fn.unloadChild(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record a flushed version with its root and the node keys orphaned since the
+	 * previous version into write batch.
+	 */
+	void saveVersion(long version, long previousVersion, byte[] rootHash, List<byte[]> orphans, WriteBatch batch) {
+		List<Object> record = List.of(longToBytes(previousVersion), new ArrayList<Object>(orphans));
+		ByteArrayOutput output = new ByteArrayOutput(16 + orphans.size() * 33);
+		RLP.encode(record, output);
+		batch.put(versionKey(ORPHAN_PREFIX, version), output.toByteArray());
+		batch.put(versionKey(ROOT_PREFIX, version), rootHash);
+		batch.put(ROOT_KEY, rootHash);
+		batch.put(VERSION_KEY, longToBytes(version));
+	}
+
+	/**
+	 * Load the latest flushed version, or 0 if nothing was flushed.
+	 */
+	long loadVersion() {
+		byte[] data = this.storage.getValue(VERSION_KEY);
+		return data == null ? 0 : bytesToLong(data);
+	}
+
+	/**
+	 * Load root merkle hash of a flushed version, or null if not exist or pruned.
+	 */
+	byte[] loadRootHash(long version) {
+		return this.storage.getValue(versionKey(ROOT_PREFIX, version));
+	}
+
+	byte[] encode(FullNode node, long version) {
+		List<Object> children = new ArrayList<>(16);
+		int leafMask = 0;
+		for (int i = 0; i < 16; i++) {
+			Node child = node.getChild(i);
+			children.add(child == null ? ByteUtils.emptyByteArray() : child.getMerkleHash());
+			if (child != null && FullNode.isLeaf(child)) {
+				leafMask |= 1 << i;
+			}
+		}
+		NibblePath path = node.getPath();
+		List<Object> list = List.of(TYPE_FULL, intToBytes(node.getHeight()), intToBytes(path.length()), path.toBytes(),
+				children, intToBytes(leafMask), longToBytes(version));
+		ByteArrayOutput output = new ByteArrayOutput(64 + 16 * node.getMerkleHash().length);
+		RLP.encode(list, output);
+		return output.toByteArray();
+	}
+
+	byte[] encode(TreeInfo tree, LeafNode node, long version) {
+		List<Object> list;
+		int size;
+		if (node.getValuePointer() == ValueLog.NO_POINTER) {
+			byte[] dataValue = node.getDataValue(tree);
+			list = List.of(TYPE_LEAF, intToBytes(node.getHeight()), node.getDataHash(), dataValue,
+					longToBytes(version));
+			size = 16 + node.getDataHash().length + dataValue.length;
+		} else {
+			// value hash and pointer of value in value log:
+			byte[] valueHash = node.getValueHash(tree);
+			list = List.of(TYPE_VALUE_LOG_LEAF, intToBytes(node.getHeight()), node.getDataHash(), valueHash,
+					longToBytes(node.getValuePointer()), longToBytes(version));
+			size = 32 + node.getDataHash().length + valueHash.length;
+		}
+		ByteArrayOutput output = new ByteArrayOutput(size);
+		RLP.encode(list, output);
+		return output.toByteArray();
+	}
+
+	Node decode(TreeInfo tree, byte[] merkleHash, byte[] data) {
+		List<Object> list = RLP.decodeAsList(new ByteArrayInput(data));
+		byte[] type = (byte[]) list.get(0);
+		int height = bytesToInt((byte[]) list.get(1));
+		if (type.length == 1 && type[0] == TYPE_FULL) {
+			int pathLength = bytesToInt((byte[]) list.get(2));
+			NibblePath path = NibblePath.unsafe((byte[]) list.get(3)).substring(0, pathLength);
+			@SuppressWarnings("unchecked")
+			List<Object> hashes = (List<Object>) list.get(4);
+			int leafMask = bytesToInt((byte[]) list.get(5));
+			Node[] children = null;
+			for (int i = 0; i < 16; i++) {
+				byte[] childHash = (byte[]) hashes.get(i);
+				if (childHash.length > 0) {
+					if (children == null) {
+						children = new Node[16];
+					}
+					children[i] = new HashNode(childHash, (leafMask & (1 << i)) != 0);
+				}
+			}
+			return new FullNode(tree, height, path, merkleHash, children);
+		}
+		if (type.length == 1 && type[0] == TYPE_LEAF) {
+			byte[] dataHash = (byte[]) list.get(2);
+			byte[] dataValue = (byte[]) list.get(3);
+			return new LeafNode(tree, height, NibblePath.unsafe(dataHash), dataHash, dataValue, merkleHash);
+		}
+		if (type.length == 1 && type[0] == TYPE_VALUE_LOG_LEAF) {
+			byte[] dataHash = (byte[]) list.get(2);
+			byte[] valueHash = (byte[]) list.get(3);
+			long valuePointer = bytesToLong((byte[]) list.get(4));
+			return new LeafNode(tree, height, NibblePath.unsafe(dataHash), dataHash, valueHash, valuePointer,
+					merkleHash);
+		}
+		throw new DecodeException("Invalid node type: " + ByteUtils.toHexString(type));
+	}
+
+	/**
+	 * Get the version which wrote the encoded node.
+	 */
+	static long decodeVersion(byte[] data) {
+		List<Object> list = RLP.decodeAsList(new ByteArrayInput(data));
+		return bytesToLong((byte[]) list.get(list.size() - 1));
+	}
+
+	void clearCache() {
+		synchronized (this.cache) {
+			logger.info("clear node cache: {} nodes.", this.cache.size());
+			this.cache.clear();
+		}
+	}
+
+	static byte[] intToBytes(int n) {
+		return new byte[] { (byte) (n >> 8), (byte) n };
+	}
+
+	static byte[] versionKey(byte[] prefix, long version) {
+		return ByteUtils.concat(prefix, longToBytes(version));
+	}
+
+	static byte[] longToBytes(long n) {
+		byte[] bs = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bs[i] = (byte) n;
+			n >>= 8;
+		}
+		return bs;
+	}
+
+	static long bytesToLong(byte[] bs) {
+		long n = 0;
+		for (byte b : bs) {
+			n = (n << 8) | (b & 0xff);
+		}
+		return n;
+	}
+
+	static int bytesToInt(byte[] bs) {
+		if (bs.length == 1) {
+			return bs[0] & 0xff;
+		}
+		return ((bs[0] & 0xff) << 8) | (bs[1] & 0xff);
+	}
+}
@@ -0,0 +1,66 @@
+package org.warpchain.tree;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run a task periodically in a daemon thread. Failure of one run is logged and
+ * does not stop later runs.
+ *
+ * @author liaoxuefeng
+ */
+final class PeriodicTask {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String name;
+	private final Runnable task;
+
+	private ScheduledExecutorService executor;
+
+	PeriodicTask(String name, Runnable task) {
+		this.name = name;
+		this.task = task;
+	}
+
+	synchronized void start(long interval, TimeUnit unit) {
+		if (this.executor != null) {
+			throw new IllegalStateException(this.name + " is already started.");
+		}
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, this.name);
+			t.setDaemon(true);
+			return t;
+		});
+		this.executor.scheduleWithFixedDelay(() -> {
+			try {
+				this.task.run();
+			} catch (RuntimeException e) {
+				logger.warn(this.name + " failed.", e);
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stop and wait for the running task to finish.
+	 */
+	void stop() {
+		ScheduledExecutorService es;
+		synchronized (this) {
+			es = this.executor;
+			this.executor = null;
+		}
+		if (es != null) {
+			es.shutdown();
+			try {
+				es.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
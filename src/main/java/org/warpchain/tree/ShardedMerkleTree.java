@@ -0,0 +1,352 @@
+package org.warpchain.tree;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Sparse merkle tree split into 16 shards by the first nibble of data hash.
+ * Each shard is a SparseMerkleTree written by its own thread, so updates of
+ * different shards run in parallel. The root merkle hash is calculated on
+ * demand by combining the 16 sub-trees at height 4, and is the same as a single
+ * tree with the same data.
+ *
+ * All methods are thread-safe. Updates of the same shard are applied in order
+ * of submission.
+ *
+ * @author liaoxuefeng
+ */
+public class ShardedMerkleTree implements Closeable {
+
+	static final int SHARDS = 16;
+
+	/**
+	 * Height of shard sub-trees.
+	 */
+	static final int SHARD_HEIGHT = 4;
+
+	private final SparseMerkleTree[] shards = new SparseMerkleTree[SHARDS];
+	private final ExecutorService[] executors = new ExecutorService[SHARDS];
+
+	/**
+	 * Construct an in-memory sharded tree using merkle hasher, which must be
+	 * thread-safe.
+	 * 
+	 * @param hasher      The merkle hasher.
+	 * @param compactLeaf Use compact leaf mode.
+	 */
+	public ShardedMerkleTree(MerkleHasher hasher, boolean compactLeaf) {
+		for (int i = 0; i < SHARDS; i++) {
+			this.shards[i] = new SparseMerkleTree(hasher, compactLeaf);
+			// parallelism comes from shards:
+			this.shards[i].setParallelCommit(null, 1);
+			final int index = i;
+			this.executors[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "tree-shard-" + index);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Get tree info for hashing and verifying proofs.
+	 */
+	public TreeInfo getTreeInfo() {
+		return this.shards[0];
+	}
+
+	/**
+	 * Update data in its shard asynchronously.
+	 * 
+	 * @param dataValue Data value.
+	 * @return Future completed when data is applied.
+	 */
+	public CompletableFuture<Void> update(byte[] dataValue) {
+		byte[] dataHash = this.shards[0].hash(dataValue);
+		int index = shardOf(dataHash);
+		SparseMerkleTree shard = this.shards[index];
+		return CompletableFuture.runAsync(() -> shard.update(dataHash, dataValue), this.executors[index]);
+	}
+
+	/**
+	 * Update a batch of data. Data is grouped by shard and applied in parallel.
+	 * 
+	 * @param dataValues Collection of data.
+	 * @return Future completed when all data is applied.
+	 */
+	public CompletableFuture<Void> updateAll(Collection<byte[]> dataValues) {
+		List<List<byte[]>> dataHashes = new ArrayList<>(SHARDS);
+		List<List<byte[]>> values = new ArrayList<>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			dataHashes.add(new ArrayList<>());
+			values.add(new ArrayList<>());
+		}
+		for (byte[] dataValue : dataValues) {
+			byte[] dataHash = this.shards[0].hash(dataValue);
+			dataHashes.get(shardOf(dataHash)).add(dataHash);
+			values.get(shardOf(dataHash)).add(dataValue);
+		}
+		List<CompletableFuture<Void>> futures = new ArrayList<>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			if (!dataHashes.get(i).isEmpty()) {
+				SparseMerkleTree shard = this.shards[i];
+				List<byte[]> shardHashes = dataHashes.get(i);
+				List<byte[]> shardValues = values.get(i);
+				futures.add(CompletableFuture.runAsync(() -> {
+					for (int n = 0; n < shardHashes.size(); n++) {
+						shard.update(shardHashes.get(n), shardValues.get(n));
+					}
+				}, this.executors[i]));
+			}
+		}
+		return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+	}
+
+	/**
+	 * Remove data from its shard asynchronously.
+	 * 
+	 * @param dataHash Data hash as key.
+	 * @return Future of true if data was found and removed.
+	 */
+	public CompletableFuture<Boolean> remove(byte[] dataHash) {
+		checkDataHash(dataHash);
+		int index = shardOf(dataHash);
+		SparseMerkleTree shard = this.shards[index];
+		return call(index, () -> shard.remove(dataHash));
+	}
+
+	/**
+	 * Get data value after all submitted updates of its shard, or null if not
+	 * found.
+	 */
+	public byte[] get(byte[] dataHash) {
+		checkDataHash(dataHash);
+		int index = shardOf(dataHash);
+		SparseMerkleTree shard = this.shards[index];
+		return join(call(index, () -> shard.get(dataHash)));
+	}
+
+	/**
+	 * Get root merkle hash after all submitted updates. Shards are committed in
+	 * parallel by their own threads.
+	 */
+	public synchronized byte[] getRootMerkleHash() {
+		List<CompletableFuture<ShardRoot>> futures = new ArrayList<>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			final int index = i;
+			futures.add(call(i, () -> readShardRoot(index, null)));
+		}
+		byte[][] levels = combine(futures, new ShardRoot[SHARDS * 2]);
+		return levels[1] == null ? getTreeInfo().getDefaultHashAtHeight(0) : levels[1];
+	}
+
+	/**
+	 * Generate proof of data hash after all submitted updates. Updates submitted
+	 * concurrently by other threads may or may not be included, so the proof is
+	 * returned with the root merkle hash it is generated against.
+	 */
+	public synchronized RootProof prove(byte[] dataHash) {
+		checkDataHash(dataHash);
+		int index = shardOf(dataHash);
+		List<CompletableFuture<ShardRoot>> futures = new ArrayList<>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			final int n = i;
+			// the shard proof is generated by the same task which reads shard root:
+			futures.add(call(i, () -> readShardRoot(n, n == index ? dataHash : null)));
+		}
+		ShardRoot[] lifted = new ShardRoot[SHARDS * 2];
+		byte[][] levels = combine(futures, lifted);
+		byte[] root = levels[1] == null ? getTreeInfo().getDefaultHashAtHeight(0) : levels[1];
+		// walk down to shard height as the single tree prover does, stop at empty
+		// sub-tree or lone leaf lifted in compact leaf mode:
+		for (int h = 0; h <= SHARD_HEIGHT; h++) {
+			int node = (1 << h) + ((dataHash[0] & 0xff) >> (8 - h));
+			if (lifted[node] != null) {
+				ShardRoot leaf = lifted[node];
+				return new RootProof(root, mergeProof(dataHash, Arrays.equals(dataHash, leaf.leafKey),
+						defaultBitmap(), new ArrayList<>(), levels, h, leaf.leafKey,
+						leaf.leafValueHash));
+			}
+			if (levels[node] == null) {
+				return new RootProof(root, mergeProof(dataHash, false, defaultBitmap(),
+						new ArrayList<>(), levels, h, null, null));
+			}
+		}
+		// siblings above shard height are default in shard, replace them by other
+		// shards:
+		MerkleProof proof = join(futures.get(index)).proof;
+		return new RootProof(root, mergeProof(dataHash, proof.isIncluded(), proof.getBitmap().clone(),
+				new ArrayList<>(proof.getSiblings()), levels, SHARD_HEIGHT, proof.getLeafKey(),
+				proof.getLeafValueHash()));
+	}
+
+	private byte[] defaultBitmap() {
+		byte[] bitmap = new byte[this.shards[0].getTreeHeight() / 8];
+		Arrays.fill(bitmap, (byte) 0xff);
+		return bitmap;
+	}
+
+	/**
+	 * Append siblings from the given height up to root to proof of the sub-tree
+	 * below.
+	 */
+	private static MerkleProof mergeProof(byte[] dataHash, boolean included, byte[] bitmap, List<byte[]> siblings,
+			byte[][] levels, int height, byte[] leafKey, byte[] leafValueHash) {
+		for (int h = height; h > 0; h--) {
+			int node = (1 << h) + ((dataHash[0] & 0xff) >> (8 - h));
+			byte[] sibling = levels[node ^ 1];
+			if (sibling != null) {
+				bitmap[(h - 1) >> 3] &= ~(0x80 >> ((h - 1) & 7));
+				siblings.add(sibling);
+			}
+		}
+		return new MerkleProof(dataHash, included, bitmap, siblings, leafKey, leafValueHash);
+	}
+
+	/**
+	 * Commit shard and read its sub-tree at shard height. Must run by the shard
+	 * thread.
+	 */
+	private ShardRoot readShardRoot(int index, byte[] dataHash) {
+		SparseMerkleTree shard = this.shards[index];
+		ShardRoot shardRoot = new ShardRoot();
+		shard.getRootMerkleHash();
+		Node child = ((FullNode) shard.getRootNode()).getChild(index);
+		if (child != null) {
+			shardRoot.merkleHash = child.getMerkleHash().clone();
+			shardRoot.leaf = FullNode.isLeaf(child);
+			if (shardRoot.leaf && shard.isCompactLeaf()) {
+				// lone leaf may be lifted above shard height:
+				LeafNode leaf = (LeafNode) ((FullNode) shard.getRootNode()).resolveChild(shard, index);
+				shardRoot.leafKey = leaf.getDataHash().clone();
+				shardRoot.leafValueHash = leaf.getValueHash(shard).clone();
+			}
+		}
+		if (dataHash != null) {
+			shardRoot.proof = shard.prove(dataHash);
+		}
+		return shardRoot;
+	}
+
+	/**
+	 * Combine shard sub-trees to the 31 binary nodes above and at shard height,
+	 * indexed from 1 (root) to 31, with null as empty. Shard root of lone leaf
+	 * lifted in compact leaf mode is set to lifted at its node.
+	 */
+	private byte[][] combine(List<CompletableFuture<ShardRoot>> futures, ShardRoot[] lifted) {
+		TreeInfo tree = getTreeInfo();
+		byte[][] levels = new byte[SHARDS * 2][];
+		for (int i = 0; i < SHARDS; i++) {
+			ShardRoot shardRoot = join(futures.get(i));
+			levels[SHARDS + i] = shardRoot.merkleHash;
+			if (tree.isCompactLeaf() && shardRoot.leaf) {
+				lifted[SHARDS + i] = shardRoot;
+			}
+		}
+		for (int n = SHARDS - 1; n > 0; n--) {
+			int childHeight = 32 - Integer.numberOfLeadingZeros(n);
+			byte[] left = levels[n << 1];
+			byte[] right = levels[(n << 1) + 1];
+			if (left == null && right == null) {
+				continue;
+			}
+			if ((left == null || right == null) && lifted[left == null ? (n << 1) + 1 : n << 1] != null) {
+				// lift lone leaf without hashing:
+				levels[n] = left == null ? right : left;
+				lifted[n] = lifted[left == null ? (n << 1) + 1 : n << 1];
+				continue;
+			}
+			levels[n] = tree.generateMerkleHash(left == null ? tree.getDefaultHashAtHeight(childHeight) : left,
+					right == null ? tree.getDefaultHashAtHeight(childHeight) : right);
+		}
+		return levels;
+	}
+
+	private static int shardOf(byte[] dataHash) {
+		return (dataHash[0] >> 4) & 0x0f;
+	}
+
+	private void checkDataHash(byte[] dataHash) {
+		if (dataHash.length * 8 != this.shards[0].getTreeHeight()) {
+			throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+		}
+	}
+
+	private <T> CompletableFuture<T> call(int shard, Supplier<T> supplier) {
+		return CompletableFuture.supplyAsync(supplier, this.executors[shard]);
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop shard threads after all submitted updates are applied.
+	 */
+	@Override
+	public void close() {
+		for (ExecutorService executor : this.executors) {
+			executor.shutdown();
+		}
+		for (ExecutorService executor : this.executors) {
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Proof and the root merkle hash it is generated against.
+	 */
+	public static class RootProof {
+
+		private final byte[] rootMerkleHash;
+		private final MerkleProof proof;
+
+		RootProof(byte[] rootMerkleHash, MerkleProof proof) {
+			this.rootMerkleHash = rootMerkleHash;
+			this.proof = proof;
+		}
+
+		public byte[] getRootMerkleHash() {
+			return this.rootMerkleHash;
+		}
+
+		public MerkleProof getProof() {
+			return this.proof;
+		}
+	}
+
+	/**
+	 * Sub-tree of shard at shard height, read by the shard thread.
+	 */
+	static class ShardRoot {
+		byte[] merkleHash;
+		boolean leaf;
+		// data hash and value hash of leaf in compact leaf mode:
+		byte[] leafKey;
+		byte[] leafValueHash;
+		MerkleProof proof;
+	}
+}
@@ -1,28 +1,110 @@
 package org.warpchain.tree;
 
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.warpchain.core.NibbleString;
+import org.warpchain.core.NibblePath;
+import org.warpchain.db.KeyValueStorage;
+import org.warpchain.db.WriteBatch;
+import org.warpchain.exception.StoreException;
 import org.warpchain.util.ByteUtils;
-import org.warpchain.util.HashUtils;
 
-public class SparseMerkleTree implements TreeInfo {
+public class SparseMerkleTree implements TreeInfo, Iterable<Map.Entry<byte[], byte[]>> {
+
+	/**
+	 * Nodes at or below this height are unloaded after flush.
+	 */
+	static final int DEFAULT_RESIDENT_HEIGHT = 8;
+
+	/**
+	 * Prefixes of hashed data in compact leaf mode.
+	 */
+	static final byte LEAF_PREFIX = 0x00;
+	static final byte INTERNAL_PREFIX = 0x01;
 
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
-	private final Function<byte[], byte[]> hashFunction;
+	private final MerkleHasher hasher;
 	private final int treeHeight;
+	private final boolean compactLeaf;
 	private final byte[][] DEFAULT_HASH_AT_HEIGHT;
 	private Node root;
 
+	/**
+	 * Node store, or null if tree is in memory only.
+	 */
+	private final NodeStore store;
+
+	/**
+	 * Version of the last snapshot.
+	 */
+	private long version = 0;
+
+	/**
+	 * Version of the last flush.
+	 */
+	private long flushedVersion = 0;
+
+	/**
+	 * Merkle hashes of saved nodes which are discarded since last flush.
+	 */
+	private List<byte[]> discardedNodes = new ArrayList<>();
+
+	/**
+	 * Pool used to commit large batches in parallel, or null if disabled. It is
+	 * disabled by default since the hash function may not be thread-safe.
+	 */
+	private ForkJoinPool commitPool = null;
+
+	/**
+	 * Minimum number of pending updates to commit in parallel.
+	 */
+	private int parallelCommitThreshold = 1024;
+
+	/**
+	 * Number of updates since last commit.
+	 */
+	private int pendingUpdates = 0;
+
+	private TreeMetrics metrics = TreeMetrics.NOOP;
+
+	/**
+	 * The last published snapshot, which is read by other threads without lock.
+	 */
+	private volatile TreeSnapshot latestSnapshot;
+
+	/**
+	 * Value log of large data values, or null if all values are kept in leaves.
+	 */
+	private volatile ValueLog valueLog;
+
+	/**
+	 * Minimum size of data value to append to value log.
+	 */
+	private int minValueLogSize;
+
+	/**
+	 * Head of value log when relocations were last applied.
+	 */
+	private long valueLogHead = 0;
+
 	/**
 	 * Default sparse merkle tree using DSHA-256 as hash function.
 	 */
 	public SparseMerkleTree() {
-		this(HashUtils::dsha256);
+		this(MerkleHasher.dsha256());
 	}
 
 	/**
@@ -33,19 +115,107 @@ public class SparseMerkleTree implements TreeInfo {
 	 * @param levels
 	 */
 	SparseMerkleTree(final Function<byte[], byte[]> hashFunction) {
-		this.hashFunction = hashFunction;
-		final byte[] hashOfLeaf = hashFunction.apply(ByteUtils.emptyByteArray());
+		this(MerkleHasher.of(hashFunction));
+	}
+
+	/**
+	 * Construct an in-memory tree using merkle hasher. The tree height is set to
+	 * hash size in bits.
+	 * 
+	 * @param hasher The merkle hasher.
+	 */
+	public SparseMerkleTree(MerkleHasher hasher) {
+		this(hasher, false);
+	}
+
+	/**
+	 * Construct an in-memory tree using merkle hasher, optionally in compact leaf
+	 * mode.
+	 * 
+	 * In compact leaf mode, a leaf hashes to H(0x00 || key || hash(value)) and is
+	 * placed at the height where it becomes unique, an internal node hashes to
+	 * H(0x01 || left || right), and an empty sub-tree hashes to zero. The prefixes
+	 * keep an internal node from being presented as a leaf in proofs. A commit
+	 * then costs O(log n) hashes instead of tree height. Root hash is not
+	 * compatible with the standard mode.
+	 * 
+	 * @param hasher      The merkle hasher.
+	 * @param compactLeaf Use compact leaf mode.
+	 */
+	public SparseMerkleTree(MerkleHasher hasher, boolean compactLeaf) {
+		this(hasher, compactLeaf, null);
+	}
+
+	/**
+	 * Storage-backed sparse merkle tree using DSHA-256 as hash function. Tree is
+	 * restored from the last flushed root if exists.
+	 * 
+	 * @param storage   Storage to save nodes.
+	 * @param cacheSize Max number of nodes kept in cache.
+	 */
+	public SparseMerkleTree(KeyValueStorage storage, int cacheSize) {
+		this(MerkleHasher.dsha256(), storage, cacheSize);
+	}
+
+	SparseMerkleTree(final Function<byte[], byte[]> hashFunction, KeyValueStorage storage, int cacheSize) {
+		this(MerkleHasher.of(hashFunction), storage, cacheSize);
+	}
+
+	/**
+	 * Storage-backed sparse merkle tree using merkle hasher.
+	 * 
+	 * @param hasher    The merkle hasher.
+	 * @param storage   Storage to save nodes.
+	 * @param cacheSize Max number of nodes kept in cache.
+	 */
+	public SparseMerkleTree(MerkleHasher hasher, KeyValueStorage storage, int cacheSize) {
+		this(hasher, false, storage, cacheSize);
+	}
+
+	/**
+	 * Storage-backed sparse merkle tree using merkle hasher, optionally in compact
+	 * leaf mode. The same mode must be used to reload the tree.
+	 * 
+	 * @param hasher      The merkle hasher.
+	 * @param compactLeaf Use compact leaf mode.
+	 * @param storage     Storage to save nodes.
+	 * @param cacheSize   Max number of nodes kept in cache.
+	 */
+	public SparseMerkleTree(MerkleHasher hasher, boolean compactLeaf, KeyValueStorage storage, int cacheSize) {
+		this(hasher, compactLeaf, new NodeStore(storage, cacheSize, DEFAULT_RESIDENT_HEIGHT));
+	}
+
+	private SparseMerkleTree(final MerkleHasher hasher, boolean compactLeaf, NodeStore store) {
+		this.hasher = hasher;
+		this.compactLeaf = compactLeaf;
+		this.store = store;
+		final byte[] hashOfLeaf = hasher.hash(ByteUtils.emptyByteArray());
 		this.treeHeight = 8 * hashOfLeaf.length;
 		DEFAULT_HASH_AT_HEIGHT = new byte[this.treeHeight + 1][];
-		DEFAULT_HASH_AT_HEIGHT[this.treeHeight] = hashOfLeaf;
-		for (int i = this.treeHeight - 1; i >= 0; i--) {
-			DEFAULT_HASH_AT_HEIGHT[i] = hashFunction
-					.apply(ByteUtils.concat(DEFAULT_HASH_AT_HEIGHT[i + 1], DEFAULT_HASH_AT_HEIGHT[i + 1]));
+		if (compactLeaf) {
+			// all empty sub-trees share the zero hash:
+			Arrays.fill(DEFAULT_HASH_AT_HEIGHT, new byte[hashOfLeaf.length]);
+		} else {
+			DEFAULT_HASH_AT_HEIGHT[this.treeHeight] = hashOfLeaf;
+			for (int i = this.treeHeight - 1; i >= 0; i--) {
+				DEFAULT_HASH_AT_HEIGHT[i] = hasher.hash(DEFAULT_HASH_AT_HEIGHT[i + 1], DEFAULT_HASH_AT_HEIGHT[i + 1]);
+			}
 		}
 		logger.info("init tree: height = {}, root merkle hash = {}, leaf merkle hash = {}", this.treeHeight,
 				ByteUtils.toHexString(DEFAULT_HASH_AT_HEIGHT[0]),
 				ByteUtils.toHexString(DEFAULT_HASH_AT_HEIGHT[this.treeHeight]));
-		this.root = new FullNode(this, 0, NibbleString.EMPTY);
+		this.root = new FullNode(this, 0, NibblePath.EMPTY);
+		if (store != null) {
+			byte[] rootHash = store.getStorage().getValue(NodeStore.ROOT_KEY);
+			if (rootHash != null) {
+				logger.info("load tree root: {}", ByteUtils.toHexString(rootHash));
+				this.root = store.load(this, rootHash, false);
+				this.version = store.loadVersion();
+				this.flushedVersion = this.version;
+			}
+		}
+		this.root.freeze();
+		this.latestSnapshot = new TreeSnapshot(this, this.root, this.version, 0);
 	}
 
 	@Override
@@ -58,49 +228,846 @@ public class SparseMerkleTree implements TreeInfo {
 		return this.treeHeight;
 	}
 
+	@Override
+	public boolean isCompactLeaf() {
+		return this.compactLeaf;
+	}
+
 	@Override
 	public byte[] hash(byte[] data) {
-		return this.hashFunction.apply(data);
+		this.metrics.onHash();
+		return this.hasher.hash(data);
+	}
+
+	@Override
+	public Node loadNode(byte[] merkleHash, boolean leaf) {
+		if (this.store == null) {
+			throw new IllegalStateException("Tree is not backed by storage.");
+		}
+		return this.store.load(this, merkleHash, leaf);
+	}
+
+	@Override
+	public void discardNode(Node node) {
+		if (this.store != null && node.isPersisted()) {
+			this.discardedNodes.add(NodeStore.keyOf(this, node.getMerkleHash(), FullNode.isLeaf(node)));
+		}
 	}
 
 	@Override
 	public byte[] generateMerkleHash(byte[] left, byte[] right) {
-		byte[] data = ByteUtils.concat(left, right);
-		return this.hashFunction.apply(data);
+		this.metrics.onHash();
+		if (this.compactLeaf) {
+			return this.hasher.hash(prefixed(INTERNAL_PREFIX, left, 0, right, 0));
+		}
+		return this.hasher.hash(left, right);
+	}
+
+	@Override
+	public void generateMerkleHash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output,
+			int outputOffset) {
+		this.metrics.onHash();
+		if (this.compactLeaf) {
+			byte[] hash = this.hasher.hash(prefixed(INTERNAL_PREFIX, left, leftOffset, right, rightOffset));
+			System.arraycopy(hash, 0, output, outputOffset, hash.length);
+			return;
+		}
+		this.hasher.hash(left, leftOffset, right, rightOffset, output, outputOffset);
+	}
+
+	@Override
+	public byte[][] generateMerkleHashes(byte[][] lefts, byte[][] rights, int count) {
+		for (int i = 0; i < count; i++) {
+			this.metrics.onHash();
+		}
+		if (this.compactLeaf) {
+			return this.hasher.hash(prefixed(INTERNAL_PREFIX, lefts, rights, count), count);
+		}
+		return this.hasher.hash(lefts, rights, count);
+	}
+
+	@Override
+	public byte[] generateLeafHash(byte[] dataHash, byte[] valueHash) {
+		this.metrics.onHash();
+		return this.hasher.hash(prefixed(LEAF_PREFIX, dataHash, 0, valueHash, 0));
+	}
+
+	@Override
+	public byte[][] generateLeafHashes(byte[][] dataHashes, byte[][] valueHashes, int count) {
+		for (int i = 0; i < count; i++) {
+			this.metrics.onHash();
+		}
+		return this.hasher.hash(prefixed(LEAF_PREFIX, dataHashes, valueHashes, count), count);
+	}
+
+	private byte[] prefixed(byte prefix, byte[] left, int leftOffset, byte[] right, int rightOffset) {
+		final int size = this.hasher.getHashSize();
+		byte[] data = new byte[1 + (size << 1)];
+		data[0] = prefix;
+		System.arraycopy(left, leftOffset, data, 1, size);
+		System.arraycopy(right, rightOffset, data, 1 + size, size);
+		return data;
+	}
+
+	private byte[][] prefixed(byte prefix, byte[][] lefts, byte[][] rights, int count) {
+		byte[][] data = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			data[i] = prefixed(prefix, lefts[i], 0, rights[i], 0);
+		}
+		return data;
+	}
+
+	@Override
+	public int getHashLanes() {
+		return this.hasher.getLanes();
+	}
+
+	@Override
+	public TreeMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	@Override
+	public long appendValue(byte[] dataHash, byte[] dataValue) {
+		if (this.valueLog == null || dataValue.length < this.minValueLogSize) {
+			return ValueLog.NO_POINTER;
+		}
+		return this.valueLog.append(dataHash, dataValue);
+	}
+
+	@Override
+	public byte[] readValue(long pointer) {
+		if (this.valueLog == null) {
+			throw new IllegalStateException("Tree has no value log.");
+		}
+		return this.valueLog.read(pointer);
+	}
+
+	/**
+	 * Set value log for data values of new leaves, which then keep only value hash
+	 * and pointer. A tree backed by storage must set the same value log before
+	 * reading leaves saved in value log mode.
+	 * 
+	 * @param valueLog     The value log, or null to keep new values in leaves.
+	 * @param minValueSize Minimum size of data value to append to value log.
+	 */
+	public void setValueLog(ValueLog valueLog, int minValueSize) {
+		if (minValueSize < 1) {
+			throw new IllegalArgumentException("Invalid min value size: " + minValueSize);
+		}
+		this.valueLog = valueLog;
+		this.minValueLogSize = minValueSize;
+		this.valueLogHead = 0;
+	}
+
+	ValueLog getValueLog() {
+		return this.valueLog;
+	}
+
+	boolean isBackedByStorage() {
+		return this.store != null;
+	}
+
+	/**
+	 * Get head of value log before which all moved values are relocated in tree.
+	 */
+	long getValueLogHead() {
+		return this.valueLogHead;
+	}
+
+	/**
+	 * Set metrics listener of tree operations. Listener must be thread-safe since
+	 * it is also called by parallel commit and by readers of snapshots.
+	 * 
+	 * @param metrics The metrics, or TreeMetrics.NOOP to disable.
+	 */
+	public void setMetrics(TreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the pool used to commit in parallel. Dirty sub-trees are hashed as
+	 * fork/join tasks when pending updates reach the threshold, otherwise commit
+	 * stays in the current thread. Parallel commit is disabled by default, and
+	 * the hash function must be thread-safe to enable it.
+	 * 
+	 * @param pool      The ForkJoinPool, or null to disable parallel commit.
+	 * @param threshold Minimum number of pending updates to commit in parallel.
+	 */
+	public void setParallelCommit(ForkJoinPool pool, int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("Invalid threshold: " + threshold);
+		}
+		this.commitPool = pool;
+		this.parallelCommitThreshold = threshold;
 	}
 
 	public Node getRootNode() {
 		return this.root;
 	}
 
+	/**
+	 * Update tree by data. Only the structure is changed and nodes along the path
+	 * are marked dirty. Merkle hashes are calculated once when root merkle hash,
+	 * proof or snapshot is requested.
+	 * 
+	 * @param dataValue Data value.
+	 */
 	public void update(byte[] dataValue) {
-		update(this.hashFunction.apply(dataValue), dataValue);
+		update(hash(dataValue), dataValue);
 	}
 
 	void update(byte[] dataHash, byte[] dataValue) {
-		NibbleString path = new NibbleString(dataHash);
+		NibblePath path = NibblePath.unsafe(dataHash);
 		update(path, dataHash, dataValue);
 	}
 
-	void update(NibbleString dataPath, byte[] dataHash, byte[] dataValue) {
+	void update(NibblePath dataPath, byte[] dataHash, byte[] dataValue) {
+		apply(dataPath, dataHash, dataValue);
+	}
+
+	/**
+	 * Update tree by a batch of data. Same as update each data: merkle hash of
+	 * each changed node is calculated exactly once when requested.
+	 * 
+	 * @param dataValues Collection of data.
+	 */
+	public void updateAll(Collection<byte[]> dataValues) {
+		for (byte[] dataValue : dataValues) {
+			byte[] dataHash = hash(dataValue);
+			apply(NibblePath.unsafe(dataHash), dataHash, dataValue);
+		}
+	}
+
+	/**
+	 * Load an empty tree from entries of data hash and data value sorted by data
+	 * hash in ascending order. Nodes are built while iterating without descent or
+	 * split, and each merkle hash is calculated once when requested, in parallel
+	 * if the parallel commit is enabled. Data hashes are copied so the iterator
+	 * may reuse its key buffer.
+	 * 
+	 * @param entries Sorted entries of data hash and data value.
+	 * @return Number of loaded entries.
+	 */
+	public int bulkLoad(Iterator<Map.Entry<byte[], byte[]>> entries) {
+		if (!isEmpty()) {
+			throw new IllegalStateException("Cannot bulk load non-empty tree.");
+		}
+		// open full nodes on path of last data hash, from root:
+		Deque<PendingNode> stack = new ArrayDeque<>();
+		stack.push(new PendingNode(NibblePath.EMPTY));
+		byte[] last = null;
+		byte[] lastValue = null;
+		int size = 0;
+		while (entries.hasNext()) {
+			Map.Entry<byte[], byte[]> entry = entries.next();
+			byte[] dataHash = entry.getKey();
+			byte[] dataValue = entry.getValue();
+			if (dataHash.length * 8 != this.treeHeight) {
+				throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+			}
+			if (dataValue == null || dataValue.length == 0) {
+				throw new IllegalArgumentException("Empty data value of: " + ByteUtils.toHexString(dataHash));
+			}
+			if (last != null && Arrays.compareUnsigned(last, dataHash) >= 0) {
+				throw new IllegalArgumentException("Data hash is not sorted: " + ByteUtils.toHexString(dataHash));
+			}
+			dataHash = dataHash.clone();
+			if (last != null) {
+				int shared = NibblePath.sharedPrefixLength(NibblePath.unsafe(last), NibblePath.unsafe(dataHash));
+				if (shared > stack.peek().path.length()) {
+					// last and current data hash are the first two of a new full node:
+					stack.push(new PendingNode(NibblePath.unsafe(dataHash).substring(0, shared)));
+				}
+				stack.peek().setLeaf(this, last, lastValue);
+				// full nodes below the shared prefix are complete:
+				while (stack.peek().path.length() > shared) {
+					PendingNode completed = stack.pop();
+					if (stack.peek().path.length() < shared) {
+						stack.push(new PendingNode(NibblePath.unsafe(dataHash).substring(0, shared)));
+					}
+					stack.peek().setFull(this, completed);
+				}
+			}
+			last = dataHash;
+			lastValue = dataValue;
+			size++;
+		}
+		if (size == 0) {
+			return 0;
+		}
+		stack.peek().setLeaf(this, last, lastValue);
+		while (stack.size() > 1) {
+			PendingNode completed = stack.pop();
+			stack.peek().setFull(this, completed);
+		}
+		this.discardNode(this.root);
+		this.root = stack.pop().build(this, 0);
+		this.pendingUpdates += size;
+		return size;
+	}
+
+	private boolean isEmpty() {
+		FullNode full = (FullNode) this.root;
+		for (int i = 0; i < 16; i++) {
+			if (full.getChild(i) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reset tree to empty, which drops bulk loaded state that fails verification.
+	 */
+	void clear() {
+		this.discardNode(this.root);
+		this.root = new FullNode(this, 0, NibblePath.EMPTY);
+		this.pendingUpdates++;
+	}
+
+	/**
+	 * Full node of bulk load which height is unknown until its parent is
+	 * complete.
+	 */
+	private static class PendingNode {
+
+		final NibblePath path;
+		final Node[] children = new Node[16];
+
+		PendingNode(NibblePath path) {
+			this.path = path;
+		}
+
+		void setLeaf(TreeInfo tree, byte[] dataHash, byte[] dataValue) {
+			this.children[nibbleAt(dataHash, this.path.length())] = new LeafNode(tree, childHeight(),
+					NibblePath.unsafe(dataHash), dataHash, dataValue);
+		}
+
+		void setFull(TreeInfo tree, PendingNode child) {
+			this.children[child.path.valueAt(this.path.length())] = child.build(tree, childHeight());
+		}
+
+		FullNode build(TreeInfo tree, int height) {
+			FullNode node = new FullNode(tree, height, this.path);
+			for (int i = 0; i < 16; i++) {
+				if (this.children[i] != null) {
+					node.setChild(i, this.children[i]);
+				}
+			}
+			return node;
+		}
+
+		int childHeight() {
+			return this.path.length() * 4 + 4;
+		}
+	}
+
+	private void apply(NibblePath dataPath, byte[] dataHash, byte[] dataValue) {
 		assert 4 * dataPath.length() == this.treeHeight : "Invalid path size: " + dataPath;
 
-		logger.info("update tree: path={}, data={}", dataPath, new String(dataValue, StandardCharsets.UTF_8));
-		this.root = this.root.update(this, dataPath, dataHash, dataValue);
+		if (this.metrics == TreeMetrics.NOOP) {
+			this.root = this.root.update(this, dataPath, dataHash, dataValue);
+		} else {
+			long start = System.nanoTime();
+			this.root = this.root.update(this, dataPath, dataHash, dataValue);
+			this.metrics.onUpdate(pathLength(dataHash), System.nanoTime() - start);
+		}
+		this.pendingUpdates++;
+	}
+
+	/**
+	 * Number of nodes from root to the data hash, without loading nodes.
+	 */
+	private int pathLength(byte[] dataHash) {
+		int n = 0;
+		Node node = this.root;
+		while (node instanceof FullNode) {
+			FullNode full = (FullNode) node;
+			node = full.getChild(nibbleAt(dataHash, full.getPath().length()));
+			n++;
+		}
+		return node == null ? n : n + 1;
+	}
+
+	/**
+	 * Remove data from tree. Merkle hash is calculated when requested.
+	 * 
+	 * @param dataHash Data hash as key.
+	 * @return True if data was found and removed.
+	 */
+	public boolean remove(byte[] dataHash) {
+		if (!contains(dataHash)) {
+			return false;
+		}
+		if (this.metrics == TreeMetrics.NOOP) {
+			this.root = this.root.remove(this, NibblePath.unsafe(dataHash));
+		} else {
+			int pathLength = pathLength(dataHash);
+			long start = System.nanoTime();
+			this.root = this.root.remove(this, NibblePath.unsafe(dataHash));
+			this.metrics.onUpdate(pathLength, System.nanoTime() - start);
+		}
+		this.pendingUpdates++;
+		return true;
+	}
+
+	/**
+	 * Calculate merkle hashes of all dirty nodes.
+	 */
+	private void commit() {
+		if (!this.root.isDirty()) {
+			this.pendingUpdates = 0;
+			return;
+		}
+		long start = this.metrics == TreeMetrics.NOOP ? 0 : System.nanoTime();
+		if (this.commitPool != null && this.pendingUpdates >= this.parallelCommitThreshold) {
+			this.commitPool.invoke(new FullNode.CommitTask(this, this.root));
+		} else {
+			this.root.commit(this);
+		}
+		if (this.metrics != TreeMetrics.NOOP) {
+			this.metrics.onCommit(this.pendingUpdates, System.nanoTime() - start);
+		}
+		this.pendingUpdates = 0;
+	}
+
+	/**
+	 * Commit and freeze current tree as a new version. The snapshot is immutable
+	 * and shares unchanged nodes with later versions: further updates copy only
+	 * nodes along the changed paths.
+	 * 
+	 * @return Snapshot of current version.
+	 */
+	public TreeSnapshot snapshot() {
+		List<Integer> relocatedSegments = relocateValues();
+		commit();
+		this.root.freeze();
+		this.version++;
+		retireSegments(relocatedSegments);
+		TreeSnapshot snapshot = new TreeSnapshot(this, this.root, this.version, this.discardedNodes.size());
+		this.latestSnapshot = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Update leaves whose values are moved by value log collector. Merkle hashes
+	 * are unchanged.
+	 * 
+	 * @return Segments which all live values are relocated.
+	 */
+	private List<Integer> relocateValues() {
+		List<Integer> relocatedSegments = new ArrayList<>();
+		if (this.valueLog == null) {
+			return relocatedSegments;
+		}
+		List<ValueLog.Relocation> relocations = new ArrayList<>();
+		this.valueLogHead = this.valueLog.drainRelocations(relocations);
+		for (ValueLog.Relocation relocation : relocations) {
+			if (relocation.dataHash == null) {
+				relocatedSegments.add(relocation.segment);
+			} else {
+				this.root = ((FullNode) this.root).relocateValue(this, NibblePath.unsafe(relocation.dataHash),
+						relocation.from, relocation.to);
+			}
+		}
+		return relocatedSegments;
+	}
+
+	/**
+	 * Relocated segments are kept until versions before current version can no
+	 * longer be read.
+	 */
+	private void retireSegments(List<Integer> relocatedSegments) {
+		if (!relocatedSegments.isEmpty()) {
+			this.valueLog.retireSegments(relocatedSegments, this.version);
+		}
+	}
+
+	/**
+	 * Get the last snapshot published by snapshot, flush or rollback. This method
+	 * is thread-safe and never blocks, so reader threads can get, prove and
+	 * iterate the returned snapshot while the writer thread is updating and
+	 * committing the tree.
+	 * 
+	 * @return The latest snapshot.
+	 */
+	public TreeSnapshot getLatestSnapshot() {
+		return this.latestSnapshot;
+	}
+
+	/**
+	 * Reset tree to a snapshot. Changes after the snapshot are discarded. Tree
+	 * backed by storage cannot rollback to a version before the last flush.
+	 * 
+	 * @param snapshot Snapshot of this tree.
+	 */
+	public void rollback(TreeSnapshot snapshot) {
+		if (snapshot.getTree() != this) {
+			throw new IllegalArgumentException("Snapshot is not created by this tree.");
+		}
+		if (this.store != null && snapshot.getVersion() < this.flushedVersion) {
+			throw new IllegalStateException("Cannot rollback to version " + snapshot.getVersion()
+					+ " before last flushed version " + this.flushedVersion);
+		}
+		if (this.valueLog != null && !this.valueLog.restoreSegments(snapshot.getVersion())) {
+			throw new IllegalStateException(
+					"Cannot rollback to version " + snapshot.getVersion() + " which points to deleted value log segments");
+		}
+		logger.info("rollback tree to version {}: {}", snapshot.getVersion(),
+				ByteUtils.toHexString(snapshot.getRootMerkleHash()));
+		this.root = snapshot.getRootNode();
+		this.pendingUpdates = 0;
+		this.latestSnapshot = snapshot;
+		if (this.valueLog != null) {
+			// relocations of collector were made against leaves after snapshot:
+			this.valueLog.cancelRelocations();
+		}
+		// nodes discarded after snapshot are alive again:
+		this.discardedNodes.subList(snapshot.getDiscardedCount(), this.discardedNodes.size()).clear();
+	}
+
+	/**
+	 * Get data value by data hash, or null if not found. No hash is calculated.
+	 * 
+	 * @param dataHash Data hash as key.
+	 * @return Data value or null.
+	 */
+	public byte[] get(byte[] dataHash) {
+		LeafNode leaf = getLeaf(this.root, dataHash);
+		return leaf == null ? null : leaf.getDataValue(this);
+	}
+
+	/**
+	 * Test if tree contains data hash. No hash is calculated.
+	 * 
+	 * @param dataHash Data hash as key.
+	 * @return True if data hash exists.
+	 */
+	public boolean contains(byte[] dataHash) {
+		return getLeaf(this.root, dataHash) != null;
+	}
+
+	LeafNode getLeaf(Node root, byte[] dataHash) {
+		if (dataHash.length * 8 != this.treeHeight) {
+			throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+		}
+		NibblePath dataPath = NibblePath.unsafe(dataHash);
+		Node node = root;
+		while (node instanceof FullNode) {
+			FullNode full = (FullNode) node;
+			NibblePath path = full.getPath();
+			// check shared path:
+			if (!dataPath.startsWith(path)) {
+				return null;
+			}
+			node = full.resolveChild(this, nibbleAt(dataHash, path.length()));
+		}
+		if (node != null && Arrays.equals(((LeafNode) node).getDataHash(), dataHash)) {
+			return (LeafNode) node;
+		}
+		return null;
+	}
+
+	private static int nibbleAt(byte[] bs, int index) {
+		int b = bs[index >> 1];
+		return (index & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+	}
+
+	/**
+	 * Save all changed nodes to storage as a new version, and record the root with
+	 * the saved nodes orphaned by this version. Nodes at lower levels are unloaded
+	 * from memory and kept only in node cache.
+	 * 
+	 * @return Snapshot of the flushed version.
+	 */
+	public TreeSnapshot flush() {
+		if (this.store == null) {
+			throw new IllegalStateException("Tree is not backed by storage.");
+		}
+		List<Integer> relocatedSegments = relocateValues();
+		commit();
+		this.root.freeze();
+		this.version++;
+		if (this.valueLog != null) {
+			// values must be durable before leaves pointing to them:
+			this.valueLog.sync();
+		}
+		synchronized (this.store) {
+			// nodes and version record are committed at once:
+			List<FullNode> unloads = new ArrayList<>();
+			try (WriteBatch batch = this.store.getStorage().newBatch()) {
+				this.store.save(this, this.root, this.version, batch, unloads);
+				this.store.saveVersion(this.version, this.flushedVersion, this.root.getMerkleHash(),
+						this.discardedNodes, batch);
+				batch.commit(false);
+			}
+			this.store.unload(this, unloads);
+		}
+		logger.info("flushed tree version {}: root = {}, orphans = {}", this.version, getRootMerkleHashAsString(),
+				this.discardedNodes.size());
+		this.flushedVersion = this.version;
+		this.discardedNodes = new ArrayList<>();
+		TreeSnapshot snapshot = new TreeSnapshot(this, this.root, this.version, 0);
+		// deleted by pruner after the versions before are pruned:
+		retireSegments(relocatedSegments);
+		this.latestSnapshot = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Load snapshot of a flushed version which is not pruned.
+	 * 
+	 * @param version Flushed version.
+	 * @return Snapshot of the version.
+	 */
+	public TreeSnapshot loadSnapshot(long version) {
+		if (this.store == null) {
+			throw new IllegalStateException("Tree is not backed by storage.");
+		}
+		byte[] rootHash = this.store.loadRootHash(version);
+		if (rootHash == null) {
+			throw new StoreException("Version not found: " + version);
+		}
+		return new TreeSnapshot(this, this.store.load(this, rootHash, false), version, 0);
+	}
+
+	/**
+	 * Create pruner which deletes nodes orphaned by versions out of the retention
+	 * window.
+	 * 
+	 * @param retainVersions Number of latest versions which are never pruned.
+	 * @param batchSize      Max number of keys deleted at once.
+	 * @return NodePruner object.
+	 */
+	public NodePruner createPruner(long retainVersions, int batchSize) {
+		if (this.store == null) {
+			throw new IllegalStateException("Tree is not backed by storage.");
+		}
+		return new NodePruner(this, this.store, retainVersions, batchSize);
+	}
+
+	/**
+	 * Create collector which moves live values out of value log segments with low
+	 * live ratio.
+	 * 
+	 * @param minLiveRatio   Segment is collected if ratio of live bytes is below.
+	 * @param retainVersions Number of latest versions before the one which
+	 *                       relocated a segment that can still read it. Ignored if
+	 *                       tree is backed by storage, where NodePruner deletes
+	 *                       segments with the pruned versions.
+	 * @return ValueLogCollector object.
+	 */
+	public ValueLogCollector createValueLogCollector(double minLiveRatio, long retainVersions) {
+		if (this.valueLog == null) {
+			throw new IllegalStateException("Tree has no value log.");
+		}
+		return new ValueLogCollector(this, this.valueLog, minLiveRatio, retainVersions);
+	}
+
+	/**
+	 * Generate inclusion or non-inclusion proof of data hash.
+	 * 
+	 * @param dataHash Data hash as key.
+	 * @return MerkleProof object.
+	 */
+	public MerkleProof prove(byte[] dataHash) {
+		commit();
+		return prove(this.root, dataHash);
+	}
+
+	MerkleProof prove(Node root, byte[] dataHash) {
+		if (dataHash.length * 8 != this.treeHeight) {
+			throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+		}
+		// siblings by height:
+		byte[][] siblings = new byte[this.treeHeight + 1][];
+		BinaryNode current = BinaryNode.of((FullNode) root);
+		int height = 0;
+		LeafNode leaf = null;
+		while (current != null && height < this.treeHeight) {
+			if (this.compactLeaf) {
+				leaf = current.loneLeaf(this);
+				if (leaf != null) {
+					// compact leaf ends the path:
+					break;
+				}
+			}
+			int bit = ByteUtils.bitAt(dataHash, height);
+			BinaryNode sibling = current.child(this, 1 - bit);
+			if (sibling != null) {
+				siblings[height + 1] = sibling.getMerkleHash(this);
+			}
+			current = current.child(this, bit);
+			height++;
+		}
+		byte[] bitmap = new byte[this.treeHeight / 8];
+		List<byte[]> list = new ArrayList<>();
+		for (int h = this.treeHeight; h > 0; h--) {
+			if (siblings[h] == null) {
+				bitmap[(h - 1) >> 3] |= 0x80 >> ((h - 1) & 7);
+			} else {
+				list.add(siblings[h]);
+			}
+		}
+		if (leaf != null) {
+			return new MerkleProof(dataHash, Arrays.equals(leaf.getDataHash(), dataHash), bitmap, list,
+					leaf.getDataHash(), leaf.getValueHash(this));
+		}
+		return new MerkleProof(dataHash, current != null, bitmap, list);
 	}
 
+	/**
+	 * Generate one proof for multiple data hashes. The tree is visited only once
+	 * and shared siblings are included only once.
+	 * 
+	 * @param dataHashes Data hashes as keys.
+	 * @return MerkleMultiProof object.
+	 */
+	public MerkleMultiProof proveAll(Collection<byte[]> dataHashes) {
+		commit();
+		return proveAll(this.root, dataHashes);
+	}
+
+	MerkleMultiProof proveAll(Node root, Collection<byte[]> dataHashes) {
+		if (dataHashes.isEmpty()) {
+			throw new IllegalArgumentException("Empty data hashes.");
+		}
+		List<byte[]> sorted = new ArrayList<>(dataHashes);
+		sorted.sort(Arrays::compareUnsigned);
+		List<byte[]> keys = new ArrayList<>(sorted.size());
+		for (byte[] dataHash : sorted) {
+			if (dataHash.length * 8 != this.treeHeight) {
+				throw new IllegalArgumentException("Invalid data hash: " + ByteUtils.toHexString(dataHash));
+			}
+			if (keys.isEmpty() || !Arrays.equals(keys.get(keys.size() - 1), dataHash)) {
+				keys.add(dataHash);
+			}
+		}
+		MultiProofGenerator generator = new MultiProofGenerator(keys);
+		generator.visit(BinaryNode.of((FullNode) root), 0, 0, keys.size());
+		byte[] markers = new byte[generator.markers.size()];
+		for (int i = 0; i < markers.length; i++) {
+			markers[i] = generator.markers.get(i);
+		}
+		return new MerkleMultiProof(keys, generator.included, markers, generator.hashes);
+	}
+
+	private class MultiProofGenerator {
+
+		final List<byte[]> keys;
+		final boolean[] included;
+		final List<Byte> markers = new ArrayList<>();
+		final List<byte[]> hashes = new ArrayList<>();
+
+		MultiProofGenerator(List<byte[]> keys) {
+			this.keys = keys;
+			this.included = new boolean[keys.size()];
+		}
+
+		/**
+		 * Visit sub-tree which contains keys in [from, to).
+		 */
+		void visit(BinaryNode node, int height, int from, int to) {
+			if (node == null) {
+				markers.add(MerkleMultiProof.EMPTY);
+				return;
+			}
+			LeafNode leaf = compactLeaf ? node.loneLeaf(SparseMerkleTree.this)
+					: node.node instanceof LeafNode ? (LeafNode) node.node : null;
+			if (leaf != null) {
+				byte[] leafHash = leaf.getDataHash();
+				if (to - from == 1 && Arrays.equals(leafHash, keys.get(from))) {
+					markers.add(MerkleMultiProof.LEAF_KEY);
+				} else {
+					markers.add(MerkleMultiProof.LEAF);
+					hashes.add(leafHash);
+				}
+				if (compactLeaf) {
+					// compact leaf is lifted to this height and hashed with its value:
+					hashes.add(leaf.getValueHash(SparseMerkleTree.this));
+				}
+				for (int i = from; i < to; i++) {
+					included[i] = Arrays.equals(leafHash, keys.get(i));
+				}
+				return;
+			}
+			markers.add(MerkleMultiProof.BRANCH);
+			int mid = MerkleMultiProof.split(keys, from, to, height);
+			BinaryNode left = node.child(SparseMerkleTree.this, 0);
+			if (from < mid) {
+				visit(left, height + 1, from, mid);
+			} else {
+				sibling(left);
+			}
+			BinaryNode right = node.child(SparseMerkleTree.this, 1);
+			if (mid < to) {
+				visit(right, height + 1, mid, to);
+			} else {
+				sibling(right);
+			}
+		}
+
+		void sibling(BinaryNode node) {
+			if (node == null) {
+				markers.add(MerkleMultiProof.DEFAULT);
+			} else {
+				markers.add(MerkleMultiProof.HASH);
+				hashes.add(node.getMerkleHash(SparseMerkleTree.this));
+			}
+		}
+	}
+
+	/**
+	 * Iterate data hash and data value in order of data hash. Tree must not be
+	 * updated during iteration.
+	 */
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+		return Spliterators.iterator(spliterator());
+	}
+
+	@Override
+	public Spliterator<Map.Entry<byte[], byte[]>> spliterator() {
+		return new LeafSpliterator(this, this.root);
+	}
+
+	/**
+	 * Get changes between two snapshots of this tree, ordered by data hash.
+	 * Sub-trees with same merkle hash are skipped, so cost is proportional to the
+	 * number of changes.
+	 * 
+	 * @param from The old snapshot.
+	 * @param to   The new snapshot.
+	 * @return List of added, removed or changed data.
+	 */
+	public List<DiffEntry> diff(TreeSnapshot from, TreeSnapshot to) {
+		if (from.getTree() != this || to.getTree() != this) {
+			throw new IllegalArgumentException("Snapshot is not created by this tree.");
+		}
+		return TreeDiff.diff(this, from.getRootNode(), to.getRootNode());
+	}
+
+	/**
+	 * Get root merkle hash. Pending updates are committed first.
+	 */
 	public byte[] getRootMerkleHash() {
+		commit();
 		return this.root.getMerkleHash();
 	}
 
 	public String getRootMerkleHashAsString() {
-		return ByteUtils.toHexString(this.root.getMerkleHash());
+		return ByteUtils.toHexString(getRootMerkleHash());
 	}
 
 	public void print() {
 		System.out.println(toString());
 	}
 
+	/**
+	 * Print nodes without committing pending updates, so merkle hash of a changed
+	 * node is shown as dirty.
+	 */
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder(4096);
@@ -0,0 +1,139 @@
+package org.warpchain.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.warpchain.encode.RLP;
+import org.warpchain.exception.DecodeException;
+import org.warpchain.util.ByteArrayInput;
+import org.warpchain.util.ByteArrayOutput;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * A range of sorted data with range proof against the root merkle hash. Chunk
+ * covers data hashes in (lower bound, last data hash], and the last chunk also
+ * covers all data hashes after it.
+ *
+ * @author liaoxuefeng
+ */
+public class StateChunk {
+
+	/**
+	 * Exclusive lower bound, which is the last data hash of previous chunk, or
+	 * empty array for the first chunk.
+	 */
+	private final byte[] lowerBound;
+
+	/**
+	 * Data values in order of data hash.
+	 */
+	private final List<byte[]> dataValues;
+
+	/**
+	 * Range proof of lower bound, if not empty, and all data hashes in chunk.
+	 */
+	private final MerkleMultiProof proof;
+
+	/**
+	 * Is the last chunk.
+	 */
+	private final boolean last;
+
+	StateChunk(byte[] lowerBound, List<byte[]> dataValues, MerkleMultiProof proof, boolean last) {
+		this.lowerBound = lowerBound;
+		this.dataValues = dataValues;
+		this.proof = proof;
+		this.last = last;
+	}
+
+	public byte[] getLowerBound() {
+		return this.lowerBound;
+	}
+
+	public List<byte[]> getDataHashes() {
+		List<byte[]> dataHashes = this.proof.getDataHashes();
+		return this.lowerBound.length == 0 ? dataHashes : dataHashes.subList(1, dataHashes.size());
+	}
+
+	public List<byte[]> getDataValues() {
+		return this.dataValues;
+	}
+
+	public MerkleMultiProof getProof() {
+		return this.proof;
+	}
+
+	public boolean isLast() {
+		return this.last;
+	}
+
+	/**
+	 * Get the last data hash of chunk.
+	 */
+	public byte[] getUpperBound() {
+		List<byte[]> dataHashes = getDataHashes();
+		return dataHashes.get(dataHashes.size() - 1);
+	}
+
+	/**
+	 * Verify chunk independently against root merkle hash. Each data hash must be
+	 * the hash of its data value.
+	 *
+	 * @param tree           Tree info with same hash function.
+	 * @param rootMerkleHash Root merkle hash.
+	 * @return True if chunk is valid.
+	 */
+	public boolean verify(TreeInfo tree, byte[] rootMerkleHash) {
+		List<byte[]> proven = this.proof.getDataHashes();
+		if (this.lowerBound.length != 0 && (proven.isEmpty() || !Arrays.equals(proven.get(0), this.lowerBound))) {
+			return false;
+		}
+		List<byte[]> dataHashes = getDataHashes();
+		if (dataHashes.isEmpty() || dataHashes.size() != this.dataValues.size()) {
+			return false;
+		}
+		for (int i = 0; i < dataHashes.size(); i++) {
+			byte[] dataValue = this.dataValues.get(i);
+			if (dataValue.length == 0 || !Arrays.equals(dataHashes.get(i), tree.hash(dataValue))) {
+				return false;
+			}
+		}
+		// first chunk has nothing before it and last chunk has nothing after it:
+		return MerkleMultiProof.verifyRange(tree, rootMerkleHash, this.proof, this.lowerBound.length == 0,
+				this.last);
+	}
+
+	/**
+	 * Encode chunk as RLP: [lower bound, [data values], proof, last].
+	 */
+	public byte[] toBytes() {
+		List<Object> list = List.of(this.lowerBound, new ArrayList<Object>(this.dataValues), this.proof.toBytes(),
+				(byte) (this.last ? 1 : 0));
+		ByteArrayOutput output = new ByteArrayOutput(1024);
+		RLP.encode(list, output);
+		return output.toByteArray();
+	}
+
+	public static StateChunk fromBytes(byte[] data) {
+		List<Object> list = RLP.decodeAsList(new ByteArrayInput(data));
+		if (list.size() != 4) {
+			throw new DecodeException("Invalid chunk.");
+		}
+		@SuppressWarnings("unchecked")
+		List<Object> items = (List<Object>) list.get(1);
+		List<byte[]> dataValues = new ArrayList<>(items.size());
+		for (Object item : items) {
+			dataValues.add((byte[]) item);
+		}
+		byte[] last = (byte[]) list.get(3);
+		return new StateChunk((byte[]) list.get(0), dataValues, MerkleMultiProof.fromBytes((byte[]) list.get(2)),
+				last.length == 1 && last[0] == 1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StateChunk(lowerBound=%s, size=%s, last=%s)", ByteUtils.toHexString(this.lowerBound),
+				this.dataValues.size(), this.last);
+	}
+}
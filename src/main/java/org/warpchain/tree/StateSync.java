@@ -0,0 +1,271 @@
+package org.warpchain.tree;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.warpchain.exception.DecodeException;
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Export and import tree state as a stream of chunks. Each chunk is written as
+ * 4-byte length followed by the encoded chunk, so the stream can be read from a
+ * local file. Chunks are verified independently in parallel, and the tree is
+ * bulk loaded without replay while chunks are verified.
+ *
+ * Each data hash must be the hash of its data value.
+ *
+ * @author liaoxuefeng
+ */
+public class StateSync {
+
+	/**
+	 * Max size of an encoded chunk.
+	 */
+	static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Max number of chunks read ahead and verifying.
+	 */
+	static final int MAX_PENDING_CHUNKS = 16;
+
+	/**
+	 * Export snapshot as chunks.
+	 *
+	 * @param snapshot  The snapshot.
+	 * @param chunkSize Max number of data in a chunk.
+	 * @param output    Output stream, which is not closed.
+	 * @return Number of chunks.
+	 */
+	public static int exportTo(TreeSnapshot snapshot, int chunkSize, OutputStream output) throws IOException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+		DataOutputStream out = new DataOutputStream(output);
+		Iterator<Map.Entry<byte[], byte[]>> it = snapshot.iterator();
+		byte[] lowerBound = ByteUtils.emptyByteArray();
+		List<byte[]> dataHashes = new ArrayList<>(chunkSize);
+		List<byte[]> dataValues = new ArrayList<>(chunkSize);
+		int count = 0;
+		while (it.hasNext()) {
+			Map.Entry<byte[], byte[]> entry = it.next();
+			dataHashes.add(entry.getKey());
+			dataValues.add(entry.getValue());
+			if (dataHashes.size() == chunkSize || !it.hasNext()) {
+				boolean last = !it.hasNext();
+				List<byte[]> proven = dataHashes;
+				if (lowerBound.length != 0) {
+					// prove lower bound together so nothing is hidden after it:
+					proven = new ArrayList<>(dataHashes.size() + 1);
+					proven.add(lowerBound);
+					proven.addAll(dataHashes);
+				}
+				StateChunk chunk = new StateChunk(lowerBound, dataValues, snapshot.proveAll(proven), last);
+				byte[] data = chunk.toBytes();
+				out.writeInt(data.length);
+				out.write(data);
+				lowerBound = dataHashes.get(dataHashes.size() - 1);
+				dataHashes = new ArrayList<>(chunkSize);
+				dataValues = new ArrayList<>(chunkSize);
+				count++;
+			}
+		}
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Import chunks into an empty tree. Chunks are verified against the root
+	 * merkle hash by executor, so the hash function must be thread-safe. Each
+	 * chunk is loaded once verified, and at most MAX_PENDING_CHUNKS chunks are
+	 * read ahead. The tree is left empty if import failed.
+	 *
+	 * @param tree           Empty tree.
+	 * @param rootMerkleHash Trusted root merkle hash.
+	 * @param input          Input stream of chunks, which is not closed.
+	 * @param executor       Executor to verify chunks.
+	 * @return Number of imported data.
+	 */
+	public static int importFrom(SparseMerkleTree tree, byte[] rootMerkleHash, InputStream input,
+			ExecutorService executor) throws IOException {
+		ChunkReader reader = new ChunkReader(tree, rootMerkleHash, new DataInputStream(input), executor);
+		int size;
+		try {
+			size = tree.bulkLoad(reader);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			reader.cancel();
+		}
+		if (reader.count == 0 && !Arrays.equals(tree.getDefaultHashAtHeight(0), rootMerkleHash)) {
+			throw new DecodeException("Missing chunks.");
+		}
+		if (!Arrays.equals(tree.getRootMerkleHash(), rootMerkleHash)) {
+			tree.clear();
+			throw new DecodeException("Root merkle hash mismatch after import.");
+		}
+		return size;
+	}
+
+	/**
+	 * Read next chunk, or null if end of stream.
+	 */
+	static byte[] readChunk(DataInputStream in) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return null;
+		}
+		int length;
+		try {
+			length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+		} catch (EOFException e) {
+			throw new DecodeException("Unexpected end of chunk stream.");
+		}
+		if (length <= 0 || length > MAX_CHUNK_BYTES) {
+			throw new DecodeException("Invalid chunk length: " + length);
+		}
+		byte[] data = new byte[length];
+		try {
+			in.readFully(data);
+		} catch (EOFException e) {
+			throw new DecodeException("Unexpected end of chunk stream.");
+		}
+		return data;
+	}
+
+	private static StateChunk getChunk(Future<StateChunk> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DecodeException("Interrupted when verifying chunks.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new DecodeException(cause);
+		}
+	}
+	/**
+	 * Iterate data of verified chunks in order, and check chunks are continuous.
+	 */
+	private static class ChunkReader implements Iterator<Map.Entry<byte[], byte[]>> {
+
+		final SparseMerkleTree tree;
+		final byte[] rootMerkleHash;
+		final DataInputStream in;
+		final ExecutorService executor;
+		final Deque<Future<StateChunk>> pending = new ArrayDeque<>();
+		boolean eof = false;
+
+		/**
+		 * Number of chunks taken.
+		 */
+		int count = 0;
+		byte[] lowerBound = ByteUtils.emptyByteArray();
+		boolean last = false;
+		List<byte[]> dataHashes = List.of();
+		List<byte[]> dataValues = List.of();
+		int position = 0;
+
+		ChunkReader(SparseMerkleTree tree, byte[] rootMerkleHash, DataInputStream in, ExecutorService executor) {
+			this.tree = tree;
+			this.rootMerkleHash = rootMerkleHash;
+			this.in = in;
+			this.executor = executor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.position == this.dataValues.size()) {
+				if (!nextChunk()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int i = this.position++;
+			return Map.entry(this.dataHashes.get(i), this.dataValues.get(i));
+		}
+
+		/**
+		 * Take next verified chunk, or return false if no more chunk.
+		 */
+		boolean nextChunk() {
+			readAhead();
+			Future<StateChunk> future = this.pending.poll();
+			if (future == null) {
+				if (this.count > 0 && !this.last) {
+					throw new DecodeException("Chunks are not continuous at index " + this.count);
+				}
+				return false;
+			}
+			StateChunk chunk = getChunk(future);
+			// chunks must cover all data hashes without gap:
+			if (this.last || !Arrays.equals(this.lowerBound, chunk.getLowerBound())) {
+				throw new DecodeException("Chunks are not continuous at index " + this.count);
+			}
+			this.count++;
+			this.lowerBound = chunk.getUpperBound();
+			this.last = chunk.isLast();
+			this.dataHashes = chunk.getDataHashes();
+			this.dataValues = chunk.getDataValues();
+			this.position = 0;
+			return true;
+		}
+
+		void readAhead() {
+			while (!this.eof && this.pending.size() < MAX_PENDING_CHUNKS) {
+				byte[] data;
+				try {
+					data = readChunk(this.in);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				if (data == null) {
+					this.eof = true;
+				} else {
+					this.pending.add(this.executor.submit(() -> {
+						StateChunk chunk = StateChunk.fromBytes(data);
+						if (!chunk.verify(this.tree, this.rootMerkleHash)) {
+							throw new DecodeException("Invalid chunk: " + chunk);
+						}
+						return chunk;
+					}));
+				}
+			}
+		}
+
+		/**
+		 * Cancel chunks which are still verifying.
+		 */
+		void cancel() {
+			for (Future<StateChunk> future : this.pending) {
+				future.cancel(true);
+			}
+			this.pending.clear();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.warpchain.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.warpchain.core.NibblePath;
+
+/**
+ * Compare two trees by descending both in lockstep. Children at the same slot
+ * with same merkle hash are skipped without loading, so cost is proportional
+ * to the number of changes.
+ *
+ * @author liaoxuefeng
+ */
+final class TreeDiff {
+
+	private final TreeInfo tree;
+	private final List<DiffEntry> entries = new ArrayList<>();
+
+	private TreeDiff(TreeInfo tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * Get changes from old root to new root, ordered by data hash. Both roots
+	 * must be committed.
+	 */
+	static List<DiffEntry> diff(TreeInfo tree, Node oldRoot, Node newRoot) {
+		TreeDiff diff = new TreeDiff(tree);
+		if (!Arrays.equals(oldRoot.getMerkleHash(), newRoot.getMerkleHash())) {
+			diff.compare(oldRoot, newRoot);
+		}
+		return diff.entries;
+	}
+
+	/**
+	 * Compare two resolved nodes, or null, whose leaves share the same prefix.
+	 */
+	private void compare(Node oldNode, Node newNode) {
+		if (oldNode == null || newNode == null) {
+			if (oldNode != null) {
+				addAll(oldNode, true);
+			}
+			if (newNode != null) {
+				addAll(newNode, false);
+			}
+			return;
+		}
+		if (oldNode instanceof LeafNode) {
+			mergeLeaf((LeafNode) oldNode, newNode, true);
+			return;
+		}
+		if (newNode instanceof LeafNode) {
+			mergeLeaf((LeafNode) newNode, oldNode, false);
+			return;
+		}
+		FullNode oldFull = (FullNode) oldNode;
+		FullNode newFull = (FullNode) newNode;
+		NibblePath oldPath = oldFull.getPath();
+		NibblePath newPath = newFull.getPath();
+		if (oldPath.equals(newPath)) {
+			for (int i = 0; i < 16; i++) {
+				Node oldChild = oldFull.getChild(i);
+				Node newChild = newFull.getChild(i);
+				if (oldChild == null && newChild == null) {
+					continue;
+				}
+				if (oldChild != null && newChild != null
+						&& Arrays.equals(oldChild.getMerkleHash(), newChild.getMerkleHash())) {
+					// same sub-tree at same height:
+					continue;
+				}
+				compare(resolve(oldFull, i), resolve(newFull, i));
+			}
+			return;
+		}
+		int shared = NibblePath.sharedPrefixLength(oldPath, newPath);
+		if (shared == oldPath.length()) {
+			// new node is under one child of old node:
+			int slot = newPath.valueAt(shared);
+			for (int i = 0; i < 16; i++) {
+				compare(resolve(oldFull, i), i == slot ? newFull : null);
+			}
+		} else if (shared == newPath.length()) {
+			// old node is under one child of new node:
+			int slot = oldPath.valueAt(shared);
+			for (int i = 0; i < 16; i++) {
+				compare(i == slot ? oldFull : null, resolve(newFull, i));
+			}
+		} else if (oldPath.valueAt(shared) < newPath.valueAt(shared)) {
+			addAll(oldFull, true);
+			addAll(newFull, false);
+		} else {
+			addAll(newFull, false);
+			addAll(oldFull, true);
+		}
+	}
+
+	private Node resolve(FullNode node, int index) {
+		return node.getChild(index) == null ? null : node.resolveChild(this.tree, index);
+	}
+
+	/**
+	 * Merge a single leaf with all leaves of the other node in order.
+	 */
+	private void mergeLeaf(LeafNode leaf, Node other, boolean leafIsOld) {
+		boolean merged = false;
+		LeafSpliterator leaves = new LeafSpliterator(this.tree, other);
+		LeafNode next;
+		while ((next = leaves.nextLeaf()) != null) {
+			if (!merged) {
+				int cmp = Arrays.compareUnsigned(leaf.getDataHash(), next.getDataHash());
+				if (cmp < 0) {
+					add(leaf, leafIsOld);
+					merged = true;
+				} else if (cmp == 0) {
+					merged = true;
+					if (!Arrays.equals(leaf.getDataValue(this.tree), next.getDataValue(this.tree))) {
+						LeafNode oldLeaf = leafIsOld ? leaf : next;
+						LeafNode newLeaf = leafIsOld ? next : leaf;
+						this.entries.add(new DiffEntry(leaf.getDataHash(), oldLeaf.getDataValue(this.tree),
+								newLeaf.getDataValue(this.tree)));
+					}
+					continue;
+				}
+			}
+			add(next, !leafIsOld);
+		}
+		if (!merged) {
+			add(leaf, leafIsOld);
+		}
+	}
+
+	private void addAll(Node node, boolean removed) {
+		LeafSpliterator leaves = new LeafSpliterator(this.tree, node);
+		LeafNode leaf;
+		while ((leaf = leaves.nextLeaf()) != null) {
+			add(leaf, removed);
+		}
+	}
+
+	private void add(LeafNode leaf, boolean removed) {
+		this.entries.add(removed ? new DiffEntry(leaf.getDataHash(), leaf.getDataValue(this.tree), null)
+				: new DiffEntry(leaf.getDataHash(), null, leaf.getDataValue(this.tree)));
+	}
+}
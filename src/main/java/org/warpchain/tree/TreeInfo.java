@@ -6,7 +6,68 @@ public interface TreeInfo {
 
 	byte[] generateMerkleHash(byte[] left, byte[] right);
 
+	/**
+	 * Hash left and right child hashes into output buffer, which may overlap with
+	 * inputs.
+	 */
+	void generateMerkleHash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output,
+			int outputOffset);
+
+	/**
+	 * Hash up to 8 pairs of left and right child hashes at once.
+	 */
+	byte[][] generateMerkleHashes(byte[][] lefts, byte[][] rights, int count);
+
+	/**
+	 * Hash leaf of compact leaf mode as H(0x00 || key || value hash).
+	 */
+	byte[] generateLeafHash(byte[] dataHash, byte[] valueHash);
+
+	/**
+	 * Hash up to 8 leaves of compact leaf mode at once.
+	 */
+	byte[][] generateLeafHashes(byte[][] dataHashes, byte[][] valueHashes, int count);
+
+	/**
+	 * Number of pairs hashed at once by generateMerkleHashes(), or 1 if pairs
+	 * are hashed one by one.
+	 */
+	int getHashLanes();
+
 	byte[] getDefaultHashAtHeight(int height);
 
 	byte[] hash(byte[] data);
+
+	/**
+	 * Load node from node store by merkle hash and node type.
+	 */
+	Node loadNode(byte[] merkleHash, boolean leaf);
+
+	/**
+	 * Called when a node is replaced and no longer referenced by the latest tree.
+	 */
+	void discardNode(Node node);
+
+	/**
+	 * Is tree in compact leaf mode: leaf hash is H(key || value hash) placed at the
+	 * height where it becomes unique, and empty sub-tree hash is zero.
+	 */
+	boolean isCompactLeaf();
+
+	/**
+	 * Get metrics listener of tree operations.
+	 */
+	TreeMetrics getMetrics();
+
+	/**
+	 * Append data value of a new leaf to value log.
+	 *
+	 * @return Pointer of value, or ValueLog.NO_POINTER if value is kept in leaf.
+	 */
+	long appendValue(byte[] dataHash, byte[] dataValue);
+
+	/**
+	 * Read data value from value log.
+	 */
+	byte[] readValue(long pointer);
 }
@@ -0,0 +1,54 @@
+package org.warpchain.tree;
+
+/**
+ * Listener of tree operations. Implementations must be thread-safe: onHash() is
+ * also called by fork/join workers of parallel commit and by reader threads
+ * which prove against snapshots. The no-op default costs nothing after inlined
+ * by JIT.
+ *
+ * @author liaoxuefeng
+ */
+public interface TreeMetrics {
+
+	/**
+	 * Metrics which ignore all events.
+	 */
+	TreeMetrics NOOP = new TreeMetrics() {
+	};
+
+	/**
+	 * Called on each hash calculation.
+	 */
+	default void onHash() {
+	}
+
+	/**
+	 * Called when a new node is created, including copy of frozen node.
+	 */
+	default void onNodeCreated(NodeType type) {
+	}
+
+	/**
+	 * Called when a node is split by a new parent.
+	 */
+	default void onNodeSplit() {
+	}
+
+	/**
+	 * Called after a data is updated or removed without calculating hashes.
+	 *
+	 * @param pathLength Number of nodes on the path from root to the data.
+	 * @param nanos      Time of the structural change in nanoseconds.
+	 */
+	default void onUpdate(int pathLength, long nanos) {
+	}
+
+	/**
+	 * Called after pending updates are committed.
+	 *
+	 * @param updates Number of committed updates.
+	 * @param nanos   Time of hash calculation in nanoseconds.
+	 */
+	default void onCommit(int updates, long nanos) {
+	}
+}
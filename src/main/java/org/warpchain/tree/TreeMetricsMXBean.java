@@ -0,0 +1,35 @@
+package org.warpchain.tree;
+
+/**
+ * JMX view of tree metrics. Latencies are upper bounds of power-of-two buckets.
+ *
+ * @author liaoxuefeng
+ */
+public interface TreeMetricsMXBean {
+
+	long getHashCount();
+
+	long getFullNodeCount();
+
+	long getLeafNodeCount();
+
+	long getSplitCount();
+
+	long getUpdateCount();
+
+	long getCommitCount();
+
+	double getMeanPathLength();
+
+	long getMaxPathLength();
+
+	long getUpdateLatencyP50Nanos();
+
+	long getUpdateLatencyP99Nanos();
+
+	long getCommitLatencyP50Nanos();
+
+	long getCommitLatencyP99Nanos();
+
+	void reset();
+}
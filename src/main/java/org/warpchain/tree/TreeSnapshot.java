@@ -0,0 +1,107 @@
+package org.warpchain.tree;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+import org.warpchain.util.ByteUtils;
+
+/**
+ * Immutable version of a sparse merkle tree. Snapshot can be read at any time
+ * and is not affected by later updates of the tree. Snapshot is thread-safe if
+ * the hash function and metrics of the tree are thread-safe.
+ *
+ * @author liaoxuefeng
+ */
+public class TreeSnapshot implements Iterable<Map.Entry<byte[], byte[]>> {
+
+	private final SparseMerkleTree tree;
+	private final Node root;
+	private final long version;
+
+	/**
+	 * Number of discarded nodes of the tree when snapshot is taken.
+	 */
+	private final int discardedCount;
+
+	/**
+	 * Head of value log when snapshot is taken. Values before the head are either
+	 * pointed by leaves of this snapshot or not live.
+	 */
+	private final long valueLogHead;
+
+	TreeSnapshot(SparseMerkleTree tree, Node root, long version, int discardedCount) {
+		assert root.isFrozen() : "root of snapshot must be frozen.";
+		this.tree = tree;
+		this.root = root;
+		this.version = version;
+		this.discardedCount = discardedCount;
+		this.valueLogHead = tree.getValueLogHead();
+	}
+
+	SparseMerkleTree getTree() {
+		return this.tree;
+	}
+
+	Node getRootNode() {
+		return this.root;
+	}
+
+	int getDiscardedCount() {
+		return this.discardedCount;
+	}
+
+	long getValueLogHead() {
+		return this.valueLogHead;
+	}
+
+	LeafNode getLeaf(byte[] dataHash) {
+		return this.tree.getLeaf(this.root, dataHash);
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	public byte[] getRootMerkleHash() {
+		return this.root.getMerkleHash();
+	}
+
+	public byte[] get(byte[] dataHash) {
+		LeafNode leaf = this.tree.getLeaf(this.root, dataHash);
+		return leaf == null ? null : leaf.getDataValue(this.tree);
+	}
+
+	public boolean contains(byte[] dataHash) {
+		return this.tree.getLeaf(this.root, dataHash) != null;
+	}
+
+	public MerkleProof prove(byte[] dataHash) {
+		return this.tree.prove(this.root, dataHash);
+	}
+
+	public MerkleMultiProof proveAll(Collection<byte[]> dataHashes) {
+		return this.tree.proveAll(this.root, dataHashes);
+	}
+
+	/**
+	 * Iterate data hash and data value in order of data hash.
+	 */
+	@Override
+	public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+		return Spliterators.iterator(spliterator());
+	}
+
+	@Override
+	public Spliterator<Map.Entry<byte[], byte[]>> spliterator() {
+		return new LeafSpliterator(this.tree, this.root);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TreeSnapshot(version=%s, rootMerkleHash=%s)", this.version,
+				ByteUtils.toHexString(getRootMerkleHash()));
+	}
+}
@@ -0,0 +1,62 @@
+package org.warpchain.tree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only data values in off-heap slabs addressed by position. A value
+ * never crosses slabs, and space of removed values is not reclaimed.
+ *
+ * @author liaoxuefeng
+ */
+final class ValueArena {
+
+	private final int slabSize;
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+
+	/**
+	 * Position of next value.
+	 */
+	private long position = 0;
+
+	ValueArena(int slabSize) {
+		this.slabSize = slabSize;
+	}
+
+	/**
+	 * Append value and return its position.
+	 */
+	long append(byte[] value) {
+		if (value.length > this.slabSize) {
+			throw new IllegalArgumentException("Value is too large: " + value.length);
+		}
+		int slabIndex = (int) (this.position / this.slabSize);
+		int offset = (int) (this.position % this.slabSize);
+		if (offset + value.length > this.slabSize) {
+			// start from next slab:
+			slabIndex++;
+			offset = 0;
+		}
+		while (this.slabs.size() <= slabIndex) {
+			this.slabs.add(ByteBuffer.allocateDirect(this.slabSize));
+		}
+		this.slabs.get(slabIndex).put(offset, value);
+		long pos = (long) slabIndex * this.slabSize + offset;
+		this.position = pos + value.length;
+		return pos;
+	}
+
+	byte[] read(long pos, int length) {
+		byte[] value = new byte[length];
+		this.slabs.get((int) (pos / this.slabSize)).get((int) (pos % this.slabSize), value);
+		return value;
+	}
+
+	/**
+	 * Total bytes of allocated slabs.
+	 */
+	long getCapacity() {
+		return (long) this.slabs.size() * this.slabSize;
+	}
+}
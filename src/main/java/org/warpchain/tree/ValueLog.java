@@ -0,0 +1,397 @@
+package org.warpchain.tree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.warpchain.exception.StoreException;
+
+/**
+ * Append-only log of data values in memory-mapped segment files. A leaf in
+ * value log mode keeps only the value hash and a pointer of segment id and
+ * offset, so tree nodes stay small.
+ *
+ * Each record is key length (2 bytes), value length (4 bytes), data hash and
+ * data value. Space of removed values is reclaimed by ValueLogCollector.
+ *
+ * @author liaoxuefeng
+ */
+public class ValueLog implements Closeable {
+
+	/**
+	 * Pointer of value kept in leaf.
+	 */
+	static final long NO_POINTER = -1;
+
+	static final int HEADER_SIZE = 6;
+
+	private static final String SUFFIX = ".vlog";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Path dir;
+	private final int segmentSize;
+
+	private final ConcurrentMap<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+
+	/**
+	 * Id and write offset of active segment. Guarded by this.
+	 */
+	private int activeId;
+	private int activeOffset;
+
+	/**
+	 * Records copied by collector which wait for tree to update leaves.
+	 */
+	private final Queue<Relocation> relocations = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Segments being collected.
+	 */
+	private final Set<Integer> collecting = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Relocations are dropped if added in an older epoch. Guarded by this.
+	 */
+	private long epoch = 0;
+
+	/**
+	 * Relocated segments mapped to the first version which no longer points to
+	 * them. Guarded by this.
+	 */
+	private final Map<Integer, Long> retired = new HashMap<>();
+
+	/**
+	 * Versions before it may point to deleted segments. Guarded by this.
+	 */
+	private long deletedVersion = 0;
+
+	/**
+	 * Open value log in directory, or create if not exist.
+	 *
+	 * @param dir         Directory of segment files.
+	 * @param segmentSize Max size of segment file.
+	 */
+	public ValueLog(String dir, int segmentSize) {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		}
+		this.dir = Paths.get(dir).toAbsolutePath().normalize();
+		this.segmentSize = segmentSize;
+		List<Integer> ids = new ArrayList<>();
+		try {
+			Files.createDirectories(this.dir);
+			try (Stream<Path> files = Files.list(this.dir)) {
+				files.map(p -> p.getFileName().toString()).filter(name -> name.matches("\\d{8}\\" + SUFFIX))
+						.forEach(name -> ids.add(Integer.parseInt(name.substring(0, 8))));
+			}
+		} catch (IOException e) {
+			throw new StoreException(e);
+		}
+		ids.sort(null);
+		for (int id : ids) {
+			this.segments.put(id, map(id));
+		}
+		if (ids.isEmpty()) {
+			this.activeId = 0;
+			this.segments.put(0, map(0));
+			this.activeOffset = 0;
+		} else {
+			this.activeId = ids.get(ids.size() - 1);
+			this.activeOffset = endOf(this.segments.get(this.activeId));
+		}
+		logger.info("open value log {}: {} segments, active segment = {}, offset = {}", this.dir, this.segments.size(),
+				this.activeId, this.activeOffset);
+	}
+
+	private Path pathOf(int id) {
+		return this.dir.resolve(String.format("%08d", id) + SUFFIX);
+	}
+
+	private MappedByteBuffer map(int id) {
+		try (FileChannel channel = FileChannel.open(pathOf(id), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// file is extended to segment size and filled by zero:
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+		} catch (IOException e) {
+			throw new StoreException(e);
+		}
+	}
+
+	/**
+	 * Find end of records, which is followed by zero key length.
+	 */
+	private int endOf(MappedByteBuffer buffer) {
+		int offset = 0;
+		while (offset + HEADER_SIZE <= this.segmentSize && buffer.getShort(offset) != 0) {
+			offset += HEADER_SIZE + buffer.getShort(offset) + buffer.getInt(offset + 2);
+		}
+		return offset;
+	}
+
+	static int segmentOf(long pointer) {
+		return (int) (pointer >>> 32);
+	}
+
+	static int offsetOf(long pointer) {
+		return (int) pointer;
+	}
+
+	/**
+	 * Append data value and return pointer of the record.
+	 */
+	public synchronized long append(byte[] dataHash, byte[] dataValue) {
+		int size = HEADER_SIZE + dataHash.length + dataValue.length;
+		if (size > this.segmentSize) {
+			throw new IllegalArgumentException("Value is too large: " + dataValue.length);
+		}
+		if (this.activeOffset + size > this.segmentSize) {
+			// start next segment:
+			this.segments.get(this.activeId).force();
+			this.activeId++;
+			this.activeOffset = 0;
+			this.segments.put(this.activeId, map(this.activeId));
+		}
+		MappedByteBuffer buffer = this.segments.get(this.activeId);
+		int offset = this.activeOffset;
+		buffer.putInt(offset + 2, dataValue.length);
+		buffer.put(offset + HEADER_SIZE, dataHash);
+		buffer.put(offset + HEADER_SIZE + dataHash.length, dataValue);
+		// key length is written last as the end mark:
+		buffer.putShort(offset, (short) dataHash.length);
+		this.activeOffset += size;
+		return ((long) this.activeId << 32) | offset;
+	}
+
+	/**
+	 * Get pointer of next record.
+	 */
+	synchronized long head() {
+		return ((long) this.activeId << 32) | this.activeOffset;
+	}
+
+	/**
+	 * Read data value by pointer. This method is thread-safe.
+	 */
+	public byte[] read(long pointer) {
+		MappedByteBuffer buffer = this.segments.get(segmentOf(pointer));
+		if (buffer == null) {
+			throw new StoreException("Value log segment not found: " + segmentOf(pointer));
+		}
+		int offset = offsetOf(pointer);
+		byte[] value = new byte[buffer.getInt(offset + 2)];
+		buffer.get(offset + HEADER_SIZE + buffer.getShort(offset), value);
+		return value;
+	}
+
+	/**
+	 * Write appended records to disk.
+	 */
+	public synchronized void sync() {
+		this.segments.get(this.activeId).force();
+	}
+
+	/**
+	 * Get ids of segments which are no longer appended, in ascending order.
+	 */
+	synchronized List<Integer> sealedSegments() {
+		List<Integer> ids = new ArrayList<>();
+		for (int id : this.segments.keySet()) {
+			if (id < this.activeId) {
+				ids.add(id);
+			}
+		}
+		ids.sort(null);
+		return ids;
+	}
+
+	/**
+	 * Get all records of segment.
+	 */
+	List<Record> scan(int id) {
+		MappedByteBuffer buffer = this.segments.get(id);
+		List<Record> records = new ArrayList<>();
+		int offset = 0;
+		while (offset + HEADER_SIZE <= this.segmentSize && buffer.getShort(offset) != 0) {
+			byte[] dataHash = new byte[buffer.getShort(offset)];
+			buffer.get(offset + HEADER_SIZE, dataHash);
+			int size = HEADER_SIZE + dataHash.length + buffer.getInt(offset + 2);
+			records.add(new Record(((long) id << 32) | offset, dataHash, size));
+			offset += size;
+		}
+		return records;
+	}
+
+	boolean markCollecting(int id) {
+		return this.collecting.add(id);
+	}
+
+	/**
+	 * Append record again and add relocation at once.
+	 */
+	synchronized void relocate(Record record, long epoch) {
+		long pointer = append(record.dataHash, read(record.pointer));
+		this.relocations.add(new Relocation(segmentOf(record.pointer), record.dataHash, record.pointer, pointer, epoch));
+	}
+
+	/**
+	 * Mark all live records of segment are relocated.
+	 */
+	void relocated(int id, long epoch) {
+		this.relocations.add(new Relocation(id, null, NO_POINTER, NO_POINTER, epoch));
+	}
+
+	synchronized long epoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * Drop relocations which are added or not yet drained, because leaves of
+	 * tree are rolled back and may not match them.
+	 */
+	synchronized void cancelRelocations() {
+		this.epoch++;
+	}
+
+	/**
+	 * Move added relocations to list, and return head of value log. Every record
+	 * moved before the head has its relocation in list, except relocations of a
+	 * cancelled epoch which are dropped.
+	 */
+	synchronized long drainRelocations(List<Relocation> list) {
+		Relocation relocation;
+		while ((relocation = this.relocations.poll()) != null) {
+			if (relocation.epoch == this.epoch) {
+				list.add(relocation);
+			} else if (relocation.dataHash == null) {
+				// the last relocation of segment, which can be collected again:
+				this.collecting.remove(relocation.segment);
+			}
+		}
+		return head();
+	}
+
+	/**
+	 * Mark segments are relocated by version, which and all later versions no
+	 * longer point to them.
+	 */
+	synchronized void retireSegments(Collection<Integer> ids, long version) {
+		for (int id : ids) {
+			this.retired.put(id, version);
+		}
+	}
+
+	/**
+	 * Tree is rolled back to version, so segments relocated after it are pointed
+	 * to again.
+	 *
+	 * @return False if segments pointed to by version are already deleted.
+	 */
+	synchronized boolean restoreSegments(long version) {
+		if (version < this.deletedVersion) {
+			return false;
+		}
+		Iterator<Map.Entry<Integer, Long>> it = this.retired.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Long> entry = it.next();
+			if (entry.getValue() > version) {
+				it.remove();
+				this.collecting.remove(entry.getKey());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delete segments relocated at or before version, after which versions before
+	 * it can no longer read values.
+	 *
+	 * @return Number of deleted segments.
+	 */
+	synchronized int deleteRetiredSegments(long version) {
+		List<Integer> ids = new ArrayList<>();
+		for (Map.Entry<Integer, Long> entry : this.retired.entrySet()) {
+			if (entry.getValue() <= version) {
+				ids.add(entry.getKey());
+				this.deletedVersion = Math.max(this.deletedVersion, entry.getValue());
+			}
+		}
+		for (int id : ids) {
+			this.retired.remove(id);
+		}
+		deleteSegments(ids);
+		return ids.size();
+	}
+
+	private void deleteSegments(Collection<Integer> ids) {
+		for (int id : ids) {
+			// mapping is released by GC, and readers holding it can still read:
+			this.segments.remove(id);
+			this.collecting.remove(id);
+			try {
+				Files.deleteIfExists(pathOf(id));
+			} catch (IOException e) {
+				throw new StoreException(e);
+			}
+			logger.info("deleted value log segment {}.", id);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		sync();
+	}
+
+	static final class Record {
+
+		final long pointer;
+		final byte[] dataHash;
+		final int size;
+
+		Record(long pointer, byte[] dataHash, int size) {
+			this.pointer = pointer;
+			this.dataHash = dataHash;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Record moved by collector. Relocation with null data hash marks all records
+	 * of the segment are moved.
+	 */
+	static final class Relocation {
+
+		final int segment;
+		final byte[] dataHash;
+		final long from;
+		final long to;
+		final long epoch;
+
+		Relocation(int segment, byte[] dataHash, long from, long to, long epoch) {
+			this.segment = segment;
+			this.dataHash = dataHash;
+			this.from = from;
+			this.to = to;
+			this.epoch = epoch;
+		}
+	}
+}
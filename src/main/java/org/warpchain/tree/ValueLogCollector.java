@@ -0,0 +1,120 @@
+package org.warpchain.tree;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reclaim space of value log. Live ratio of a sealed segment is checked against
+ * the latest snapshot of tree, and live values of segment with low live ratio
+ * are appended again to the head of value log. The writer thread of tree
+ * updates leaves to the new pointers at the next snapshot or flush.
+ *
+ * The segment is deleted when no retained version points to it: by NodePruner
+ * if tree is backed by storage, otherwise by the collector when the version
+ * which relocated it is out of the retention window.
+ *
+ * @author liaoxuefeng
+ */
+public class ValueLogCollector implements Closeable {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final SparseMerkleTree tree;
+	private final ValueLog valueLog;
+
+	/**
+	 * Segment is collected if ratio of live bytes is below.
+	 */
+	private final double minLiveRatio;
+
+	/**
+	 * Number of latest versions which can still read collected segments, if tree
+	 * is not backed by storage.
+	 */
+	private final long retainVersions;
+
+	private final PeriodicTask task = new PeriodicTask("value-log-collector", this::collect);
+
+	ValueLogCollector(SparseMerkleTree tree, ValueLog valueLog, double minLiveRatio, long retainVersions) {
+		if (minLiveRatio <= 0 || minLiveRatio > 1) {
+			throw new IllegalArgumentException("Invalid min live ratio: " + minLiveRatio);
+		}
+		if (retainVersions < 0) {
+			throw new IllegalArgumentException("Invalid retain versions: " + retainVersions);
+		}
+		this.tree = tree;
+		this.valueLog = valueLog;
+		this.minLiveRatio = minLiveRatio;
+		this.retainVersions = retainVersions;
+	}
+
+	/**
+	 * Move live values out of sealed segments with low live ratio. This method
+	 * can be called by any thread.
+	 *
+	 * @return Number of collected segments.
+	 */
+	public synchronized int collect() {
+		// relocations of this run are dropped if tree is rolled back since now:
+		long epoch = this.valueLog.epoch();
+		TreeSnapshot snapshot = this.tree.getLatestSnapshot();
+		if (!this.tree.isBackedByStorage()) {
+			this.valueLog.deleteRetiredSegments(snapshot.getVersion() - this.retainVersions);
+		}
+		// leaves created after snapshot may point to segments since head:
+		int limit = ValueLog.segmentOf(snapshot.getValueLogHead());
+		int collected = 0;
+		for (int id : this.valueLog.sealedSegments()) {
+			if (id >= limit) {
+				break;
+			}
+			List<ValueLog.Record> records = this.valueLog.scan(id);
+			long total = 0;
+			long live = 0;
+			boolean[] alive = new boolean[records.size()];
+			for (int i = 0; i < records.size(); i++) {
+				ValueLog.Record record = records.get(i);
+				LeafNode leaf = snapshot.getLeaf(record.dataHash);
+				alive[i] = leaf != null && leaf.getValuePointer() == record.pointer;
+				total += record.size;
+				if (alive[i]) {
+					live += record.size;
+				}
+			}
+			if (live >= this.minLiveRatio * total || !this.valueLog.markCollecting(id)) {
+				continue;
+			}
+			for (int i = 0; i < records.size(); i++) {
+				if (alive[i]) {
+					this.valueLog.relocate(records.get(i), epoch);
+				}
+			}
+			this.valueLog.relocated(id, epoch);
+			logger.info("collected value log segment {}: {} of {} bytes live.", id, live, total);
+			collected++;
+		}
+		return collected;
+	}
+
+	/**
+	 * Start collecting periodically in a background thread.
+	 *
+	 * @param interval Interval between two runs.
+	 * @param unit     Time unit of interval.
+	 */
+	public void start(long interval, TimeUnit unit) {
+		this.task.start(interval, unit);
+	}
+
+	/**
+	 * Stop background collecting and wait for the running collect to finish.
+	 */
+	@Override
+	public void close() {
+		this.task.stop();
+	}
+}
@@ -45,6 +45,17 @@ public class ByteUtils {
 		return BYTE_TO_HEX[b & 0xff];
 	}
 
+	/**
+	 * Get bit value (0 or 1) at index. Bit 0 is the highest bit of the first byte.
+	 * 
+	 * @param bs    the byte array.
+	 * @param index the bit index.
+	 * @return 0 or 1.
+	 */
+	public static int bitAt(byte[] bs, int index) {
+		return (bs[index >> 3] >> (7 - (index & 7))) & 1;
+	}
+
 	public static byte[] copy(byte[] bs) {
 		Objects.requireNonNull(bs, "byte array is null");
 		if (bs.length == 0) {
@@ -1,5 +1,8 @@
 package org.warpchain.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -8,6 +11,39 @@ import org.bouncycastle.jcajce.provider.digest.RIPEMD160;
 
 public class HashUtils {
 
+	/**
+	 * VectorSha256.digest(byte[][], int), or null if vector lanes are not used.
+	 */
+	private static final MethodHandle VECTOR_DIGEST = findVectorDigest();
+
+	/**
+	 * Use vector lanes only if enabled by system property warpchain.vectorSha256,
+	 * VectorSha256 is built by profile vector, module jdk.incubator.vector is added
+	 * and hardware supports 256-bit vector. The SHA-256 intrinsic of JVM is faster
+	 * than 8 lanes on most CPUs, so lanes are disabled by default.
+	 */
+	private static MethodHandle findVectorDigest() {
+		if (!Boolean.getBoolean("warpchain.vectorSha256")
+				|| ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return null;
+		}
+		try {
+			Class<?> clazz = Class.forName("org.warpchain.util.VectorSha256");
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle accelerated = lookup.findStatic(clazz, "isAccelerated", MethodType.methodType(boolean.class));
+			if (!(boolean) accelerated.invokeExact()) {
+				return null;
+			}
+			return lookup.findStatic(clazz, "digest",
+					MethodType.methodType(byte[][].class, byte[][].class, int.class));
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			// class is not built or cannot be linked:
+			return null;
+		} catch (Throwable e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	public static byte[] sha1(byte[] input) {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -37,6 +73,52 @@ public class HashUtils {
 		}
 	}
 
+	/**
+	 * Is sha256x8 calculated in vector lanes.
+	 */
+	public static boolean isSha256x8Accelerated() {
+		return VECTOR_DIGEST != null;
+	}
+
+	/**
+	 * Calculate SHA-256 of up to 8 inputs with the same length at once.
+	 *
+	 * @param inputs Inputs to hash.
+	 * @param count  Number of inputs from index 0, at most 8.
+	 * @return Hashes of inputs.
+	 */
+	public static byte[][] sha256x8(byte[][] inputs, int count) {
+		if (count < 1 || count > 8) {
+			throw new IllegalArgumentException("Invalid count: " + count);
+		}
+		if (VECTOR_DIGEST != null) {
+			try {
+				return (byte[][]) VECTOR_DIGEST.invokeExact(inputs, count);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[][] outputs = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				outputs[i] = md.digest(inputs[i]);
+			}
+			return outputs;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Calculate DSHA-256 of up to 8 inputs with the same length at once.
+	 */
+	public static byte[][] dsha256x8(byte[][] inputs, int count) {
+		return sha256x8(sha256x8(inputs, count), count);
+	}
+
 	public static byte[] ripeMd160(byte[] input) {
 		MessageDigest digest = new RIPEMD160.Digest();
 		digest.update(input);
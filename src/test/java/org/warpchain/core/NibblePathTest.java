@@ -0,0 +1,149 @@
+package org.warpchain.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NibblePathTest {
+
+	byte[] data16Bytes;
+	byte[] data32Bytes;
+
+	@BeforeEach
+	void setUp() {
+		this.data16Bytes = new byte[] { //
+				0x16, 0x00, 0x01, 0x02, 0x10, 0x20, 0x3c, 0x7f, //
+				(byte) 0x80, (byte) 0x81, (byte) 0x9e, (byte) 0xab, (byte) 0xb1, (byte) 0xde, (byte) 0xf5, (byte) 0xff //
+		};
+		this.data32Bytes = new byte[] { //
+				0x32, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, //
+				0x16, 0x00, 0x01, 0x02, 0x10, 0x20, 0x3c, 0x7f, //
+				(byte) 0x80, (byte) 0x81, (byte) 0x9e, (byte) 0xab, (byte) 0xb1, (byte) 0xde, (byte) 0xf5, (byte) 0xff, //
+				(byte) 0x88, (byte) 0x99, (byte) 0xaa, (byte) 0xbb, (byte) 0xcc, (byte) 0xdd, (byte) 0xee, (byte) 0xff //
+		};
+	}
+
+	@Test
+	void testToString() {
+		var p = NibblePath.unsafe(data16Bytes);
+		assertEquals(32, p.length());
+		assertEquals("1600010210203c7f80819eabb1def5ff", p.toString());
+		assertEquals("", NibblePath.EMPTY.toString());
+	}
+
+	@Test
+	void testHashCode() {
+		var p32 = NibblePath.unsafe(data16Bytes);
+		var sub32 = NibblePath.unsafe(data32Bytes).substring(16, 48);
+		// same as NibbleString:
+		assertEquals(1663895323, p32.hashCode());
+		assertEquals(1663895323, sub32.hashCode());
+		assertEquals(0, NibblePath.EMPTY.hashCode());
+	}
+
+	@Test
+	void testCopy() {
+		byte[] b = { 0x12, 0x34 };
+		var copied = new NibblePath(b);
+		var wrapped = NibblePath.unsafe(b);
+		b[0] = 0x56;
+		assertEquals("1234", copied.toString());
+		assertEquals("5634", wrapped.toString());
+	}
+
+	@Test
+	void testStartsWith() {
+		var p1 = NibblePath.unsafe(new byte[] { 0x12, 0x34, 0x56, 0x78 });
+		var p2 = NibblePath.unsafe(new byte[] { 0x12, 0x34, 0x56 });
+		var p3 = NibblePath.unsafe(new byte[] { 0x34, 0x56 });
+		assertTrue(p1.startsWith(p2));
+		assertFalse(p2.startsWith(p1));
+		assertFalse(p1.startsWith(p3));
+		assertTrue(p1.startsWith(p3, 2));
+		assertTrue(p1.startsWith(p3.substring(1), 3));
+		assertFalse(p1.startsWith(p3, 5));
+		assertTrue(p2.startsWith(p1.substring(0, 6)));
+		assertTrue(p2.startsWith(NibblePath.EMPTY));
+		assertTrue(NibblePath.EMPTY.startsWith(NibblePath.EMPTY));
+	}
+
+	@Test
+	void testSharedPrefix() {
+		var p1 = NibblePath.unsafe(new byte[] { 0x12, 0x34, 0x56, 0x78 });
+		var p2 = NibblePath.unsafe(new byte[] { 0x12, 0x3f, 0x56 });
+		var p3 = NibblePath.unsafe(new byte[] { 0x34, 0x56 });
+		assertEquals(p1.substring(0, 3), NibblePath.sharedPrefix(p1, p2));
+		assertEquals(3, NibblePath.sharedPrefixLength(p1, p2));
+		assertEquals(NibblePath.EMPTY, NibblePath.sharedPrefix(p1, p3));
+		assertEquals(NibblePath.EMPTY, NibblePath.sharedPrefix(p1, NibblePath.EMPTY));
+		assertEquals(p1, NibblePath.sharedPrefix(p1, p1));
+		// across words:
+		var p32 = NibblePath.unsafe(data16Bytes);
+		var sub32 = NibblePath.unsafe(data32Bytes).substring(16, 48);
+		assertEquals(32, NibblePath.sharedPrefixLength(p32, sub32));
+		assertEquals(31, NibblePath.sharedPrefixLength(p32.substring(1), sub32.substring(1)));
+		assertEquals(29, NibblePath.sharedPrefixLength(p32, NibblePath.unsafe(data32Bytes).substring(16, 45)));
+	}
+
+	@Test
+	void testSharedPrefixAsNibbleString() {
+		Random random = new Random(123456);
+		for (int n = 0; n < 10000; n++) {
+			byte[] b1 = new byte[1 + random.nextInt(40)];
+			random.nextBytes(b1);
+			byte[] b2 = b1.clone();
+			int pos = random.nextInt(b2.length * 2);
+			b2[pos >> 1] ^= (pos & 1) == 0 ? 0x10 : 0x01;
+			int offset = random.nextInt(3);
+			int end1 = offset + random.nextInt(b1.length * 2 - offset + 1);
+			int end2 = offset + random.nextInt(b2.length * 2 - offset + 1);
+			var s1 = new NibbleString(b1).substring(offset, end1);
+			var s2 = new NibbleString(b2).substring(offset, end2);
+			var p1 = NibblePath.unsafe(b1).substring(offset, end1);
+			var p2 = NibblePath.unsafe(b2).substring(offset, end2);
+			assertEquals(NibbleString.sharedPrefix(s1, s2).length(), NibblePath.sharedPrefixLength(p1, p2));
+			assertEquals(s1.startsWith(s2), p1.startsWith(p2));
+			assertEquals(s1.equals(s2), p1.equals(p2));
+			assertEquals(s1.toString(), p1.toString());
+		}
+	}
+
+	@Test
+	void testSubstring() {
+		var p32 = NibblePath.unsafe(data16Bytes);
+		var sub32 = NibblePath.unsafe(data32Bytes).substring(16, 48);
+		assertEquals("1600010210203c7f80819eabb1def5ff", sub32.toString());
+		assertEquals(sub32, p32);
+		assertEquals(sub32.substring(5, 20), p32.substring(5, 20));
+		assertEquals(sub32.substring(5), p32.substring(5, 32));
+		assertEquals("01021020", sub32.substring(4, 12).toString());
+	}
+
+	@Test
+	void testValueAt() {
+		var p32 = NibblePath.unsafe(data16Bytes);
+		var sub32 = NibblePath.unsafe(data32Bytes).substring(16, 48);
+		assertEquals(0x1, p32.valueAt(0));
+		assertEquals(0x1, sub32.valueAt(0));
+		assertEquals(0x6, p32.valueAt(1));
+		assertEquals(0x6, sub32.valueAt(1));
+		assertEquals(0xf, p32.valueAt(28));
+		assertEquals(0x5, sub32.valueAt(29));
+		assertThrows(IndexOutOfBoundsException.class, () -> {
+			p32.valueAt(32);
+		});
+	}
+
+	@Test
+	void testToBytes() {
+		var p = NibblePath.unsafe(data16Bytes);
+		assertArrayEquals(data16Bytes, p.toBytes());
+		assertArrayEquals(new byte[] { 0x16, 0x00, 0x00 }, p.substring(0, 5).toBytes());
+		assertArrayEquals(new byte[] { 0x60, 0x00, 0x10 }, p.substring(1, 6).toBytes());
+		assertArrayEquals(new byte[] { 0x60, 0x00, 0x10, 0x20 }, p.substring(1, 8).toBytes());
+		assertArrayEquals(new byte[0], NibblePath.EMPTY.toBytes());
+	}
+}
@@ -0,0 +1,77 @@
+package org.warpchain.db;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MemoryStorageTest {
+
+	MemoryStorage db;
+
+	@BeforeEach
+	void init() {
+		db = new MemoryStorage();
+	}
+
+	@Test
+	void testSetAndGet() {
+		String key1 = "key12345678-9999";
+		String key2 = "abc12345678-qwer";
+		assertNull(db.getStringValue(key1));
+		db.setValue(key1, "Hello");
+		db.setValue(key2, "World");
+		assertEquals("Hello", db.getStringValue(key1));
+		db.removeValue(key2);
+		assertNull(db.getStringValue(key2));
+	}
+
+	@Test
+	void testBatch() {
+		db.setValue("key-1", "one");
+		try (WriteBatch batch = db.newBatch()) {
+			batch.put("key-2".getBytes(), "two".getBytes());
+			batch.delete("key-1".getBytes());
+			batch.put("key-1".getBytes(), "again".getBytes());
+			batch.delete("key-2".getBytes());
+			batch.put("key-3".getBytes(), "three".getBytes());
+			assertEquals(5, batch.size());
+			assertNull(db.getStringValue("key-3"));
+			batch.commit(true);
+			assertEquals(0, batch.size());
+			// the last write of each key wins:
+			assertEquals("again", db.getStringValue("key-1"));
+			assertNull(db.getStringValue("key-2"));
+			assertEquals("three", db.getStringValue("key-3"));
+		}
+	}
+
+	@Test
+	void testBatchIsAtomic() throws InterruptedException {
+		AtomicBoolean partial = new AtomicBoolean();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				String a = db.getStringValue("a");
+				String b = db.getStringValue("b");
+				if (a != null && b != null && Integer.parseInt(b) < Integer.parseInt(a)) {
+					partial.set(true);
+				}
+			}
+		});
+		reader.start();
+		try (WriteBatch batch = db.newBatch()) {
+			for (int i = 0; i < 10000; i++) {
+				// a is written before b, and a reader must never see b older than a:
+				batch.put("a".getBytes(), String.valueOf(i).getBytes());
+				batch.put("b".getBytes(), String.valueOf(i).getBytes());
+				batch.commit(false);
+			}
+		}
+		done.set(true);
+		reader.join();
+		assertFalse(partial.get());
+	}
+}
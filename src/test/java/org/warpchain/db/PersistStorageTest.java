@@ -46,4 +46,28 @@ public class PersistStorageTest {
 		db.removeValue(key2);
 		assertNull(db.getStringValue(key2));
 	}
+
+	@Test
+	void testBatch() {
+		db.setValue("key-1", "one");
+		db.setValue("key-2", "two");
+		try (WriteBatch batch = db.newBatch()) {
+			batch.put("key-3".getBytes(), "three".getBytes());
+			batch.delete("key-1".getBytes());
+			batch.put("key-2".getBytes(), "changed".getBytes());
+			assertEquals(3, batch.size());
+			// not visible before commit:
+			assertNull(db.getStringValue("key-3"));
+			assertEquals("one", db.getStringValue("key-1"));
+			batch.commit(true);
+			assertEquals(0, batch.size());
+			assertNull(db.getStringValue("key-1"));
+			assertEquals("changed", db.getStringValue("key-2"));
+			assertEquals("three", db.getStringValue("key-3"));
+			// reuse after commit:
+			batch.delete("key-3".getBytes());
+			batch.commit(false);
+			assertNull(db.getStringValue("key-3"));
+		}
+	}
 }
@@ -0,0 +1,79 @@
+package org.warpchain.tree;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.warpchain.util.ByteUtils;
+
+public class ArenaMerkleTreeTest {
+
+	@Test
+	void emptyTree() {
+		var tree = new ArenaMerkleTree();
+		var expected = new SparseMerkleTree();
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		assertEquals(0, tree.size());
+	}
+
+	@Test
+	void updateSameAsSparseMerkleTree() {
+		String[] data = SparseMerkleTreeTest.randomData(500);
+		// small slab to cover multiple slabs:
+		var tree = new ArenaMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), 1024);
+		var expected = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		for (int i = 0; i < 100; i++) {
+			tree.update(data[i].getBytes());
+			expected.update(data[i].getBytes());
+			assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		}
+		tree.updateAll(Arrays.stream(data).skip(100).map(String::getBytes).toList());
+		expected.updateAll(Arrays.stream(data).skip(100).map(String::getBytes).toList());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		assertEquals(SparseMerkleTreeTest.verifyMerkle(expected, data), tree.getRootMerkleHashAsString());
+		for (String s : data) {
+			byte[] dataHash = tree.hash(s.getBytes());
+			assertTrue(tree.contains(dataHash));
+			assertArrayEquals(s.getBytes(), tree.get(dataHash));
+		}
+		assertFalse(tree.contains(tree.hash("not-exist".getBytes())));
+		assertNull(tree.get(tree.hash("not-exist".getBytes())));
+	}
+
+	@Test
+	void updateWithDsha256() {
+		String[] data = SparseMerkleTreeTest.randomData(300);
+		var tree = new ArenaMerkleTree();
+		var expected = new SparseMerkleTree();
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		expected.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		assertEquals(300, tree.size());
+	}
+
+	@Test
+	void remove() {
+		String[] data = SparseMerkleTreeTest.randomData(300);
+		var tree = new ArenaMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), 4096);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		for (int i = 0; i < 200; i++) {
+			assertTrue(tree.remove(tree.hash(data[i].getBytes())));
+			assertFalse(tree.remove(tree.hash(data[i].getBytes())));
+		}
+		var expected = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		assertEquals(SparseMerkleTreeTest.verifyMerkle(expected, Arrays.copyOfRange(data, 200, 300)),
+				tree.getRootMerkleHashAsString());
+		assertEquals(100, tree.size());
+		// freed records are reused:
+		long capacity = tree.getOffHeapSize();
+		for (int i = 0; i < 100; i++) {
+			tree.remove(tree.hash(data[200 + i].getBytes()));
+		}
+		assertEquals(ByteUtils.toHexString(expected.getDefaultHashAtHeight(0)), tree.getRootMerkleHashAsString());
+		tree.updateAll(Arrays.stream(data).limit(100).map(String::getBytes).toList());
+		assertEquals(SparseMerkleTreeTest.verifyMerkle(expected, Arrays.copyOfRange(data, 0, 100)),
+				tree.getRootMerkleHashAsString());
+		assertTrue(tree.getOffHeapSize() - capacity <= 4096 * 2);
+	}
+}
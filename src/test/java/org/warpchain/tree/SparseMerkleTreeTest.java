@@ -2,15 +2,39 @@ package org.warpchain.tree;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.StreamSupport;
 
 import org.junit.jupiter.api.Test;
+import org.warpchain.db.MemoryStorage;
+import org.warpchain.exception.DecodeException;
+import org.warpchain.exception.StoreException;
 import org.warpchain.util.ByteUtils;
 import org.warpchain.util.HashUtils;
 
@@ -241,6 +265,1565 @@ public class SparseMerkleTreeTest {
 		assertNotNull(root.getChild(6));
 	}
 
+	@Test
+	void updateAll() {
+		String[] data = randomData(200);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		assertEquals(verifyMerkle(tree, data), tree.getRootMerkleHashAsString());
+
+		var tree2 = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		Arrays.stream(data).map(String::getBytes).forEach(tree2::update);
+		assertEquals(tree2.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void updateAllCalculateLessHashes() {
+		String[] data = randomData(200);
+		AtomicInteger counter1 = new AtomicInteger();
+		var tree1 = new SparseMerkleTree(input -> {
+			counter1.incrementAndGet();
+			return hash24bits(input);
+		});
+		for (String s : data) {
+			tree1.update(s.getBytes());
+			// read root after each update:
+			tree1.getRootMerkleHash();
+		}
+
+		AtomicInteger counter2 = new AtomicInteger();
+		var tree2 = new SparseMerkleTree(input -> {
+			counter2.incrementAndGet();
+			return hash24bits(input);
+		});
+		tree2.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+
+		assertEquals(tree1.getRootMerkleHashAsString(), tree2.getRootMerkleHashAsString());
+		assertTrue(counter2.get() < counter1.get());
+	}
+
+	@Test
+	void updateLazily() {
+		String[] data = randomData(200);
+		AtomicInteger counter1 = new AtomicInteger();
+		var tree1 = new SparseMerkleTree(input -> {
+			counter1.incrementAndGet();
+			return hash24bits(input);
+		});
+		AtomicInteger counter2 = new AtomicInteger();
+		var tree2 = new SparseMerkleTree(input -> {
+			counter2.incrementAndGet();
+			return hash24bits(input);
+		});
+		tree2.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		counter1.set(0);
+		counter2.set(0);
+		for (String s : data) {
+			tree1.update(s.getBytes());
+		}
+		// only data hashes are calculated before root is requested:
+		assertEquals(data.length, counter1.get());
+		assertEquals(tree2.getRootMerkleHashAsString(), tree1.getRootMerkleHashAsString());
+		// same as batch update:
+		tree2.getRootMerkleHash();
+		assertEquals(counter2.get() + data.length, counter1.get());
+		// remove is also lazy:
+		for (int i = 0; i < 100; i++) {
+			tree1.remove(tree1.hash(data[i].getBytes()));
+		}
+		counter1.set(0);
+		assertNotNull(tree1.prove(tree1.hash(data[100].getBytes())));
+		assertTrue(counter1.get() > 1);
+		counter1.set(0);
+		assertEquals(verifyMerkle(tree1, Arrays.copyOfRange(data, 100, 200)), tree1.getRootMerkleHashAsString());
+		assertTrue(counter1.get() > 100);
+		// root is committed:
+		counter1.set(0);
+		tree1.getRootMerkleHash();
+		assertEquals(0, counter1.get());
+		// toString does not commit:
+		tree1.update("hello".getBytes());
+		counter1.set(0);
+		assertTrue(tree1.toString().contains("merkleHash=dirty"));
+		assertEquals(0, counter1.get());
+	}
+
+	@Test
+	void updateSingleChildCalculateLessHashes() {
+		String[] data = randomData(400);
+		AtomicInteger counter = new AtomicInteger();
+		var tree = new SparseMerkleTree(input -> {
+			counter.incrementAndGet();
+			return hash24bits(input);
+		});
+		tree.updateAll(Arrays.stream(data).limit(300).map(String::getBytes).toList());
+		tree.getRootMerkleHash();
+		for (int i = 300; i < 400; i++) {
+			counter.set(0);
+			tree.update(data[i].getBytes());
+			tree.getRootMerkleHash();
+			// data hash + each height once on the updated path, and once more for a
+			// leaf moved down by split:
+			assertTrue(counter.get() <= 1 + 2 * tree.getTreeHeight());
+		}
+		assertEquals(verifyMerkle(tree, data), tree.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void merkleHasher() {
+		MerkleHasher hasher = MerkleHasher.dsha256();
+		byte[] left = HashUtils.dsha256("left".getBytes());
+		byte[] right = HashUtils.dsha256("right".getBytes());
+		byte[] expected = HashUtils.dsha256(ByteUtils.concat(left, right));
+		assertArrayEquals(expected, hasher.hash(left, right));
+		// write into buffer which overlaps input:
+		byte[] buffer = ByteUtils.concat(new byte[] { 1 }, ByteUtils.concat(left, right));
+		hasher.hash(buffer, 1, buffer, 33, buffer, 1);
+		assertArrayEquals(expected, Arrays.copyOfRange(buffer, 1, 33));
+
+		String[] data = randomData(200);
+		var tree1 = new SparseMerkleTree(HashUtils::dsha256);
+		var tree2 = new SparseMerkleTree(hasher);
+		tree1.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		tree2.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		assertEquals(tree1.getRootMerkleHashAsString(), tree2.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void metrics() throws Exception {
+		String[] data = randomData(300);
+		AtomicInteger counter = new AtomicInteger();
+		var tree = new SparseMerkleTree(input -> {
+			counter.incrementAndGet();
+			return hash24bits(input);
+		});
+		var metrics = new CountingTreeMetrics();
+		tree.setMetrics(metrics);
+		counter.set(0);
+		for (int i = 0; i < 200; i++) {
+			tree.update(data[i].getBytes());
+			tree.getRootMerkleHash();
+		}
+		tree.updateAll(Arrays.stream(data).skip(200).map(String::getBytes).toList());
+		tree.remove(tree.hash(data[0].getBytes()));
+		tree.getRootMerkleHash();
+		assertEquals(counter.get(), metrics.getHashCount());
+		assertEquals(301, metrics.getUpdateCount());
+		assertEquals(201, metrics.getCommitCount());
+		assertTrue(metrics.getLeafNodeCount() >= 300);
+		assertTrue(metrics.getSplitCount() > 0);
+		assertTrue(metrics.getMeanPathLength() > 1);
+		assertTrue(metrics.getMaxPathLength() <= 1 + tree.getTreeHeight() / 4);
+		assertTrue(metrics.getUpdateLatencyP99Nanos() >= metrics.getUpdateLatencyP50Nanos());
+
+		// read by JMX:
+		var name = metrics.register("test");
+		try {
+			var server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(metrics.getUpdateCount(), server.getAttribute(name, "UpdateCount"));
+		} finally {
+			metrics.unregister(name);
+		}
+	}
+
+	@Test
+	void updateAllInParallel() {
+		String[] data = randomData(500);
+		var tree1 = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree1.setParallelCommit(null, 1);
+		tree1.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		var tree2 = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree2.setParallelCommit(pool, 1);
+		tree2.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+
+		assertEquals(tree1.getRootMerkleHashAsString(), tree2.getRootMerkleHashAsString());
+		assertEquals(verifyMerkle(tree2, data), tree2.getRootMerkleHashAsString());
+		pool.shutdown();
+	}
+
+	@Test
+	void parallelCommitIsDisabledByDefault() {
+		String[] data = randomData(2000);
+		Thread current = Thread.currentThread();
+		AtomicBoolean otherThread = new AtomicBoolean();
+		var tree = new SparseMerkleTree(input -> {
+			if (Thread.currentThread() != current) {
+				otherThread.set(true);
+			}
+			return hash24bits(input);
+		});
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		tree.getRootMerkleHash();
+		assertFalse(otherThread.get());
+	}
+
+	@Test
+	void longSharedPrefix() {
+		// 256-bit data hashes which share the first 30 bytes:
+		byte[][] dataHashes = new byte[3][32];
+		for (int i = 0; i < dataHashes.length; i++) {
+			Arrays.fill(dataHashes[i], (byte) 0x5a);
+			dataHashes[i][31] = (byte) i;
+		}
+		dataHashes[2][30] = 0x7f;
+		var tree = new SparseMerkleTree();
+		var loaded = new SparseMerkleTree();
+		for (byte[] dataHash : dataHashes) {
+			tree.update(dataHash, dataHash);
+		}
+		loaded.bulkLoad(Arrays.stream(dataHashes).map(dataHash -> Map.entry(dataHash, dataHash)).iterator());
+		assertArrayEquals(tree.getRootMerkleHash(), loaded.getRootMerkleHash());
+		for (byte[] dataHash : dataHashes) {
+			assertTrue(MerkleProof.verify(tree, tree.getRootMerkleHash(), tree.prove(dataHash)));
+		}
+	}
+
+	@Test
+	void bulkLoad() {
+		String[] data = randomData(2000);
+		var expected = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		expected.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+
+		AtomicInteger counter = new AtomicInteger();
+		var tree = new SparseMerkleTree(input -> {
+			counter.incrementAndGet();
+			return hash24bits(input);
+		});
+		TreeMap<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+		for (String s : data) {
+			entries.put(tree.hash(s.getBytes()), s.getBytes());
+		}
+		counter.set(0);
+		assertEquals(entries.size(), tree.bulkLoad(entries.entrySet().iterator()));
+		assertEquals(0, counter.get());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		// same nodes as updated one by one:
+		assertEquals(expected.toString(), tree.toString());
+		for (String s : data) {
+			assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+		}
+		// load in parallel:
+		ForkJoinPool pool = new ForkJoinPool(4);
+		var parallel = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		parallel.setParallelCommit(pool, 1);
+		parallel.bulkLoad(entries.entrySet().iterator());
+		assertEquals(expected.getRootMerkleHashAsString(), parallel.getRootMerkleHashAsString());
+		pool.shutdown();
+		// update after load:
+		tree.update("hello".getBytes());
+		expected.update("hello".getBytes());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		// tree must be empty:
+		assertThrows(IllegalStateException.class, () -> tree.bulkLoad(entries.entrySet().iterator()));
+		// entries must be sorted:
+		var unsorted = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		List<Map.Entry<byte[], byte[]>> reversed = new ArrayList<>(entries.descendingMap().entrySet());
+		assertThrows(IllegalArgumentException.class, () -> unsorted.bulkLoad(reversed.iterator()));
+	}
+
+	@Test
+	void bulkLoadReusedKey() {
+		String[] data = randomData(1000);
+		var expected = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		expected.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		TreeMap<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+		for (String s : data) {
+			entries.put(expected.hash(s.getBytes()), s.getBytes());
+		}
+		// iterator reuses one key buffer, and nodes are built before it ends:
+		byte[] key = new byte[3];
+		AtomicInteger consumed = new AtomicInteger();
+		Iterator<Map.Entry<byte[], byte[]>> it = entries.entrySet().iterator();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		assertEquals(entries.size(), tree.bulkLoad(new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Map.Entry<byte[], byte[]> next() {
+				Map.Entry<byte[], byte[]> entry = it.next();
+				System.arraycopy(entry.getKey(), 0, key, 0, key.length);
+				consumed.incrementAndGet();
+				return Map.entry(key, entry.getValue());
+			}
+		}));
+		assertEquals(entries.size(), consumed.get());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		assertEquals(expected.toString(), tree.toString());
+		for (String s : data) {
+			assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+		}
+		// shared prefixes shorter than the last full node:
+		byte[][] dataHashes = { { 0x11, 0x11, 0x00 }, { 0x11, 0x12, 0x00 }, { 0x12, 0x00, 0x00 },
+				{ 0x12, 0x00, 0x01 }, { 0x12, 0x00, 0x02 }, { (byte) 0xf0, 0x00, 0x00 } };
+		var small = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		var loaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		for (byte[] dataHash : dataHashes) {
+			small.update(dataHash, dataHash);
+		}
+		loaded.bulkLoad(Arrays.stream(dataHashes).map(dataHash -> Map.entry(dataHash, dataHash)).iterator());
+		assertEquals(small.toString(), loaded.toString());
+		assertEquals(small.getRootMerkleHashAsString(), loaded.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void bulkLoadWithStorage() {
+		String[] data = randomData(500);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		TreeMap<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+		for (String s : data) {
+			entries.put(tree.hash(s.getBytes()), s.getBytes());
+		}
+		tree.bulkLoad(entries.entrySet().iterator());
+		tree.flush();
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		assertEquals(verifyMerkle(reloaded, data), reloaded.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void multiLaneHasher() {
+		for (boolean compact : new boolean[] { false, true }) {
+			String[] data = randomData(1000);
+			var expected = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compact);
+			AtomicInteger batches = new AtomicInteger();
+			MerkleHasher single = MerkleHasher.of(SparseMerkleTreeTest::hash24bits);
+			MerkleHasher lanes = new MerkleHasher() {
+				@Override
+				public int getHashSize() {
+					return single.getHashSize();
+				}
+
+				@Override
+				public byte[] hash(byte[] data) {
+					return single.hash(data);
+				}
+
+				@Override
+				public void hash(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] output,
+						int outputOffset) {
+					single.hash(left, leftOffset, right, rightOffset, output, outputOffset);
+				}
+
+				@Override
+				public int getLanes() {
+					return 8;
+				}
+
+				@Override
+				public byte[][] hash(byte[][] lefts, byte[][] rights, int count) {
+					assertTrue(count >= 1 && count <= 8);
+					batches.incrementAndGet();
+					return MerkleHasher.super.hash(lefts, rights, count);
+				}
+
+				@Override
+				public byte[][] hash(byte[][] data, int count) {
+					assertTrue(count >= 1 && count <= 8);
+					batches.incrementAndGet();
+					return MerkleHasher.super.hash(data, count);
+				}
+			};
+			var tree = new SparseMerkleTree(lanes, compact);
+			TreeMap<byte[], byte[]> entries = new TreeMap<>(Arrays::compareUnsigned);
+			for (String s : data) {
+				entries.put(tree.hash(s.getBytes()), s.getBytes());
+			}
+			tree.bulkLoad(entries.entrySet().iterator());
+			expected.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+			assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+			assertTrue(batches.get() > 0);
+			for (int i = 0; i < data.length; i += 3) {
+				tree.remove(tree.hash(data[i].getBytes()));
+				expected.remove(expected.hash(data[i].getBytes()));
+			}
+			tree.update("hello".getBytes());
+			expected.update("hello".getBytes());
+			assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+		}
+		// DSHA-256 in lanes if supported:
+		String[] data = randomData(200);
+		var tree = new SparseMerkleTree(MerkleHasher.dsha256(), false);
+		var expected = new SparseMerkleTree(MerkleHasher.of(HashUtils::dsha256), false);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		expected.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		assertEquals(expected.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void updateWithStorage() {
+		String[] data = randomData(300);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		var memTree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		for (int i = 0; i < 200; i++) {
+			tree.update(data[i].getBytes());
+			memTree.update(data[i].getBytes());
+			if (i % 50 == 0) {
+				tree.flush();
+			}
+		}
+		tree.flush();
+		assertEquals(memTree.getRootMerkleHashAsString(), tree.getRootMerkleHashAsString());
+
+		// reload from storage:
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		assertEquals(memTree.getRootMerkleHashAsString(), reloaded.getRootMerkleHashAsString());
+		for (int i = 200; i < 300; i++) {
+			reloaded.update(data[i].getBytes());
+			memTree.update(data[i].getBytes());
+		}
+		reloaded.flush();
+		assertEquals(memTree.getRootMerkleHashAsString(), reloaded.getRootMerkleHashAsString());
+		assertEquals(verifyMerkle(reloaded, data), reloaded.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void iterate() {
+		String[] data = randomData(1000);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, new MemoryStorage(), 8);
+		assertFalse(tree.iterator().hasNext());
+		TreeMap<byte[], byte[]> expected = new TreeMap<>(Arrays::compareUnsigned);
+		for (String s : data) {
+			tree.update(s.getBytes());
+			expected.put(tree.hash(s.getBytes()), s.getBytes());
+		}
+		TreeSnapshot snapshot = tree.flush();
+		tree.update("hello".getBytes());
+		// iterate in order, including unloaded nodes:
+		List<byte[]> keys = new ArrayList<>();
+		for (Map.Entry<byte[], byte[]> entry : snapshot) {
+			assertArrayEquals(expected.get(entry.getKey()), entry.getValue());
+			keys.add(entry.getKey());
+		}
+		assertEquals(expected.size(), keys.size());
+		for (int i = 1; i < keys.size(); i++) {
+			assertTrue(Arrays.compareUnsigned(keys.get(i - 1), keys.get(i)) < 0);
+		}
+		assertEquals(expected.size() + 1, StreamSupport.stream(tree.spliterator(), false).count());
+		// iterate in parallel:
+		List<byte[]> parallel = StreamSupport.stream(snapshot.spliterator(), true).map(Map.Entry::getKey).toList();
+		assertEquals(keys.size(), parallel.size());
+		for (int i = 0; i < keys.size(); i++) {
+			assertArrayEquals(keys.get(i), parallel.get(i));
+		}
+	}
+
+	@Test
+	void diff() {
+		String[] data = randomData(1000);
+		AtomicInteger loads = new AtomicInteger();
+		var storage = new MemoryStorage() {
+			@Override
+			public byte[] getValue(byte[] key) {
+				loads.incrementAndGet();
+				return super.getValue(key);
+			}
+		};
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 8);
+		tree.updateAll(Arrays.stream(data, 0, 800).map(String::getBytes).toList());
+		TreeSnapshot s1 = tree.flush();
+		assertTrue(tree.diff(s1, s1).isEmpty());
+		// add 200 and remove 100:
+		tree.updateAll(Arrays.stream(data, 800, 1000).map(String::getBytes).toList());
+		for (int i = 0; i < 800; i += 8) {
+			tree.remove(tree.hash(data[i].getBytes()));
+		}
+		TreeSnapshot s2 = tree.flush();
+
+		TreeMap<byte[], byte[]> before = new TreeMap<>(Arrays::compareUnsigned);
+		s1.forEach(e -> before.put(e.getKey(), e.getValue()));
+		TreeMap<byte[], byte[]> after = new TreeMap<>(Arrays::compareUnsigned);
+		s2.forEach(e -> after.put(e.getKey(), e.getValue()));
+		List<byte[]> added = after.keySet().stream().filter(k -> !before.containsKey(k)).toList();
+		List<byte[]> removed = before.keySet().stream().filter(k -> !after.containsKey(k)).toList();
+
+		List<DiffEntry> changes = tree.diff(s1, s2);
+		assertEquals(added.size() + removed.size(), changes.size());
+		assertEquals(added.size(), changes.stream().filter(DiffEntry::isAdded).count());
+		for (int i = 0; i < changes.size(); i++) {
+			DiffEntry entry = changes.get(i);
+			if (entry.isAdded()) {
+				assertArrayEquals(after.get(entry.getDataHash()), entry.getNewValue());
+				assertFalse(before.containsKey(entry.getDataHash()));
+			} else {
+				assertTrue(entry.isRemoved());
+				assertArrayEquals(before.get(entry.getDataHash()), entry.getOldValue());
+				assertFalse(after.containsKey(entry.getDataHash()));
+			}
+			if (i > 0) {
+				assertTrue(Arrays.compareUnsigned(changes.get(i - 1).getDataHash(), entry.getDataHash()) < 0);
+			}
+		}
+		// reverse:
+		List<DiffEntry> reversed = tree.diff(s2, s1);
+		assertEquals(changes.size(), reversed.size());
+		assertEquals(removed.size(), reversed.stream().filter(DiffEntry::isAdded).count());
+
+		// unchanged sub-trees are not loaded:
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 8);
+		reloaded.update("hello".getBytes());
+		TreeSnapshot s3 = reloaded.snapshot();
+		TreeSnapshot old = reloaded.loadSnapshot(s2.getVersion());
+		loads.set(0);
+		List<DiffEntry> single = reloaded.diff(old, s3);
+		assertEquals(1, single.size());
+		assertArrayEquals("hello".getBytes(), single.get(0).getNewValue());
+		assertTrue(loads.get() <= tree.getTreeHeight() / 4);
+	}
+
+	@Test
+	void stateSync() throws Exception {
+		String[] data = randomData(1000);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		TreeSnapshot snapshot = tree.snapshot();
+		byte[] root = snapshot.getRootMerkleHash();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int chunkSize : new int[] { 1, 7, 100, 5000 }) {
+				var output = new ByteArrayOutputStream();
+				int chunks = StateSync.exportTo(snapshot, chunkSize, output);
+				assertTrue(chunks > 0);
+				var imported = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+				int size = StateSync.importFrom(imported, root, new ByteArrayInputStream(output.toByteArray()),
+						executor);
+				assertEquals(size, StreamSupport.stream(snapshot.spliterator(), false).count());
+				assertEquals(tree.getRootMerkleHashAsString(), imported.getRootMerkleHashAsString());
+			}
+			// compact leaf mode:
+			var compact = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), true);
+			compact.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+			TreeSnapshot compactSnapshot = compact.snapshot();
+			for (int chunkSize : new int[] { 1, 7, 100, 5000 }) {
+				var output = new ByteArrayOutputStream();
+				assertTrue(StateSync.exportTo(compactSnapshot, chunkSize, output) > 0);
+				var imported = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), true);
+				assertEquals(data.length, StateSync.importFrom(imported, compactSnapshot.getRootMerkleHash(),
+						new ByteArrayInputStream(output.toByteArray()), executor));
+				assertEquals(compact.getRootMerkleHashAsString(), imported.getRootMerkleHashAsString());
+				assertEquals(compact.toString(), imported.toString());
+			}
+			// tree is cleared if root mismatch after all chunks are verified:
+			var stateOutput = new ByteArrayOutputStream();
+			StateSync.exportTo(snapshot, 100, stateOutput);
+			Thread loader = Thread.currentThread();
+			AtomicBoolean tamper = new AtomicBoolean();
+			var tampered = new SparseMerkleTree(input -> {
+				byte[] hash = hash24bits(input);
+				// hash differently when committing loaded tree:
+				if (tamper.get() && Thread.currentThread() == loader && input.length == 6) {
+					hash[0]++;
+				}
+				return hash;
+			});
+			tamper.set(true);
+			DecodeException mismatch = assertThrows(DecodeException.class, () -> StateSync.importFrom(tampered,
+					root, new ByteArrayInputStream(stateOutput.toByteArray()), executor));
+			assertTrue(mismatch.getMessage().contains("mismatch"));
+			assertFalse(tampered.iterator().hasNext());
+			tamper.set(false);
+			assertArrayEquals(tampered.getDefaultHashAtHeight(0), tampered.getRootMerkleHash());
+			assertEquals(data.length, StateSync.importFrom(tampered, root,
+					new ByteArrayInputStream(stateOutput.toByteArray()), executor));
+			assertArrayEquals(root, tampered.getRootMerkleHash());
+			// empty tree:
+			var empty = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+			var emptyOutput = new ByteArrayOutputStream();
+			assertEquals(0, StateSync.exportTo(empty.snapshot(), 10, emptyOutput));
+			assertEquals(0, StateSync.importFrom(new SparseMerkleTree(SparseMerkleTreeTest::hash24bits),
+					empty.getRootMerkleHash(), new ByteArrayInputStream(emptyOutput.toByteArray()), executor));
+			assertThrows(DecodeException.class,
+					() -> StateSync.importFrom(new SparseMerkleTree(SparseMerkleTreeTest::hash24bits), root,
+							new ByteArrayInputStream(emptyOutput.toByteArray()), executor));
+
+			// read chunks and drop one:
+			var output = new ByteArrayOutputStream();
+			StateSync.exportTo(snapshot, 100, output);
+			var in = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+			List<StateChunk> chunks = new ArrayList<>();
+			byte[] chunkData;
+			while ((chunkData = StateSync.readChunk(in)) != null) {
+				StateChunk chunk = StateChunk.fromBytes(chunkData);
+				assertTrue(chunk.verify(tree, root));
+				chunks.add(chunk);
+			}
+			var dropped = new ByteArrayOutputStream();
+			var out = new DataOutputStream(dropped);
+			for (int i = 0; i < chunks.size(); i++) {
+				if (i != 3) {
+					byte[] bs = chunks.get(i).toBytes();
+					out.writeInt(bs.length);
+					out.write(bs);
+				}
+			}
+			var gap = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+			assertThrows(DecodeException.class, () -> StateSync.importFrom(gap, root,
+					new ByteArrayInputStream(dropped.toByteArray()), executor));
+			assertFalse(gap.iterator().hasNext());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void verifyRange() {
+		String[] data = randomData(300);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		List<byte[]> keys = new ArrayList<>();
+		tree.forEach(e -> keys.add(e.getKey()));
+		List<byte[]> range = keys.subList(100, 200);
+		assertTrue(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(range), false, false));
+		assertTrue(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(keys.subList(0, 100)), true, false));
+		assertTrue(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(keys.subList(200, 300)), false, true));
+		assertFalse(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(range), true, false));
+		assertFalse(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(range), false, true));
+		// hide a data hash in the middle:
+		List<byte[]> hidden = new ArrayList<>(range);
+		hidden.remove(50);
+		MerkleMultiProof proof = tree.proveAll(hidden);
+		assertTrue(MerkleMultiProof.verify(tree, root, proof));
+		assertFalse(MerkleMultiProof.verifyRange(tree, root, proof, false, false));
+		// data hash not included:
+		List<byte[]> missing = new ArrayList<>(range);
+		missing.add(tree.hash("not-exist".getBytes()));
+		assertFalse(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(missing), false, false));
+	}
+
+	@Test
+	void concurrentReaders() throws Exception {
+		String[] data = randomData(1000);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, new MemoryStorage(), 16);
+		assertEquals(0, tree.getLatestSnapshot().getVersion());
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicInteger published = new AtomicInteger();
+		AtomicInteger reads = new AtomicInteger();
+		List<Throwable> errors = new CopyOnWriteArrayList<>();
+		ExecutorService readers = Executors.newFixedThreadPool(4);
+		for (int n = 0; n < 4; n++) {
+			readers.submit(() -> {
+				try {
+					while (!done.get()) {
+						TreeSnapshot snapshot = tree.getLatestSnapshot();
+						// data published before snapshot must be readable and provable:
+						int count = published.get();
+						TreeSnapshot latest = tree.getLatestSnapshot();
+						for (int i = 0; i < count; i += 37) {
+							byte[] dataHash = tree.hash(data[i].getBytes());
+							assertArrayEquals(data[i].getBytes(), latest.get(dataHash));
+							assertTrue(MerkleProof.verify(tree, latest.getRootMerkleHash(), latest.prove(dataHash)));
+						}
+						assertTrue(snapshot.getVersion() <= latest.getVersion());
+						reads.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+		for (int i = 0; i < data.length; i += 100) {
+			tree.updateAll(Arrays.stream(data, i, i + 100).map(String::getBytes).toList());
+			if (i % 300 == 0) {
+				tree.flush();
+			} else {
+				tree.snapshot();
+			}
+			published.set(i + 100);
+		}
+		done.set(true);
+		readers.shutdown();
+		assertTrue(readers.awaitTermination(1, TimeUnit.MINUTES));
+		assertTrue(errors.isEmpty(), errors.toString());
+		assertTrue(reads.get() > 0);
+		assertEquals(verifyMerkle(tree, data), ByteUtils.toHexString(tree.getLatestSnapshot().getRootMerkleHash()));
+	}
+
+	@Test
+	void shardedTreeSparseNonInclusion() {
+		for (boolean compactLeaf : new boolean[] { false, true }) {
+			String[] data = randomData(3);
+			var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compactLeaf);
+			try (var sharded = new ShardedMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compactLeaf)) {
+				for (String d : data) {
+					tree.update(d.getBytes());
+					sharded.update(d.getBytes());
+					byte[] root = tree.getRootMerkleHash();
+					// prove keys in every shard, most of them empty:
+					for (int s = 0; s < 16; s++) {
+						for (int low : new int[] { 0x00, 0x07, 0x0f }) {
+							byte[] dataHash = { (byte) ((s << 4) | low), 0x12, 0x34 };
+							ShardedMerkleTree.RootProof rootProof = sharded.prove(dataHash);
+							assertArrayEquals(root, rootProof.getRootMerkleHash());
+							assertArrayEquals(tree.prove(dataHash).toBytes(), rootProof.getProof().toBytes());
+							assertTrue(MerkleProof.verify(tree, root, rootProof.getProof()));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void shardedTree() throws Exception {
+		for (boolean compactLeaf : new boolean[] { false, true }) {
+			String[] data = randomData(1000);
+			var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compactLeaf);
+			try (var sharded = new ShardedMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compactLeaf)) {
+				assertArrayEquals(tree.getRootMerkleHash(), sharded.getRootMerkleHash());
+				// few data leaves most shards empty:
+				for (int i = 0; i < 3; i++) {
+					tree.update(data[i].getBytes());
+					sharded.update(data[i].getBytes());
+					assertArrayEquals(tree.getRootMerkleHash(), sharded.getRootMerkleHash());
+				}
+				// update in parallel from multiple threads:
+				ExecutorService writers = Executors.newFixedThreadPool(4);
+				List<java.util.concurrent.Future<?>> futures = new ArrayList<>();
+				for (int i = 3; i < data.length; i += 100) {
+					var batch = Arrays.stream(data, i, Math.min(i + 100, data.length)).map(String::getBytes).toList();
+					tree.updateAll(batch);
+					futures.add(writers.submit(() -> sharded.updateAll(batch).join()));
+				}
+				for (var future : futures) {
+					future.get();
+				}
+				writers.shutdown();
+				byte[] root = sharded.getRootMerkleHash();
+				assertArrayEquals(tree.getRootMerkleHash(), root);
+				for (int i = 0; i < data.length; i += 13) {
+					byte[] dataHash = tree.hash(data[i].getBytes());
+					assertArrayEquals(data[i].getBytes(), sharded.get(dataHash));
+					ShardedMerkleTree.RootProof rootProof = sharded.prove(dataHash);
+					assertArrayEquals(root, rootProof.getRootMerkleHash());
+					assertArrayEquals(tree.prove(dataHash).toBytes(), rootProof.getProof().toBytes());
+					assertTrue(MerkleProof.verify(tree, root, rootProof.getProof()));
+				}
+				// non-inclusion:
+				byte[] missing = tree.hash("missing".getBytes());
+				assertNull(sharded.get(missing));
+				assertArrayEquals(tree.prove(missing).toBytes(), sharded.prove(missing).getProof().toBytes());
+				// remove all but one:
+				for (int i = 1; i < data.length; i++) {
+					byte[] dataHash = tree.hash(data[i].getBytes());
+					assertTrue(tree.remove(dataHash));
+					sharded.remove(dataHash);
+				}
+				assertFalse(sharded.remove(tree.hash(data[1].getBytes())).join());
+				assertArrayEquals(tree.getRootMerkleHash(), sharded.getRootMerkleHash());
+				byte[] dataHash = tree.hash(data[0].getBytes());
+				assertArrayEquals(tree.prove(dataHash).toBytes(), sharded.prove(dataHash).getProof().toBytes());
+				// proof is consistent with its root while other threads are updating:
+				ExecutorService updater = Executors.newSingleThreadExecutor();
+				var updating = updater.submit(() -> {
+					for (int i = 1; i < data.length; i++) {
+						sharded.update(data[i].getBytes());
+					}
+				});
+				for (int i = 0; i < 50; i++) {
+					ShardedMerkleTree.RootProof rootProof = sharded.prove(dataHash);
+					assertTrue(MerkleProof.verify(tree, rootProof.getRootMerkleHash(), rootProof.getProof()));
+				}
+				updating.get();
+				updater.shutdown();
+			}
+		}
+	}
+
+	@Test
+	void valueLog() throws Exception {
+		Path dir = Files.createTempDirectory("vlog");
+		try {
+			String[] data = randomData(300);
+			for (boolean compactLeaf : new boolean[] { false, true }) {
+				var valueLog = new ValueLog(dir.resolve(compactLeaf ? "compact" : "standard").toString(), 1024);
+				var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), compactLeaf);
+				// values shorter than 3 bytes are kept in leaves:
+				tree.setValueLog(valueLog, 3);
+				tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+				tree.update("ab".getBytes());
+				String[] all = Arrays.copyOf(data, data.length + 1);
+				all[data.length] = "ab";
+				assertEquals(compactLeaf ? verifyCompactMerkle(tree, all) : verifyMerkle(tree, all),
+						tree.getRootMerkleHashAsString());
+				assertTrue(valueLog.sealedSegments().size() > 1);
+				for (String s : all) {
+					byte[] dataHash = tree.hash(s.getBytes());
+					assertArrayEquals(s.getBytes(), tree.get(dataHash));
+					assertTrue(MerkleProof.verify(tree, tree.getRootMerkleHash(), tree.prove(dataHash)));
+				}
+				assertEquals(all.length, StreamSupport.stream(tree.spliterator(), false).count());
+				valueLog.close();
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void valueLogWithStorage() throws Exception {
+		Path dir = Files.createTempDirectory("vlog");
+		try {
+			String[] data = randomData(500);
+			var storage = new MemoryStorage();
+			var valueLog = new ValueLog(dir.toString(), 2048);
+			var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			tree.setValueLog(valueLog, 1);
+			for (int i = 0; i < data.length; i += 100) {
+				tree.updateAll(Arrays.stream(data, i, i + 100).map(String::getBytes).toList());
+				tree.flush();
+			}
+			valueLog.close();
+			// reopen value log and tree:
+			var reopened = new ValueLog(dir.toString(), 2048);
+			var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			assertEquals(verifyMerkle(reloaded, data), reloaded.getRootMerkleHashAsString());
+			assertThrows(IllegalStateException.class, () -> {
+				reloaded.get(reloaded.hash(data[0].getBytes()));
+			});
+			reloaded.setValueLog(reopened, 1);
+			for (String s : data) {
+				assertArrayEquals(s.getBytes(), reloaded.get(reloaded.hash(s.getBytes())));
+			}
+			// append after reopen:
+			reloaded.update("value after reopen".getBytes());
+			reloaded.flush();
+			assertArrayEquals("value after reopen".getBytes(),
+					reloaded.get(reloaded.hash("value after reopen".getBytes())));
+			assertArrayEquals(data[0].getBytes(), reloaded.get(reloaded.hash(data[0].getBytes())));
+			reopened.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void collectValueLog() throws Exception {
+		Path dir = Files.createTempDirectory("vlog");
+		try {
+			String[] data = randomData(1000);
+			var storage = new MemoryStorage();
+			var valueLog = new ValueLog(dir.toString(), 4096);
+			var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			tree.setValueLog(valueLog, 1);
+			tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+			tree.flush();
+			// remove 90% of data:
+			List<String> alive = new ArrayList<>();
+			for (int i = 0; i < data.length; i++) {
+				if (i % 10 == 0) {
+					alive.add(data[i]);
+				} else {
+					tree.remove(tree.hash(data[i].getBytes()));
+				}
+			}
+			TreeSnapshot before = tree.flush();
+			byte[] root = before.getRootMerkleHash();
+			int segments = valueLog.sealedSegments().size();
+			var collector = tree.createValueLogCollector(0.5, 0);
+			int collected = collector.collect();
+			assertTrue(collected > 0);
+			// segments are kept until relocated leaves are flushed:
+			assertEquals(0, collector.collect());
+			assertEquals(segments, valueLog.sealedSegments().size());
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+			}
+			tree.snapshot();
+			assertEquals(segments, valueLog.sealedSegments().size());
+			TreeSnapshot flushed = tree.flush();
+			assertArrayEquals(root, flushed.getRootMerkleHash());
+			// segments are kept while versions before can be read:
+			assertTrue(valueLog.sealedSegments().size() >= segments);
+			TreeSnapshot loaded = tree.loadSnapshot(before.getVersion());
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), before.get(tree.hash(s.getBytes())));
+				assertArrayEquals(s.getBytes(), loaded.get(tree.hash(s.getBytes())));
+				assertArrayEquals(s.getBytes(), flushed.get(tree.hash(s.getBytes())));
+			}
+			// deleted after versions before are pruned:
+			tree.createPruner(0, 16).prune();
+			assertTrue(valueLog.sealedSegments().size() <= segments - collected + 1);
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), flushed.get(tree.hash(s.getBytes())));
+			}
+			// reload from storage:
+			var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			reloaded.setValueLog(valueLog, 1);
+			assertEquals(verifyMerkle(reloaded, alive.toArray(String[]::new)), reloaded.getRootMerkleHashAsString());
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), reloaded.get(reloaded.hash(s.getBytes())));
+			}
+			collector.close();
+			valueLog.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void collectValueLogThenSplit() throws Exception {
+		Path dir = Files.createTempDirectory("vlog");
+		try {
+			String[] data = randomData(1000);
+			var storage = new MemoryStorage();
+			var valueLog = new ValueLog(dir.toString(), 4096);
+			var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			tree.setValueLog(valueLog, 1);
+			tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+			tree.flush();
+			List<String> alive = new ArrayList<>();
+			for (int i = 0; i < data.length; i++) {
+				if (i % 10 == 0) {
+					alive.add(data[i]);
+				} else {
+					tree.remove(tree.hash(data[i].getBytes()));
+				}
+			}
+			tree.flush();
+			var collector = tree.createValueLogCollector(0.5, 0);
+			assertTrue(collector.collect() > 0);
+			// new keys sharing 16-bit prefix with alive leaves move them down before relocation:
+			Set<String> prefixes = new HashSet<>();
+			for (String s : alive) {
+				prefixes.add(ByteUtils.toHexString(tree.hash(s.getBytes())).substring(0, 4));
+			}
+			Set<String> existing = new HashSet<>(Arrays.asList(data));
+			Random random = new Random(123);
+			int added = 0;
+			while (added < 20) {
+				String s = "split-" + random.nextInt();
+				String prefix = ByteUtils.toHexString(tree.hash(s.getBytes())).substring(0, 4);
+				if (!existing.contains(s) && prefixes.contains(prefix)) {
+					existing.add(s);
+					alive.add(s);
+					tree.update(s.getBytes());
+					added++;
+				}
+			}
+			TreeSnapshot flushed = tree.flush();
+			assertEquals(verifyMerkle(tree, alive.toArray(String[]::new)),
+					ByteUtils.toHexString(flushed.getRootMerkleHash()));
+			var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+			reloaded.setValueLog(valueLog, 1);
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), reloaded.get(reloaded.hash(s.getBytes())));
+			}
+			collector.close();
+			valueLog.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void collectValueLogInMemory() throws Exception {
+		Path dir = Files.createTempDirectory("vlog");
+		try {
+			String[] data = randomData(1000);
+			var valueLog = new ValueLog(dir.toString(), 4096);
+			var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+			tree.setValueLog(valueLog, 1);
+			tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+			TreeSnapshot full = tree.snapshot();
+			// remove 90% of data:
+			List<String> alive = new ArrayList<>();
+			for (int i = 0; i < data.length; i++) {
+				if (i % 10 == 0) {
+					alive.add(data[i]);
+				} else {
+					tree.remove(tree.hash(data[i].getBytes()));
+				}
+			}
+			TreeSnapshot before = tree.snapshot();
+			int segments = valueLog.sealedSegments().size();
+			var collector = tree.createValueLogCollector(0.5, 1);
+			assertTrue(collector.collect() > 0);
+			// rollback drops relocations not yet applied:
+			tree.rollback(full);
+			tree.snapshot();
+			for (String s : data) {
+				assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+			}
+			assertEquals(0, collector.collect());
+			tree.rollback(before);
+			tree.snapshot();
+			assertTrue(collector.collect() > 0);
+			TreeSnapshot relocated = tree.snapshot();
+			// held snapshots can still read collected segments:
+			assertEquals(0, collector.collect());
+			assertTrue(valueLog.sealedSegments().size() >= segments);
+			for (String s : data) {
+				assertArrayEquals(s.getBytes(), full.get(tree.hash(s.getBytes())));
+			}
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), before.get(tree.hash(s.getBytes())));
+				assertArrayEquals(s.getBytes(), relocated.get(tree.hash(s.getBytes())));
+			}
+			// rollback to a version before relocation points to segments again:
+			tree.rollback(before);
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+			}
+			tree.snapshot();
+			assertTrue(collector.collect() > 0);
+			tree.snapshot();
+			assertTrue(valueLog.sealedSegments().size() >= segments);
+			// deleted when out of retention window:
+			tree.snapshot();
+			collector.collect();
+			assertTrue(valueLog.sealedSegments().size() < segments);
+			for (String s : alive) {
+				assertArrayEquals(s.getBytes(), tree.get(tree.hash(s.getBytes())));
+				assertArrayEquals(s.getBytes(), tree.getLatestSnapshot().get(tree.hash(s.getBytes())));
+			}
+			assertThrows(IllegalStateException.class, () -> tree.rollback(before));
+			collector.close();
+			valueLog.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	void proveInclusion() {
+		String[] data = randomData(100);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		for (String s : data) {
+			MerkleProof proof = tree.prove(tree.hash(s.getBytes()));
+			assertTrue(proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, proof));
+			// encode and decode:
+			MerkleProof decoded = MerkleProof.fromBytes(proof.toBytes());
+			assertTrue(decoded.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, decoded));
+		}
+	}
+
+	@Test
+	void proveNonInclusion() {
+		String[] data = randomData(100);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		for (String s : randomData(200)) {
+			byte[] dataHash = tree.hash((s + "-not-exist").getBytes());
+			MerkleProof proof = tree.prove(dataHash);
+			assertFalse(proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, proof));
+			// forge an inclusion proof:
+			MerkleProof forged = new MerkleProof(dataHash, true, proof.getBitmap(), proof.getSiblings());
+			assertFalse(MerkleProof.verify(tree, root, forged));
+		}
+		// empty tree:
+		var empty = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		MerkleProof proof = empty.prove(tree.hash("hello".getBytes()));
+		assertFalse(proof.isIncluded());
+		assertTrue(proof.getSiblings().isEmpty());
+		assertTrue(MerkleProof.verify(empty, empty.getRootMerkleHash(), proof));
+	}
+
+	@Test
+	void proveWithStorage() {
+		String[] data = randomData(100);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, new MemoryStorage(), 8);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		tree.flush();
+		byte[] root = tree.getRootMerkleHash();
+		for (String s : data) {
+			MerkleProof proof = tree.prove(tree.hash(s.getBytes()));
+			assertTrue(proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, proof));
+		}
+	}
+
+	@Test
+	void proveAll() {
+		String[] data = randomData(300);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).limit(200).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		// 100 included and 100 not included:
+		List<byte[]> keys = Arrays.stream(data).skip(100).map(s -> tree.hash(s.getBytes())).toList();
+		MerkleMultiProof proof = tree.proveAll(keys);
+		assertEquals(200, proof.getDataHashes().size());
+		int included = 0;
+		for (int i = 0; i < 200; i++) {
+			if (proof.isIncluded(i)) {
+				included++;
+			}
+		}
+		assertEquals(100, included);
+		assertTrue(MerkleMultiProof.verify(tree, root, proof));
+		MerkleMultiProof decoded = MerkleMultiProof.fromBytes(proof.toBytes());
+		assertTrue(MerkleMultiProof.verify(tree, root, decoded));
+		// shared siblings are less than single proofs:
+		int siblings = keys.stream().mapToInt(key -> tree.prove(key).getSiblings().size()).sum();
+		assertTrue(proof.getHashCount() < siblings);
+		// wrong root:
+		assertFalse(MerkleMultiProof.verify(tree, tree.hash(root), proof));
+		// forge included:
+		boolean[] forged = new boolean[200];
+		Arrays.fill(forged, true);
+		MerkleMultiProof forgedProof = MerkleMultiProof.fromBytes(proof.toBytes());
+		assertFalse(MerkleMultiProof.verify(tree, root,
+				new MerkleMultiProof(forgedProof.getDataHashes(), forged, decoded.getMarkers(), decoded.getHashes())));
+	}
+
+	@Test
+	void proveAllSingleKey() {
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		byte[] key = tree.hash("hello".getBytes());
+		MerkleMultiProof proof = tree.proveAll(List.of(key));
+		assertFalse(proof.isIncluded(0));
+		assertTrue(MerkleMultiProof.verify(tree, tree.getRootMerkleHash(), proof));
+		tree.update("hello".getBytes());
+		tree.update("world".getBytes());
+		proof = tree.proveAll(List.of(key));
+		assertTrue(proof.isIncluded(0));
+		assertTrue(MerkleMultiProof.verify(tree, tree.getRootMerkleHash(), proof));
+	}
+
+	@Test
+	void getAndContains() {
+		String[] data = randomData(300);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		var storageTree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, new MemoryStorage(), 8);
+		for (int i = 0; i < 200; i++) {
+			tree.update(data[i].getBytes());
+			storageTree.update(data[i].getBytes());
+		}
+		storageTree.flush();
+		for (int i = 0; i < 300; i++) {
+			byte[] dataHash = tree.hash(data[i].getBytes());
+			if (i < 200) {
+				assertTrue(tree.contains(dataHash));
+				assertEquals(data[i], new String(tree.get(dataHash)));
+				assertTrue(storageTree.contains(dataHash));
+				assertEquals(data[i], new String(storageTree.get(dataHash)));
+			} else {
+				assertFalse(tree.contains(dataHash));
+				assertNull(tree.get(dataHash));
+				assertFalse(storageTree.contains(dataHash));
+				assertNull(storageTree.get(dataHash));
+			}
+		}
+		assertNull(new SparseMerkleTree(SparseMerkleTreeTest::hash24bits).get(tree.hash("hello".getBytes())));
+	}
+
+	@Test
+	void remove() {
+		String[] data = randomData(200);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		assertFalse(tree.remove(tree.hash("not-exist".getBytes())));
+		for (int i = 0; i < 200; i += 2) {
+			assertTrue(tree.remove(tree.hash(data[i].getBytes())));
+			assertFalse(tree.contains(tree.hash(data[i].getBytes())));
+		}
+		String[] remains = new String[100];
+		for (int i = 0; i < 100; i++) {
+			remains[i] = data[i * 2 + 1];
+		}
+		var expected = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		expected.updateAll(Arrays.stream(remains).map(String::getBytes).toList());
+		assertEquals(verifyMerkle(tree, remains), tree.getRootMerkleHashAsString());
+		// nodes are collapsed as same as new tree:
+		expected.getRootMerkleHash();
+		assertEquals(expected.toString(), tree.toString());
+		// remove all:
+		for (String s : remains) {
+			assertTrue(tree.remove(tree.hash(s.getBytes())));
+		}
+		assertEquals(verifyMerkle(tree), tree.getRootMerkleHashAsString());
+		tree.update("hello".getBytes());
+		assertEquals(verifyMerkle(tree, "hello"), tree.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void removeWithStorage() {
+		String[] data = randomData(200);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 8);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		tree.flush();
+		for (int i = 0; i < 150; i++) {
+			assertTrue(tree.remove(tree.hash(data[i].getBytes())));
+		}
+		tree.flush();
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 8);
+		assertEquals(verifyMerkle(tree, Arrays.copyOfRange(data, 150, 200)), reloaded.getRootMerkleHashAsString());
+		for (int i = 150; i < 200; i++) {
+			assertTrue(reloaded.contains(tree.hash(data[i].getBytes())));
+		}
+	}
+
+	@Test
+	void snapshot() {
+		String[] data = randomData(300);
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).limit(100).map(String::getBytes).toList());
+		TreeSnapshot s1 = tree.snapshot();
+		String root1 = verifyMerkle(tree, Arrays.copyOfRange(data, 0, 100));
+		assertEquals(1, s1.getVersion());
+		assertEquals(root1, ByteUtils.toHexString(s1.getRootMerkleHash()));
+
+		// update only one leaf shares other sub-trees:
+		tree.update(data[100].getBytes());
+		TreeSnapshot s2 = tree.snapshot();
+		assertNotSame(s1.getRootNode(), s2.getRootNode());
+		FullNode r1 = (FullNode) s1.getRootNode();
+		FullNode r2 = (FullNode) s2.getRootNode();
+		int shared = 0;
+		for (int i = 0; i < 16; i++) {
+			if (r1.getChild(i) == r2.getChild(i)) {
+				shared++;
+			}
+		}
+		assertEquals(15, shared);
+
+		// continue update and remove:
+		for (int i = 101; i < 300; i++) {
+			tree.update(data[i].getBytes());
+		}
+		for (int i = 0; i < 50; i++) {
+			tree.remove(tree.hash(data[i].getBytes()));
+		}
+		assertEquals(verifyMerkle(tree, Arrays.copyOfRange(data, 50, 300)), tree.getRootMerkleHashAsString());
+
+		// old snapshot is not changed:
+		assertEquals(root1, ByteUtils.toHexString(s1.getRootMerkleHash()));
+		for (int i = 0; i < 300; i++) {
+			byte[] dataHash = tree.hash(data[i].getBytes());
+			assertEquals(i < 100, s1.contains(dataHash));
+			assertEquals(i >= 50, tree.contains(dataHash));
+			MerkleProof proof = s1.prove(dataHash);
+			assertEquals(i < 100, proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, s1.getRootMerkleHash(), proof));
+		}
+
+		// rollback:
+		tree.rollback(s1);
+		assertEquals(root1, tree.getRootMerkleHashAsString());
+		tree.update(data[200].getBytes());
+		assertEquals(root1, ByteUtils.toHexString(s1.getRootMerkleHash()));
+	}
+
+	@Test
+	void pruneOrphans() {
+		String[] data = randomData(400);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		List<byte[]> roots = new ArrayList<>();
+		for (int v = 0; v < 4; v++) {
+			for (int i = v * 100; i < v * 100 + 100; i++) {
+				tree.update(data[i].getBytes());
+			}
+			for (int i = 0; i < 20; i++) {
+				tree.remove(tree.hash(data[v * 50 + i].getBytes()));
+			}
+			TreeSnapshot s = tree.flush();
+			assertEquals(v + 1, s.getVersion());
+			roots.add(s.getRootMerkleHash());
+		}
+		NodePruner pruner = tree.createPruner(1, 16);
+		assertTrue(pruner.prune() > 0);
+		assertEquals(3, pruner.getPrunedVersion());
+		// nothing to prune:
+		assertEquals(0, pruner.prune());
+
+		// root nodes of pruned versions are deleted:
+		assertNull(storage.getValue(roots.get(0)));
+		assertNull(storage.getValue(roots.get(1)));
+		assertThrows(StoreException.class, () -> tree.loadSnapshot(2));
+		TreeSnapshot s3 = tree.loadSnapshot(3);
+		assertArrayEquals(roots.get(2), s3.getRootMerkleHash());
+
+		// all retained versions are readable:
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		assertArrayEquals(roots.get(3), reloaded.getRootMerkleHash());
+		for (int i = 0; i < 400; i++) {
+			byte[] dataHash = tree.hash(data[i].getBytes());
+			MerkleProof proof = reloaded.prove(dataHash);
+			assertTrue(MerkleProof.verify(tree, roots.get(3), proof));
+			assertTrue(MerkleProof.verify(tree, roots.get(2), s3.prove(dataHash)));
+			assertEquals(reloaded.contains(dataHash), proof.isIncluded());
+		}
+	}
+
+	@Test
+	void pruneRecreatedNode() {
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		String[] data = Arrays.copyOf(randomData(50), 51);
+		data[50] = "hello";
+		tree.updateAll(Arrays.stream(data).limit(50).map(String::getBytes).toList());
+		tree.update("hello".getBytes());
+		tree.flush();
+		// orphan and create same nodes again:
+		tree.remove(tree.hash("hello".getBytes()));
+		TreeSnapshot s2 = tree.flush();
+		tree.update("hello".getBytes());
+		tree.flush();
+		// rollback to unflushed snapshot restores discarded nodes:
+		TreeSnapshot s4 = tree.snapshot();
+		tree.remove(tree.hash("hello".getBytes()));
+		tree.rollback(s4);
+		assertThrows(IllegalStateException.class, () -> tree.rollback(s2));
+		tree.flush();
+
+		NodePruner pruner = tree.createPruner(0, 4);
+		pruner.prune();
+		assertEquals(5, pruner.getPrunedVersion());
+		var reloaded = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits, storage, 16);
+		assertTrue(reloaded.contains(tree.hash("hello".getBytes())));
+		assertEquals(verifyMerkle(reloaded, data), reloaded.getRootMerkleHashAsString());
+	}
+
+	@Test
+	void compactLeaf() {
+		String[] data = randomData(300);
+		MerkleHasher hasher = MerkleHasher.of(SparseMerkleTreeTest::hash24bits);
+		var tree = new SparseMerkleTree(hasher, true);
+		assertEquals(verifyCompactMerkle(tree), tree.getRootMerkleHashAsString());
+		tree.update("hello".getBytes());
+		assertEquals(verifyCompactMerkle(tree, "hello"), tree.getRootMerkleHashAsString());
+		tree.remove(tree.hash("hello".getBytes()));
+		for (int i = 0; i < 200; i++) {
+			tree.update(data[i].getBytes());
+		}
+		assertEquals(verifyCompactMerkle(tree, Arrays.copyOfRange(data, 0, 200)), tree.getRootMerkleHashAsString());
+		// batch update and remove:
+		tree.updateAll(Arrays.stream(data, 200, 300).map(String::getBytes).toList());
+		for (int i = 0; i < 300; i += 3) {
+			assertTrue(tree.remove(tree.hash(data[i].getBytes())));
+		}
+		String[] remains = Arrays.stream(data).filter(s -> Arrays.asList(data).indexOf(s) % 3 != 0)
+				.toArray(String[]::new);
+		assertEquals(verifyCompactMerkle(tree, remains), tree.getRootMerkleHashAsString());
+		// compact mode calculates less hashes than standard mode:
+		AtomicInteger compactCount = new AtomicInteger();
+		AtomicInteger standardCount = new AtomicInteger();
+		var compact = new SparseMerkleTree(MerkleHasher.of(input -> {
+			compactCount.incrementAndGet();
+			return hash24bits(input);
+		}), true);
+		var standard = new SparseMerkleTree(MerkleHasher.of(input -> {
+			standardCount.incrementAndGet();
+			return hash24bits(input);
+		}), false);
+		for (String s : remains) {
+			compact.update(s.getBytes());
+			standard.update(s.getBytes());
+		}
+		assertEquals(tree.getRootMerkleHashAsString(), compact.getRootMerkleHashAsString());
+		standard.getRootMerkleHash();
+		assertTrue(compactCount.get() < standardCount.get() / 2);
+	}
+
+	@Test
+	void compactLeafWithStorage() {
+		String[] data = randomData(300);
+		MerkleHasher hasher = MerkleHasher.of(SparseMerkleTreeTest::hash24bits);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(hasher, true, storage, 8);
+		for (int i = 0; i < 200; i++) {
+			tree.update(data[i].getBytes());
+			if (i % 30 == 0) {
+				tree.flush();
+			}
+		}
+		tree.flush();
+		// reload and split persisted leaves:
+		var reloaded = new SparseMerkleTree(hasher, true, storage, 8);
+		assertEquals(tree.getRootMerkleHashAsString(), reloaded.getRootMerkleHashAsString());
+		for (int i = 200; i < 300; i++) {
+			reloaded.update(data[i].getBytes());
+		}
+		reloaded.flush();
+		for (int i = 0; i < 300; i += 2) {
+			assertTrue(reloaded.remove(reloaded.hash(data[i].getBytes())));
+		}
+		reloaded.flush();
+		String[] remains = new String[150];
+		for (int i = 0; i < 150; i++) {
+			remains[i] = data[i * 2 + 1];
+		}
+		var again = new SparseMerkleTree(hasher, true, storage, 8);
+		assertEquals(verifyCompactMerkle(again, remains), again.getRootMerkleHashAsString());
+		for (String s : remains) {
+			assertArrayEquals(s.getBytes(), again.get(again.hash(s.getBytes())));
+		}
+	}
+
+	@Test
+	void compactLeafWithStorageSingleEntry() {
+		MerkleHasher hasher = MerkleHasher.of(SparseMerkleTreeTest::hash24bits);
+		var storage = new MemoryStorage();
+		var tree = new SparseMerkleTree(hasher, true, storage, 8);
+		// root holding a single leaf has the same merkle hash as the leaf:
+		tree.update("a".getBytes());
+		tree.flush();
+		var reloaded = new SparseMerkleTree(hasher, true, storage, 8);
+		assertEquals(verifyCompactMerkle(reloaded, new String[] { "a" }), reloaded.getRootMerkleHashAsString());
+		assertArrayEquals("a".getBytes(), reloaded.get(reloaded.hash("a".getBytes())));
+		// remove down to a single leaf:
+		reloaded.update("b".getBytes());
+		reloaded.flush();
+		assertTrue(reloaded.remove(reloaded.hash("b".getBytes())));
+		reloaded.flush();
+		var again = new SparseMerkleTree(hasher, true, storage, 8);
+		assertEquals(verifyCompactMerkle(again, new String[] { "a" }), again.getRootMerkleHashAsString());
+		assertArrayEquals("a".getBytes(), again.get(again.hash("a".getBytes())));
+		assertNull(again.get(again.hash("b".getBytes())));
+		assertEquals(1, StreamSupport.stream(again.spliterator(), false).count());
+		// grow from the single leaf after reload:
+		String[] data = randomData(55);
+		String[] all = Arrays.copyOf(data, 56);
+		all[55] = "a";
+		again.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		again.flush();
+		var last = new SparseMerkleTree(hasher, true, storage, 8);
+		assertEquals(verifyCompactMerkle(last, all), last.getRootMerkleHashAsString());
+		for (String s : all) {
+			assertArrayEquals(s.getBytes(), last.get(last.hash(s.getBytes())));
+		}
+	}
+
+	@Test
+	void proveCompactLeaf() {
+		String[] data = randomData(100);
+		var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), true);
+		var standard = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		for (String s : data) {
+			MerkleProof proof = tree.prove(tree.hash(s.getBytes()));
+			assertTrue(proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, proof));
+			MerkleProof decoded = MerkleProof.fromBytes(proof.toBytes());
+			assertTrue(MerkleProof.verify(tree, root, decoded));
+			// not valid in standard mode:
+			assertFalse(MerkleProof.verify(standard, root, decoded));
+		}
+		for (String s : randomData(200)) {
+			byte[] dataHash = tree.hash((s + "-not-exist").getBytes());
+			MerkleProof proof = tree.prove(dataHash);
+			assertFalse(proof.isIncluded());
+			assertTrue(MerkleProof.verify(tree, root, proof));
+			// forge an inclusion proof:
+			MerkleProof forged = new MerkleProof(dataHash, true, proof.getBitmap(), proof.getSiblings(),
+					dataHash, proof.getLeafValueHash());
+			assertFalse(MerkleProof.verify(tree, root, forged));
+		}
+		// a leaf with different prefix cannot prove non-inclusion:
+		byte[] dataHash = tree.hash(data[0].getBytes());
+		MerkleProof proof = tree.prove(dataHash);
+		byte[] otherHash = tree.hash(data[1].getBytes());
+		MerkleProof forged = new MerkleProof(otherHash, false, proof.getBitmap(), proof.getSiblings(),
+				proof.getLeafKey(), proof.getLeafValueHash());
+		assertFalse(MerkleProof.verify(tree, root, forged));
+	}
+
+	@Test
+	void compactLeafInternalNodeAsLeaf() {
+		String[] data = randomData(100);
+		var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), true);
+		tree.updateAll(Arrays.stream(data).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		BinaryNode top = BinaryNode.of((FullNode) tree.getRootNode());
+		byte[] left = top.child(tree, 0).getMerkleHash(tree);
+		byte[] right = top.child(tree, 1).getMerkleHash(tree);
+		byte[] bitmap = new byte[tree.getTreeHeight() / 8];
+		Arrays.fill(bitmap, (byte) 0xff);
+		// present root as a leaf with key = left child and value hash = right child:
+		for (String s : data) {
+			byte[] dataHash = tree.hash(s.getBytes());
+			MerkleProof forged = new MerkleProof(dataHash, false, bitmap, List.of(), left, right);
+			assertFalse(MerkleProof.verify(tree, root, forged));
+		}
+		// present a child of root as a leaf under the other child:
+		BinaryNode child = top.child(tree, 0);
+		byte[] leafKey = child.child(tree, 0).getMerkleHash(tree);
+		byte[] valueHash = child.child(tree, 1).getMerkleHash(tree);
+		byte[] dataHash = leafKey.clone();
+		dataHash[0] &= 0x7f;
+		dataHash[dataHash.length - 1] ^= 1;
+		leafKey = leafKey.clone();
+		leafKey[0] &= 0x7f;
+		byte[] bitmap1 = bitmap.clone();
+		bitmap1[0] &= 0x7f;
+		MerkleProof forged = new MerkleProof(dataHash, false, bitmap1, List.of(right), leafKey, valueHash);
+		assertFalse(MerkleProof.verify(tree, root, forged));
+	}
+
+	@Test
+	void proveAllCompactLeaf() {
+		String[] data = randomData(300);
+		var tree = new SparseMerkleTree(MerkleHasher.of(SparseMerkleTreeTest::hash24bits), true);
+		tree.updateAll(Arrays.stream(data).limit(200).map(String::getBytes).toList());
+		byte[] root = tree.getRootMerkleHash();
+		// 100 included and 100 not included:
+		List<byte[]> keys = Arrays.stream(data).skip(100).map(s -> tree.hash(s.getBytes())).toList();
+		MerkleMultiProof proof = tree.proveAll(keys);
+		int included = 0;
+		for (int i = 0; i < 200; i++) {
+			if (proof.isIncluded(i)) {
+				included++;
+			}
+		}
+		assertEquals(100, included);
+		assertTrue(MerkleMultiProof.verify(tree, root, proof));
+		assertTrue(MerkleMultiProof.verify(tree, root, MerkleMultiProof.fromBytes(proof.toBytes())));
+		// single key:
+		for (int i = 0; i < 300; i += 10) {
+			byte[] key = tree.hash(data[i].getBytes());
+			MerkleMultiProof single = tree.proveAll(List.of(key));
+			assertEquals(i < 200, single.isIncluded(0));
+			assertTrue(MerkleMultiProof.verify(tree, root, single));
+		}
+		// not valid in standard mode:
+		var standard = new SparseMerkleTree(SparseMerkleTreeTest::hash24bits);
+		assertFalse(MerkleMultiProof.verify(standard, root, proof));
+		// forge included:
+		boolean[] forged = new boolean[200];
+		Arrays.fill(forged, true);
+		assertFalse(MerkleMultiProof.verify(tree, root,
+				new MerkleMultiProof(proof.getDataHashes(), forged, proof.getMarkers(), proof.getHashes())));
+		// range proof of all included keys:
+		List<byte[]> all = Arrays.stream(data).limit(200).map(s -> tree.hash(s.getBytes())).toList();
+		assertTrue(MerkleMultiProof.verifyRange(tree, root, tree.proveAll(all), true, true));
+	}
+
+	static void deleteDirectory(Path dir) throws IOException {
+		try (var paths = Files.walk(dir)) {
+			for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	static String[] randomData(int size) {
+		Random rnd = new Random(123456);
+		List<String> list = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			StringBuilder sb = new StringBuilder(8);
+			for (int j = 0; j < 8; j++) {
+				int ch = 'A' + rnd.nextInt(26);
+				sb.append((char) ch);
+			}
+			list.add(sb.toString());
+		}
+		return list.toArray(String[]::new);
+	}
+
 	static byte[] hash24bits(byte[] input) {
 		byte[] hash = HashUtils.dsha256(input);
 		return Arrays.copyOfRange(hash, 0, 3);
@@ -289,4 +1872,32 @@ public class SparseMerkleTreeTest {
 		}
 		return ByteUtils.toHexString(root);
 	}
+
+	/**
+	 * Calculate root merkle hash of compact leaf tree by splitting keys bit by bit.
+	 */
+	static String verifyCompactMerkle(TreeInfo tree, String... dataSet) {
+		List<byte[]> dataValues = new ArrayList<>();
+		for (String data : dataSet) {
+			dataValues.add(data.getBytes());
+		}
+		return ByteUtils.toHexString(compactMerkle(tree, dataValues, 0));
+	}
+
+	static byte[] compactMerkle(TreeInfo tree, List<byte[]> dataValues, int height) {
+		if (dataValues.isEmpty()) {
+			return tree.getDefaultHashAtHeight(height);
+		}
+		if (dataValues.size() == 1) {
+			byte[] dataValue = dataValues.get(0);
+			return tree.hash(ByteUtils.concat(new byte[] { 0x00 }, tree.hash(dataValue), tree.hash(dataValue)));
+		}
+		List<byte[]> left = new ArrayList<>();
+		List<byte[]> right = new ArrayList<>();
+		for (byte[] dataValue : dataValues) {
+			(ByteUtils.bitAt(tree.hash(dataValue), height) == 0 ? left : right).add(dataValue);
+		}
+		return tree.hash(ByteUtils.concat(new byte[] { 0x01 }, compactMerkle(tree, left, height + 1),
+				compactMerkle(tree, right, height + 1)));
+	}
 }
@@ -3,7 +3,9 @@ package org.warpchain.util;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
@@ -33,6 +35,27 @@ public class HashUtilsTest {
 		assertEquals(expectedHash, actualHash);
 	}
 
+	@Test
+	void sha256x8() {
+		Random random = new Random(123456);
+		for (int length : new int[] { 0, 1, 32, 55, 56, 63, 64, 65, 119, 120, 200 }) {
+			for (int count = 1; count <= 8; count++) {
+				byte[][] inputs = new byte[count][length];
+				for (byte[] input : inputs) {
+					random.nextBytes(input);
+				}
+				byte[][] hashes = HashUtils.sha256x8(inputs, count);
+				byte[][] dhashes = HashUtils.dsha256x8(inputs, count);
+				assertEquals(count, hashes.length);
+				for (int i = 0; i < count; i++) {
+					assertArrayEquals(HashUtils.sha256(inputs[i]), hashes[i]);
+					assertArrayEquals(HashUtils.dsha256(inputs[i]), dhashes[i]);
+				}
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> HashUtils.sha256x8(new byte[9][32], 9));
+	}
+
 	@ParameterizedTest
 	@CsvSource({ // test data
 			"hello, 108f07b8382412612c048d07d13f814118445acd",
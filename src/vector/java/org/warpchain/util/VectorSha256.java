@@ -0,0 +1,160 @@
+package org.warpchain.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SHA-256 of 8 messages in lanes of 256-bit int vectors. Each vector holds the
+ * same word of 8 messages, so one round of compression processes all of them.
+ *
+ * This class is compiled only by maven profile vector, and is looked up by
+ * HashUtils at runtime, so the default build does not need module
+ * jdk.incubator.vector.
+ *
+ * @author liaoxuefeng
+ */
+final class VectorSha256 {
+
+	static final int LANES = 8;
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_256;
+
+	private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final int[] H0 = { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c,
+			0x1f83d9ab, 0x5be0cd19 };
+
+	private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1,
+			0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7,
+			0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85,
+			0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+			0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116, 0x1e376c08, 0x2748774c,
+			0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+			0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+	private VectorSha256() {
+	}
+
+	/**
+	 * Is 256-bit vector supported by hardware, otherwise lanes are emulated and
+	 * much slower than scalar digest.
+	 */
+	static boolean isAccelerated() {
+		return IntVector.SPECIES_PREFERRED.vectorBitSize() >= SPECIES.vectorBitSize();
+	}
+
+	/**
+	 * Calculate SHA-256 of first count inputs, which must have the same length.
+	 */
+	static byte[][] digest(byte[][] inputs, int count) {
+		final int length = inputs[0].length;
+		final int blocks = (length + 9 + 63) >>> 6;
+		// pad every message with 0x80, zeros and bit length:
+		byte[][] padded = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			if (inputs[i].length != length) {
+				throw new IllegalArgumentException("Inputs must have the same length.");
+			}
+			byte[] message = Arrays.copyOf(inputs[i], blocks << 6);
+			message[length] = (byte) 0x80;
+			LONG_BE.set(message, message.length - 8, (long) length << 3);
+			padded[i] = message;
+		}
+		// state and message schedule are kept as arrays of lanes:
+		int[] state = new int[8 * LANES];
+		for (int n = 0; n < 8; n++) {
+			Arrays.fill(state, n * LANES, (n + 1) * LANES, H0[n]);
+		}
+		int[] w = new int[64 * LANES];
+		for (int b = 0; b < blocks; b++) {
+			final int offset = b << 6;
+			for (int j = 0; j < 16; j++) {
+				for (int i = 0; i < count; i++) {
+					w[j * LANES + i] = (int) INT_BE.get(padded[i], offset + (j << 2));
+				}
+			}
+			compress(state, w);
+		}
+		byte[][] outputs = new byte[count][32];
+		for (int n = 0; n < 8; n++) {
+			for (int i = 0; i < count; i++) {
+				INT_BE.set(outputs[i], n << 2, state[n * LANES + i]);
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Compress one block of each lane. The first 16 words of w are the block, and
+	 * the rest is filled by message schedule.
+	 */
+	private static void compress(int[] state, int[] w) {
+		schedule(w);
+		rounds(state, w);
+	}
+
+	/**
+	 * Expand the first 16 words of w to 64 words.
+	 */
+	private static void schedule(int[] w) {
+		for (int j = 16; j < 64; j++) {
+			IntVector w15 = IntVector.fromArray(SPECIES, w, (j - 15) * LANES);
+			IntVector w2 = IntVector.fromArray(SPECIES, w, (j - 2) * LANES);
+			IntVector s0 = ror(w15, 7).lanewise(VectorOperators.XOR, ror(w15, 18))
+					.lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.LSHR, 3));
+			IntVector s1 = ror(w2, 17).lanewise(VectorOperators.XOR, ror(w2, 19))
+					.lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.LSHR, 10));
+			IntVector.fromArray(SPECIES, w, (j - 16) * LANES).add(s0)
+					.add(IntVector.fromArray(SPECIES, w, (j - 7) * LANES)).add(s1).intoArray(w, j * LANES);
+		}
+	}
+
+	/**
+	 * Run 64 rounds by message schedule w and add result to state.
+	 */
+	private static void rounds(int[] state, int[] w) {
+		IntVector a = IntVector.fromArray(SPECIES, state, 0);
+		IntVector b = IntVector.fromArray(SPECIES, state, LANES);
+		IntVector c = IntVector.fromArray(SPECIES, state, 2 * LANES);
+		IntVector d = IntVector.fromArray(SPECIES, state, 3 * LANES);
+		IntVector e = IntVector.fromArray(SPECIES, state, 4 * LANES);
+		IntVector f = IntVector.fromArray(SPECIES, state, 5 * LANES);
+		IntVector g = IntVector.fromArray(SPECIES, state, 6 * LANES);
+		IntVector h = IntVector.fromArray(SPECIES, state, 7 * LANES);
+		for (int j = 0; j < 64; j++) {
+			IntVector s1 = ror(e, 6).lanewise(VectorOperators.XOR, ror(e, 11)).lanewise(VectorOperators.XOR, ror(e, 25));
+			IntVector ch = e.and(f).lanewise(VectorOperators.XOR, e.not().and(g));
+			IntVector t1 = h.add(s1).add(ch).add(K[j]).add(IntVector.fromArray(SPECIES, w, j * LANES));
+			IntVector s0 = ror(a, 2).lanewise(VectorOperators.XOR, ror(a, 13)).lanewise(VectorOperators.XOR, ror(a, 22));
+			IntVector maj = a.and(b).lanewise(VectorOperators.XOR, a.and(c)).lanewise(VectorOperators.XOR, b.and(c));
+			h = g;
+			g = f;
+			f = e;
+			e = d.add(t1);
+			d = c;
+			c = b;
+			b = a;
+			a = t1.add(s0).add(maj);
+		}
+		a.add(IntVector.fromArray(SPECIES, state, 0)).intoArray(state, 0);
+		b.add(IntVector.fromArray(SPECIES, state, LANES)).intoArray(state, LANES);
+		c.add(IntVector.fromArray(SPECIES, state, 2 * LANES)).intoArray(state, 2 * LANES);
+		d.add(IntVector.fromArray(SPECIES, state, 3 * LANES)).intoArray(state, 3 * LANES);
+		e.add(IntVector.fromArray(SPECIES, state, 4 * LANES)).intoArray(state, 4 * LANES);
+		f.add(IntVector.fromArray(SPECIES, state, 5 * LANES)).intoArray(state, 5 * LANES);
+		g.add(IntVector.fromArray(SPECIES, state, 6 * LANES)).intoArray(state, 6 * LANES);
+		h.add(IntVector.fromArray(SPECIES, state, 7 * LANES)).intoArray(state, 7 * LANES);
+	}
+
+	private static IntVector ror(IntVector v, int n) {
+		return v.lanewise(VectorOperators.ROR, n);
+	}
+}
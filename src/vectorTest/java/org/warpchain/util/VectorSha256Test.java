@@ -0,0 +1,47 @@
+package org.warpchain.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class VectorSha256Test {
+
+	@Test
+	void digest() {
+		Random random = new Random(123456);
+		for (int length : new int[] { 0, 1, 32, 55, 56, 63, 64, 65, 119, 120, 200 }) {
+			for (int count = 1; count <= VectorSha256.LANES; count++) {
+				byte[][] inputs = new byte[count][length];
+				for (byte[] input : inputs) {
+					random.nextBytes(input);
+				}
+				byte[][] hashes = VectorSha256.digest(inputs, count);
+				assertEquals(count, hashes.length);
+				for (int i = 0; i < count; i++) {
+					assertArrayEquals(HashUtils.sha256(inputs[i]), hashes[i]);
+				}
+			}
+		}
+	}
+
+	@Test
+	void digestFirstCount() {
+		byte[][] inputs = new byte[8][];
+		for (int i = 0; i < 8; i++) {
+			inputs[i] = ("hello-" + i).getBytes();
+		}
+		byte[][] hashes = VectorSha256.digest(inputs, 3);
+		assertEquals(3, hashes.length);
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(HashUtils.sha256(inputs[i]), hashes[i]);
+		}
+	}
+
+	@Test
+	void digestDifferentLength() {
+		byte[][] inputs = { new byte[32], new byte[33] };
+		assertThrows(IllegalArgumentException.class, () -> VectorSha256.digest(inputs, 2));
+	}
+}